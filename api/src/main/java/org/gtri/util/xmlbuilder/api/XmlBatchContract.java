@@ -0,0 +1,41 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.api;
+
+/**
+ * A counterpart of XmlContract that receives XmlEvents a chunk at a time. 
+ * Tree builders and loaders that implement this interface avoid the cost of 
+ * a call per event and of the attribute and prefix maps built for 
+ * XmlContract.addXmlElement. An XmlContract may be used where an 
+ * XmlBatchContract is expected by wrapping it in an adapter that pushes each
+ * event of a batch to it.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public interface XmlBatchContract {
+  /**
+   * Add the events of the batch in order. The batch is immutable and may be
+   * retained after the call returns.
+   * @param batch 
+   */
+  void addXmlEvents(XmlEventBatch batch);
+}
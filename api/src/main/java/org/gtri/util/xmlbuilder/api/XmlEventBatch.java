@@ -0,0 +1,103 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.api;
+
+import org.gtri.util.issue.api.DiagnosticLocator;
+import org.gtri.util.xsddatatypes.XsdAnyURI;
+import org.gtri.util.xsddatatypes.XsdNCName;
+import org.gtri.util.xsddatatypes.XsdQName;
+
+/**
+ * An immutable chunk of XmlEvents, accessed by index. Events are stored in 
+ * parallel arrays so that consumers can process a chunk in a single loop 
+ * over eventType without a virtual call or a map per event. Attributes and 
+ * namespace prefixes of an element are accessed by index in document order.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public interface XmlEventBatch {
+  /** An event that is not one of the types below (see event) */
+  public static final int OTHER = 0;
+  public static final int START_DOCUMENT = 1;
+  public static final int END_DOCUMENT = 2;
+  public static final int START_ELEMENT = 3;
+  public static final int END_ELEMENT = 4;
+  public static final int TEXT = 5;
+  public static final int COMMENT = 6;
+  
+  /**
+   * @return the number of events in the batch
+   */
+  int size();
+  
+  /**
+   * @param i index of the event
+   * @return the type of the event
+   */
+  int eventType(int i);
+  
+  /**
+   * @param i index of the event
+   * @return the name of a START_ELEMENT or END_ELEMENT event, NULL otherwise
+   */
+  XsdQName qName(int i);
+  
+  /**
+   * @param i index of the event
+   * @return the text of a TEXT or COMMENT event, the value of a START_ELEMENT
+   * event (NULL if it has none), NULL otherwise
+   */
+  String text(int i);
+  
+  /**
+   * @param i index of the event
+   * @return the number of attributes of a START_ELEMENT event, 0 otherwise
+   */
+  int attributeCount(int i);
+  
+  XsdQName attributeName(int i, int attributeIndex);
+  
+  String attributeValue(int i, int attributeIndex);
+  
+  /**
+   * @param i index of the event
+   * @return the number of namespace prefixes declared by a START_ELEMENT 
+   * event, 0 otherwise
+   */
+  int prefixCount(int i);
+  
+  XsdNCName prefix(int i, int prefixIndex);
+  
+  XsdAnyURI namespaceURI(int i, int prefixIndex);
+  
+  /**
+   * @param i index of the event
+   * @return the diagnostic locator for the event
+   */
+  DiagnosticLocator locator(int i);
+  
+  /**
+   * @param i index of the event
+   * @return the event
+   */
+  XmlEvent event(int i);
+}
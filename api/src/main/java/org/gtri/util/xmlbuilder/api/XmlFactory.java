@@ -21,6 +21,8 @@
 */
 package org.gtri.util.xmlbuilder.api;
 
+import com.google.common.io.InputSupplier;
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import javax.xml.stream.XMLStreamException;
@@ -45,21 +47,39 @@ public interface XmlFactory {
      */
     static final class Result {
       private final XMLStreamReader reader;
-      private final int totalByteSize;
+      private final long totalByteSize;
+      private final ByteCounter byteCounter;
 
-      public Result(XMLStreamReader reader, int totalByteSize) {
+      public Result(XMLStreamReader reader, long totalByteSize) {
+        this(reader, totalByteSize, null);
+      }
+      
+      public Result(XMLStreamReader reader, long totalByteSize, ByteCounter byteCounter) {
         this.reader = reader;
         this.totalByteSize = totalByteSize;
+        this.byteCounter = byteCounter;
       }
 
       public XMLStreamReader reader() {
         return reader;
       }
 
-      public int totalByteSize() {
+      /**
+       * Get the total byte size of the input
+       * @return the total byte size of the input or 0 if unknown
+       */
+      public long totalByteSize() {
         return totalByteSize;
       }
       
+      /**
+       * Get the counter of bytes consumed by the reader
+       * @return the counter of bytes consumed by the reader or NULL if bytes
+       * are not counted
+       */
+      public ByteCounter byteCounter() {
+        return byteCounter;
+      }
     }
     /**
      * Create an XMLStreamReader
@@ -77,6 +97,41 @@ public interface XmlFactory {
    */
   public XMLStreamReaderFactory createXMLStreamReaderFactory(InputStream in);
   
+  /**
+   * Create a XMLStreamReaderFactory that streams directly from an InputStream
+   * without caching it. Since the InputStream can only be read once, the 
+   * factory may only be used to create one XMLStreamReader.
+   * @param in
+   * @return an XMLStreamReaderFactory that reads directly from the InputStream
+   */
+  public XMLStreamReaderFactory createStreamingXMLStreamReaderFactory(InputStream in);
+  
+  /**
+   * Create a XMLStreamReaderFactory that re-opens the file for each 
+   * XMLStreamReader created. The file is streamed and never cached.
+   * @param file
+   * @return an XMLStreamReaderFactory that streams from the file
+   */
+  public XMLStreamReaderFactory createXMLStreamReaderFactory(File file);
+  
+  /**
+   * Create a XMLStreamReaderFactory that memory maps the file for each 
+   * XMLStreamReader created. The file is paged in by the OS and never copied
+   * to the heap as a whole. Files larger than 2GB are supported.
+   * @param file
+   * @return an XMLStreamReaderFactory that reads from a memory map of the file
+   */
+  public XMLStreamReaderFactory createMappedXMLStreamReaderFactory(File file);
+  
+  /**
+   * Create a XMLStreamReaderFactory that obtains a new InputStream from the
+   * supplier for each XMLStreamReader created. The InputStream is streamed and 
+   * never cached.
+   * @param supplier
+   * @return an XMLStreamReaderFactory that streams from supplied InputStreams
+   */
+  public XMLStreamReaderFactory createXMLStreamReaderFactory(InputSupplier<? extends InputStream> supplier);
+  
   /**
    * An interface for a factory to create XMLStreamWriters
    */
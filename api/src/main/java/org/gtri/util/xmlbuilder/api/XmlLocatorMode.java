@@ -0,0 +1,44 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.api;
+
+/**
+ * Controls how an XML reader captures the location of each event.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public enum XmlLocatorMode {
+  /**
+   * Capture a full XmlFileLocator for every event, including the public and
+   * system identifiers.
+   */
+  FULL,
+  /**
+   * Capture only the character offset, line and column of every event. The
+   * public and system identifiers are NULL.
+   */
+  LINE_COLUMN,
+  /**
+   * Do not capture locators. Every event reports the same unknown location.
+   */
+  NONE
+}
@@ -0,0 +1,43 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.api;
+
+import java.util.List;
+
+/**
+ * Receives measurements from an XML reader. A listener may be shared by 
+ * readers running on different threads and must be thread safe. Calls are 
+ * made on the reader's thread and should return quickly.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public interface XmlReaderListener {
+  /**
+   * Called after the reader fills a chunk of events
+   * @param events the events of the chunk
+   * @param fillNanos the time spent filling the chunk
+   * @param byteCount the number of bytes consumed while filling the chunk
+   * (approximated by characters if the reader can not count bytes)
+   * @param maxDepth the maximum element depth of the document so far
+   */
+  void chunkRead(List<XmlEvent> events, long fillNanos, long byteCount, int maxDepth);
+}
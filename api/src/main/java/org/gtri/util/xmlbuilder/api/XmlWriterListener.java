@@ -0,0 +1,39 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.api;
+
+/**
+ * Receives measurements from an XML writer. A listener may be shared by 
+ * writers running on different threads and must be thread safe. Calls are 
+ * made on the writer's thread and should return quickly.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public interface XmlWriterListener {
+  /**
+   * Called after the writer writes an event
+   * @param event the event
+   * @param scopeNanos the time spent resolving namespaces for the event
+   * @param writeNanos the time spent in calls to the XMLStreamWriter
+   */
+  void eventWritten(XmlEvent event, long scopeNanos, long writeNanos);
+}
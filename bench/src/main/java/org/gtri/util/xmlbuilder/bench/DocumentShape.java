@@ -0,0 +1,46 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.bench;
+
+/**
+ * Document shapes used as benchmark parameters
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public enum DocumentShape {
+  SMALL(50, 2, 1, 0),
+  LARGE(100000, 3, 2, 1),
+  DEEP(20000, 40, 1, 0),
+  ATTRIBUTE_DENSE(20000, 2, 16, 1),
+  NAMESPACE_DENSE(20000, 3, 2, 32);
+  
+  private final XmlDocumentGenerator generator;
+  
+  DocumentShape(int elementCount, int depth, int attributeCount, int namespaceCount) {
+    generator = new XmlDocumentGenerator(elementCount, depth, attributeCount, namespaceCount);
+  }
+  
+  public byte[] generate() {
+    return generator.generate();
+  }
+}
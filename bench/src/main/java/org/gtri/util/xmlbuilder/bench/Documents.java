@@ -0,0 +1,114 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.gtri.util.iteratee.IterateeFactory;
+import org.gtri.util.iteratee.api.Enumerator;
+import org.gtri.util.iteratee.api.ImmutableBuffer;
+import org.gtri.util.iteratee.api.Iteratee;
+import org.gtri.util.iteratee.api.Plan2;
+import org.gtri.util.xmlbuilder.XmlFactory;
+import org.gtri.util.xmlbuilder.api.XmlEvent;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark state: a generated document as XML and in the binary event 
+ * format, and a shared XmlFactory.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+@State(Scope.Benchmark)
+public class Documents {
+  static final IterateeFactory ITERATEE_FACTORY = new IterateeFactory();
+  
+  @Param({"SMALL", "LARGE", "DEEP", "ATTRIBUTE_DENSE", "NAMESPACE_DENSE"})
+  public DocumentShape shape;
+  
+  public XmlFactory xmlFactory;
+  public byte[] xml;
+  public byte[] binary;
+  
+  @Setup(Level.Trial)
+  public void setup() {
+    xmlFactory = new XmlFactory();
+    xml = shape.generate();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length);
+    drain(
+      xmlFactory.createXmlReader(new ByteArrayInputStream(xml)), 
+      xmlFactory.createXmlBinaryWriter(out)
+    );
+    binary = out.toByteArray();
+  }
+  
+  /**
+   * Run a plan to completion
+   * @throws IllegalStateException if the plan did not succeed
+   */
+  static void drain(Enumerator<XmlEvent> reader, Iteratee<XmlEvent,?> writer) {
+    Plan2.RunResult<XmlEvent,?> r = ITERATEE_FACTORY.createPlan(reader, writer).run();
+    if(!r.statusCode().isSuccess()) {
+      throw new IllegalStateException("Plan failed: " + r.allIssues());
+    }
+  }
+  
+  /**
+   * Step an enumerator to completion, consuming every output chunk
+   * @return the number of chunks
+   * @throws IllegalStateException if the enumerator did not succeed
+   */
+  static int drain(Enumerator<XmlEvent> reader, Blackhole bh) {
+    int chunks = 0;
+    Enumerator.State<XmlEvent> state = reader.initialState();
+    while(!state.statusCode().isDone()) {
+      Enumerator.State.Result<XmlEvent> result = state.step();
+      ImmutableBuffer<XmlEvent> output = result.output();
+      bh.consume(output);
+      chunks++;
+      state = result.next();
+    }
+    if(!state.statusCode().isSuccess()) {
+      throw new IllegalStateException("Reader failed: " + state.statusCode());
+    }
+    return chunks;
+  }
+  
+  /**
+   * An OutputStream that discards its output
+   */
+  static final class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) throws IOException { }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException { }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.Serializer;
+import org.gtri.util.xmlbuilder.XmlFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per document cost of creating XMLStreamReaders and 
+ * XMLStreamWriters with fresh factories vs the factories shared by 
+ * XmlFactory.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetupCostBenchmark {
+  static final byte[] DOC = "<?xml version=\"1.0\"?><a xmlns=\"urn:test\"><b c=\"d\">e</b></a>".getBytes(Charset.forName("UTF-8"));
+  
+  final XmlFactory xmlFactory = new XmlFactory();
+  
+  @Benchmark
+  public void freshReader() throws Exception {
+    XMLStreamReader r = XMLInputFactory.newInstance().createXMLStreamReader(new ByteArrayInputStream(DOC));
+    r.close();
+  }
+  
+  @Benchmark
+  public void sharedReader() throws Exception {
+    XMLStreamReader r = xmlFactory.createStreamingXMLStreamReaderFactory(new ByteArrayInputStream(DOC)).create().reader();
+    r.close();
+  }
+  
+  @Benchmark
+  public void freshWriter() throws Exception {
+    Serializer s = new Serializer(new ByteArrayOutputStream());
+    s.setProcessor(new Processor(false));
+    XMLStreamWriter w = s.getXMLStreamWriter();
+    w.close();
+  }
+  
+  @Benchmark
+  public void sharedWriter() throws Exception {
+    XMLStreamWriter w = xmlFactory.createXMLStreamWriterFactory(new ByteArrayOutputStream()).create();
+    w.close();
+  }
+}
@@ -0,0 +1,88 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.gtri.util.xmlbuilder.XmlFactory;
+import org.gtri.util.xmlbuilder.XmlOutputFormat;
+import org.gtri.util.xmlbuilder.impl.XmlTrace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of a compact round trip, in documents per second, with tracing
+ * off (as in every other benchmark) and with sampled tracing on. Each runs in
+ * its own fork since XmlTrace is configured when the JVM starts. Trace 
+ * records are counted, not logged.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TracingBenchmark {
+  final AtomicLong traceCount = new AtomicLong();
+  
+  @Setup
+  public void setup() {
+    XmlTrace.setSink(new XmlTrace.Sink() {
+      @Override
+      public void trace(Class<?> source, String method, String message) {
+        traceCount.incrementAndGet();
+      }
+    });
+  }
+  
+  @Benchmark
+  @Fork(1)
+  public void tracingOff(Documents documents) {
+    roundTrip(documents);
+  }
+  
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = {
+    "-D" + XmlTrace.ENABLED_PROPERTY + "=true", 
+    "-D" + XmlTrace.SAMPLE_INTERVAL_PROPERTY + "=1000"
+  })
+  public void tracingSampled(Documents documents) {
+    roundTrip(documents);
+  }
+  
+  private static void roundTrip(Documents documents) {
+    Documents.drain(
+      documents.xmlFactory.createXmlReader(new ByteArrayInputStream(documents.xml), XmlFactory.STD_CHUNK_SIZE),
+      documents.xmlFactory.createXmlWriter(new Documents.NullOutputStream(), XmlOutputFormat.COMPACT)
+    );
+  }
+}
@@ -0,0 +1,119 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.bench;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import java.util.concurrent.TimeUnit;
+import org.gtri.util.xmlbuilder.api.XmlBatchContract;
+import org.gtri.util.xmlbuilder.api.XmlContract;
+import org.gtri.util.xmlbuilder.api.XmlEventBatch;
+import org.gtri.util.xsddatatypes.XsdAnyURI;
+import org.gtri.util.xsddatatypes.XsdNCName;
+import org.gtri.util.xsddatatypes.XsdQName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of dispatching XmlEvents to a contract that consumes every 
+ * name, value and attribute, in documents per second: one call per event to
+ * an XmlContract versus one call per chunk to an XmlBatchContract. Events
+ * are replayed from the binary event format (see XmlWriterBenchmark.replay).
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlContractBenchmark {
+  
+  @Benchmark
+  public void events(Documents documents, final Blackhole bh) {
+    XmlContract contract = new XmlContract() {
+      @Override
+      public void addXmlElement(XsdQName _qName, String _value, ImmutableMap<XsdQName, String> _attributes, ImmutableMap<XsdNCName, XsdAnyURI> _prefixToNamespaceURIMap) {
+        bh.consume(_qName);
+        bh.consume(_value);
+        for(String value : _attributes.values()) {
+          bh.consume(value);
+        }
+        bh.consume(_prefixToNamespaceURIMap.size());
+      }
+      @Override
+      public void addXmlComment(String _value) {
+        bh.consume(_value);
+      }
+      @Override
+      public void addXmlText(String _value) {
+        bh.consume(_value);
+      }
+      @Override
+      public void endXmlElement() {
+      }
+    };
+    Documents.drain(
+      documents.xmlFactory.createXmlBinaryReader(ByteStreams.newInputStreamSupplier(documents.binary), 256),
+      documents.xmlFactory.createXmlContractWriter(contract)
+    );
+  }
+  
+  @Benchmark
+  public void batch(Documents documents, final Blackhole bh) {
+    XmlBatchContract contract = new XmlBatchContract() {
+      @Override
+      public void addXmlEvents(XmlEventBatch batch) {
+        for(int i=0;i<batch.size();++i) {
+          switch(batch.eventType(i)) {
+            case XmlEventBatch.START_ELEMENT:
+              bh.consume(batch.qName(i));
+              bh.consume(batch.text(i));
+              for(int j=0;j<batch.attributeCount(i);++j) {
+                bh.consume(batch.attributeValue(i, j));
+              }
+              bh.consume(batch.prefixCount(i));
+              break;
+            case XmlEventBatch.TEXT:
+            case XmlEventBatch.COMMENT:
+              bh.consume(batch.text(i));
+              break;
+          }
+        }
+      }
+    };
+    Documents.drain(
+      documents.xmlFactory.createXmlBinaryReader(ByteStreams.newInputStreamSupplier(documents.binary), 256),
+      documents.xmlFactory.createXmlContractWriter(contract)
+    );
+  }
+}
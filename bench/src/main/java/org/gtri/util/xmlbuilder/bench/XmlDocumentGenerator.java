@@ -0,0 +1,100 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.bench;
+
+import java.nio.charset.Charset;
+
+/**
+ * Generates synthetic record-oriented documents for benchmarks. Output is 
+ * deterministic for the same parameters.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public final class XmlDocumentGenerator {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  
+  private final int elementCount;
+  private final int depth;
+  private final int attributeCount;
+  private final int namespaceCount;
+  
+  /**
+   * @param elementCount the approximate total number of elements
+   * @param depth the depth of each record below the root
+   * @param attributeCount the number of attributes on each element
+   * @param namespaceCount the number of namespaces declared on the root, 
+   * elements and every other attribute cycle through these
+   */
+  public XmlDocumentGenerator(int elementCount, int depth, int attributeCount, int namespaceCount) {
+    if(elementCount < 1 || depth < 1 || attributeCount < 0 || namespaceCount < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.elementCount = elementCount;
+    this.depth = depth;
+    this.attributeCount = attributeCount;
+    this.namespaceCount = namespaceCount;
+  }
+  
+  public byte[] generate() {
+    StringBuilder out = new StringBuilder(elementCount * (64 + attributeCount * 24));
+    out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    out.append("<root xmlns=\"urn:bench\"");
+    for(int i=0;i<namespaceCount;++i) {
+      out.append(" xmlns:ns").append(i).append("=\"urn:bench:ns").append(i).append('"');
+    }
+    out.append(">\n");
+    int n = 0;
+    for(int record=0;n < elementCount;++record) {
+      n += appendElement(out, record, 1);
+      out.append('\n');
+    }
+    out.append("</root>\n");
+    return out.toString().getBytes(UTF8);
+  }
+  
+  private int appendElement(StringBuilder out, int index, int level) {
+    String name = qName("e" + level, index + level);
+    out.append('<').append(name);
+    for(int i=0;i<attributeCount;++i) {
+      out.append(' ')
+        .append(i % 2 == 0 ? "a" + i : qName("a" + i, index + i))
+        .append("=\"v").append(index).append('_').append(i).append('"');
+    }
+    out.append('>');
+    int count = 1;
+    if(level < depth) {
+      // Two children per element, the second is a leaf
+      count += appendElement(out, index, level + 1);
+      out.append("<leaf>").append(index).append("</leaf>");
+      count++;
+    } else {
+      out.append("text &amp; value ").append(index);
+    }
+    out.append("</").append(name).append('>');
+    return count;
+  }
+  
+  private String qName(String localName, int n) {
+    return namespaceCount == 0 ? localName : "ns" + (n % namespaceCount) + ":" + localName;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.bench;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLStreamException;
+import org.gtri.util.xmlbuilder.impl.XmlChunkBudget;
+import org.gtri.util.xmlbuilder.impl.XmlCursor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of parsing a document into XmlEvents, in documents per second.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlReaderBenchmark {
+  @Param({"1", "16", "256", "4096"})
+  public int chunkSize;
+  
+  @Benchmark
+  public int read(Documents documents, Blackhole bh) {
+    return Documents.drain(
+      documents.xmlFactory.createXmlReader(new ByteArrayInputStream(documents.xml), chunkSize), 
+      bh
+    );
+  }
+  
+  @Benchmark
+  public int readAdaptive(Documents documents, Blackhole bh) {
+    return Documents.drain(
+      documents.xmlFactory.withChunkBudget(XmlChunkBudget.STD()).createXmlReader(new ByteArrayInputStream(documents.xml), chunkSize), 
+      bh
+    );
+  }
+  
+  @Benchmark
+  public int readBinary(Documents documents, Blackhole bh) {
+    return Documents.drain(
+      documents.xmlFactory.createXmlBinaryReader(ByteStreams.newInputStreamSupplier(documents.binary), chunkSize), 
+      bh
+    );
+  }
+  
+  @Benchmark
+  public int readParallel(Documents documents, Blackhole bh) {
+    return Documents.drain(
+      documents.xmlFactory.createParallelXmlReader(
+        ByteStreams.newInputStreamSupplier(documents.xml), 
+        documents.xml.length,
+        Runtime.getRuntime().availableProcessors()
+      ), 
+      bh
+    );
+  }
+  
+  @Benchmark
+  public int readCursor(Documents documents, Blackhole bh) throws XMLStreamException {
+    XmlCursor cursor = documents.xmlFactory.createXmlCursor(new ByteArrayInputStream(documents.xml));
+    int count = 0;
+    while(cursor.next()) {
+      bh.consume(cursor.eventType());
+      count++;
+    }
+    cursor.close();
+    return count;
+  }
+}
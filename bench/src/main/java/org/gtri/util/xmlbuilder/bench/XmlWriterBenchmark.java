@@ -0,0 +1,72 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.bench;
+
+import com.google.common.io.ByteStreams;
+import java.util.concurrent.TimeUnit;
+import org.gtri.util.xmlbuilder.XmlOutputFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of writing XmlEvents, in documents per second. Events are 
+ * replayed from the binary event format, whose cost alone is measured by
+ * replay, so that the writer cost is the difference.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlWriterBenchmark {
+  @Param({"PRETTY", "COMPACT"})
+  public XmlOutputFormat format;
+  
+  @Benchmark
+  public void write(Documents documents) {
+    Documents.drain(
+      documents.xmlFactory.createXmlBinaryReader(ByteStreams.newInputStreamSupplier(documents.binary), 256),
+      documents.xmlFactory.createXmlWriter(new Documents.NullOutputStream(), format)
+    );
+  }
+  
+  @Benchmark
+  public int replay(Documents documents, Blackhole bh) {
+    return Documents.drain(
+      documents.xmlFactory.createXmlBinaryReader(ByteStreams.newInputStreamSupplier(documents.binary), 256),
+      bh
+    );
+  }
+}
@@ -0,0 +1,209 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import java.nio.ByteBuffer
+import javax.xml.stream.{XMLStreamConstants, XMLStreamException}
+import com.fasterxml.aalto.{AsyncByteBufferFeeder, AsyncXMLInputFactory, AsyncXMLStreamReader}
+import org.gtri.util.scala.exelog.noop._
+import org.gtri.util.issue.Issues
+import org.gtri.util.issue.api.{ Issue, IssueHandlingStrategy }
+import org.gtri.util.iteratee.api._
+import org.gtri.util.iteratee.impl.iteratees.Chunk
+import org.gtri.util.iteratee.impl.ImmutableBufferConversions._
+import org.gtri.util.iteratee.impl.enumerators._
+import org.gtri.util.xmlbuilder.api.{XmlEvent, XmlLocatorMode}
+import org.gtri.util.xmlbuilder.impl.events._
+
+object AsyncXmlReader {
+  implicit val thisclass =  classOf[AsyncXmlReader]
+  implicit val log =        Logger.getLog(thisclass)
+
+  /**
+   * @return the progress of a reader that has been fed byteCount bytes of 
+   * input. The total size of the input is not known.
+   */
+  def progressOf(byteCount : Long) : Progress = new Progress(0, math.min(byteCount, Int.MaxValue).toInt, 0)
+}
+
+/**
+ * A non-blocking reader that is fed input as it arrives instead of pulling
+ * it from a stream. Stepping a Cont state parses the input fed so far. When
+ * all input fed so far has been parsed the next state is a NeedsInput state.
+ * A NeedsInput state makes no progress when stepped; the owner of the state
+ * must call feed (or endOfInput) on it when more input arrives, and continue
+ * stepping the returned state. This allows a single thread to parse many 
+ * documents concurrently, stepping each one only when input is available.
+ * The progress of a state counts the bytes fed so far.
+ *
+ * Because a NeedsInput state can not make progress by itself, an 
+ * AsyncXmlReader must be driven by its owner rather than by a Plan.
+ */
+class AsyncXmlReader(
+  xmlInputFactory :         AsyncXMLInputFactory,
+  issueHandlingStrategy :   IssueHandlingStrategy,
+  val chunkSize :           Int = 256,
+  val nameCache :           XmlNameCache = new XmlNameCache(),
+  val locatorMode :         XmlLocatorMode = XmlLocatorMode.FULL,
+  val maxTextLength :       Int = XmlEventParser.NO_MAX_TEXT_LENGTH,
+  val projection :          XmlProjection = null
+) extends Enumerator[XmlEvent] {
+  import AsyncXmlReader._
+
+  require(chunkSize > 0)
+
+  def initialState() = {
+    try {
+      val reader = xmlInputFactory.createAsyncForByteBuffer()
+      val parser = new XmlEventParser(reader, nameCache, new XmlFileLocator.Capture(locatorMode), maxTextLength, projection)
+      NeedsInput(parser, reader, 0)
+    } catch {
+      case e : Exception =>
+        log.fatal("Failed to create reader",e)
+        val msg : String = e.getMessage
+        val issue : Issue = Issues.INSTANCE.fatalError(msg)
+        Failure[XmlEvent](
+          progress = Progress.empty,
+          issues = Chunk(issue)
+        )
+    }
+  }
+
+  private def fatal(reader : AsyncXMLStreamReader[AsyncByteBufferFeeder], progress : Progress, e : XMLStreamException) = {
+    log.fatal("Failed to parse input",e)
+    reader.close()
+    val issue : Issue = Issues.INSTANCE.fatalError(e.getMessage)
+    Failure[XmlEvent](
+      progress = progress,
+      issues = Chunk(issue)
+    )
+  }
+
+  /**
+   * Waiting for input
+   * @param byteCount the number of bytes fed so far
+   */
+  case class NeedsInput(
+    parser :      XmlEventParser,
+    reader :      AsyncXMLStreamReader[AsyncByteBufferFeeder],
+    byteCount :   Long
+  ) extends Enumerator.State[XmlEvent] {
+
+    def statusCode = StatusCode.CONTINUE
+
+    def progress = progressOf(byteCount)
+
+    /** No progress is possible until input is fed */
+    def step() = Result(this, IndexedSeq[XmlEvent]())
+
+    /**
+     * Feed the next segment of input. The reader consumes the buffer's 
+     * remaining bytes as it is stepped, so the buffer must not be modified 
+     * until the reader returns to a NeedsInput state.
+     * @param buffer
+     * @return the state that parses the input
+     */
+    def feed(buffer : ByteBuffer) : Enumerator.State[XmlEvent] = {
+      try {
+        val remaining = buffer.remaining
+        reader.getInputFeeder.feedInput(buffer)
+        Cont(parser, reader, byteCount + remaining, false)
+      } catch {
+        case e : XMLStreamException => fatal(reader, progress, e)
+      }
+    }
+
+    /**
+     * Signal that there is no more input
+     * @return the state that parses the remaining input
+     */
+    def endOfInput() : Enumerator.State[XmlEvent] = {
+      reader.getInputFeeder.endOfInput()
+      Cont(parser, reader, byteCount, true)
+    }
+  }
+
+  /**
+   * Parsing input that has been fed
+   * @param byteCount the number of bytes fed so far
+   * @param eoi TRUE if there is no more input
+   */
+  case class Cont(
+    parser :      XmlEventParser,
+    reader :      AsyncXMLStreamReader[AsyncByteBufferFeeder],
+    byteCount :   Long,
+    eoi :         Boolean
+  ) extends Enumerator.State[XmlEvent] {
+
+    def statusCode = StatusCode.CONTINUE
+
+    def progress = progressOf(byteCount)
+
+    private def needsInput = reader.getEventType == AsyncXMLStreamReader.EVENT_INCOMPLETE
+
+    private def atEndDocument = reader.getEventType == XMLStreamConstants.END_DOCUMENT
+
+    def step() = {
+      try {
+        // Fill buffer with nextEvents until buffer full or input exhausted
+        val buffer = new collection.mutable.ArrayBuffer[XmlEvent](chunkSize)
+        var exhausted = false
+        while(buffer.size < chunkSize && !exhausted && !atEndDocument) {
+          val events = parser.nextEvents()
+          exhausted = events.isEmpty && needsInput
+          buffer ++= events.reverse
+        }
+        if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+          XmlTrace.trace(thisclass, "step", s"Filled buffer with ${buffer.size} events exhausted=$exhausted eoi=$eoi")
+        }
+
+        val immutableCopyOfBuffer : IndexedSeq[XmlEvent] = buffer.toIndexedSeq
+        if(exhausted && eoi) {
+          // Input exhausted after end of input - document is incomplete
+          reader.close()
+          val issue : Issue = Issues.INSTANCE.fatalError("Unexpected end of input")
+          Failure[XmlEvent](
+            progress = progress,
+            output = immutableCopyOfBuffer,
+            issues = Chunk(issue)
+          )
+        } else if(exhausted) {
+          // Input exhausted - wait for more input
+          Result(NeedsInput(parser, reader, byteCount), immutableCopyOfBuffer)
+        } else if(!atEndDocument || buffer.nonEmpty) {
+          // Buffer full - continue
+          Result(this, immutableCopyOfBuffer)
+        } else {
+          // End of document - close reader and return Success
+          reader.close()
+          Success[XmlEvent](
+            progress = progress,
+            output = Chunk(EndXmlDocumentEvent(parser.getLocatorFromReader))
+          )
+        }
+      } catch {
+        case e : XMLStreamException => fatal(reader, progress, e)
+      }
+    }
+  }
+}
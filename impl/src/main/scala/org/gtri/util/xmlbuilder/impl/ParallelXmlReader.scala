@@ -0,0 +1,300 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import java.io.{ByteArrayInputStream, InputStream}
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.xml.stream.XMLInputFactory
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.concurrent.duration.Duration
+import scala.concurrent.forkjoin.ForkJoinPool
+import com.google.common.io.InputSupplier
+import org.gtri.util.scala.exelog.noop._
+import org.gtri.util.issue.Issues
+import org.gtri.util.issue.api.{ Issue, IssueHandlingStrategy }
+import org.gtri.util.iteratee.api._
+import org.gtri.util.iteratee.impl.iteratees.Chunk
+import org.gtri.util.iteratee.impl.ImmutableBufferConversions._
+import org.gtri.util.iteratee.impl.enumerators._
+import org.gtri.util.xmlbuilder.api.{XmlEvent, XmlLocatorMode}
+import org.gtri.util.xmlbuilder.impl.events._
+
+object ParallelXmlReader {
+  implicit val thisclass =  classOf[ParallelXmlReader]
+  implicit val log =        Logger.getLog(thisclass)
+
+  val STD_RECORDS_PER_SEGMENT = 256
+  val STD_MAX_SEGMENT_BYTES = 1024 * 1024
+
+  /**
+   * Wait for a future to complete. On a thread of a ForkJoinPool the pool
+   * is told that the thread is blocked, so that it may add a thread to run 
+   * the tasks being waited on.
+   */
+  def await[T](future : Future[T]) : Future[T] = {
+    ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker {
+      def block() = {
+        Await.ready(future, Duration.Inf)
+        true
+      }
+      def isReleasable = future.isCompleted
+    })
+    future
+  }
+}
+
+/**
+ * A reader for record-oriented documents: a root element with many 
+ * independent child elements (records). The input is split at record
+ * boundaries by an XmlByteScanner into segments of records. Each segment is 
+ * wrapped in a copy of the root start tag, so that it is parsed with the 
+ * root's namespace context, and the segments are parsed concurrently on the
+ * executor. Events are output in document order, one chunk per segment.
+ *
+ * At most parallelism * 2 segments are read ahead, which bounds memory use.
+ * Locators of events inside records are relative to the segment.
+ *
+ * The input must use an ASCII compatible encoding such as UTF-8. Entities
+ * declared in an internal DTD subset are not available to the segments.
+ */
+class ParallelXmlReader(
+  supplier :                InputSupplier[_ <: InputStream],
+  totalByteSize :           Long,
+  xmlInputFactory :         XMLInputFactory,
+  executor :                ExecutorService,
+  issueHandlingStrategy :   IssueHandlingStrategy,
+  val parallelism :         Int = Runtime.getRuntime.availableProcessors,
+  val recordsPerSegment :   Int = ParallelXmlReader.STD_RECORDS_PER_SEGMENT,
+  val maxSegmentBytes :     Int = ParallelXmlReader.STD_MAX_SEGMENT_BYTES,
+  val nameCache :           XmlNameCache = new XmlNameCache(),
+  val locatorMode :         XmlLocatorMode = XmlLocatorMode.FULL
+) extends Enumerator[XmlEvent] {
+  import ParallelXmlReader._
+
+  require(parallelism > 0)
+  require(recordsPerSegment > 0)
+  require(maxSegmentBytes > 0)
+
+  private implicit val executionContext = ExecutionContext.fromExecutorService(executor)
+
+  def initialState() = {
+    try {
+      val in = supplier.getInput
+      val scanner = new XmlByteScanner(in)
+      scanner.capture = new XmlByteScanner.Bytes()
+
+      // Scan prolog through root start tag
+      var xmlDeclaration = Array[Byte]()
+      var token = scanner.next()
+      if(token == XmlByteScanner.PROCESSING_INSTRUCTION && scanner.tokenOffset == 0) {
+        val pi = scanner.capture.toArray
+        if(new String(pi, "UTF-8").startsWith("<?xml ")) {
+          xmlDeclaration = pi
+        }
+      }
+      while(token != XmlByteScanner.START_TAG && token != XmlByteScanner.EMPTY_TAG && token != XmlByteScanner.EOF) {
+        token = scanner.next()
+      }
+      val rootStartTag = scanner.tagBytes
+      val rootEndTag = s"</${XmlByteScanner.tagName(rootStartTag)}>".getBytes("UTF-8")
+
+      if(token == XmlByteScanner.START_TAG) {
+        // Parse prolog and root start tag
+        val prolog = scanner.capture.toArray
+        scanner.capture.clear()
+        val header = Future.successful(parse(prolog ++ rootEndTag, dropLastEndElement = true))
+        Cont(in, scanner, xmlDeclaration, rootStartTag, rootEndTag, header :: Nil, eoi = false, new AtomicBoolean(false))
+      } else {
+        // Root is empty or missing, parse entire document
+        while(scanner.next() != XmlByteScanner.EOF) { }
+        val document = Future.successful(parse(scanner.capture.toArray, dropLastEndElement = false))
+        Cont(in, scanner, xmlDeclaration, rootStartTag, rootEndTag, document :: Nil, eoi = true, new AtomicBoolean(false))
+      }
+    } catch {
+      case e : Exception =>
+        log.fatal("Failed to open input",e)
+        val msg : String = e.getMessage
+        val issue : Issue = Issues.INSTANCE.fatalError(msg)
+        Failure[XmlEvent](
+          progress = Progress.empty,
+          issues = Chunk(issue)
+        )
+    }
+  }
+
+  /**
+   * Parse a document
+   * @param dropLastEndElement TRUE to drop the last end element event (the copy of the root end tag)
+   * @return events of the document except the end document event
+   */
+  private def parse(document : Array[Byte], dropLastEndElement : Boolean) : IndexedSeq[XmlEvent] = {
+    val reader = xmlInputFactory.createXMLStreamReader(new ByteArrayInputStream(document))
+    try {
+      val parser = new XmlEventParser(reader, nameCache, new XmlFileLocator.Capture(locatorMode))
+      val buffer = new collection.mutable.ArrayBuffer[XmlEvent]()
+      while(parser.hasNext) {
+        buffer ++= parser.nextEvents().reverse.filterNot { _.isInstanceOf[EndXmlDocumentEvent] }
+      }
+      if(dropLastEndElement) {
+        val i = buffer.lastIndexWhere { _.isInstanceOf[EndXmlElementEvent] }
+        if(i >= 0) buffer.remove(i)
+      }
+      buffer.toIndexedSeq
+    } finally {
+      reader.close()
+    }
+  }
+
+  /**
+   * Parse a segment of records wrapped in the root start tag
+   */
+  private def parseSegment(xmlDeclaration : Array[Byte], rootStartTag : Array[Byte], rootEndTag : Array[Byte], segment : Array[Byte], isFinal : Boolean) : IndexedSeq[XmlEvent] = {
+    val document = new XmlByteScanner.Bytes(xmlDeclaration.length + rootStartTag.length + segment.length + rootEndTag.length)
+    document ++= xmlDeclaration
+    document ++= rootStartTag
+    document ++= segment
+    if(!isFinal) {
+      document ++= rootEndTag
+    }
+    val events = parse(document.toArray, dropLastEndElement = !isFinal)
+    // Drop the start document event and the copy of the root start element
+    val i = events.indexWhere { _.isInstanceOf[StartXmlElementEvent] }
+    val wrapper = events(i).asInstanceOf[StartXmlElementEvent]
+    val rest = events.drop(i + 1)
+    // A segment of only text is merged into the value of the wrapper
+    wrapper.element.value match {
+      case Some(text) => AddXmlTextEvent(text, wrapper.locator) +: rest
+      case None => rest
+    }
+  }
+
+  case class Cont(
+    in :              InputStream,
+    scanner :         XmlByteScanner,
+    xmlDeclaration :  Array[Byte],
+    rootStartTag :    Array[Byte],
+    rootEndTag :      Array[Byte],
+    pending :         List[Future[IndexedSeq[XmlEvent]]],
+    eoi :             Boolean,
+    cancelled :       AtomicBoolean
+  ) extends Enumerator.State[XmlEvent] {
+
+    def statusCode = StatusCode.CONTINUE
+
+    def progress = if(totalByteSize > 0) XmlReader.progressOf(scanner.offset, totalByteSize) else Progress.empty
+
+    /**
+     * Scan the next segment of records
+     * @return the segment and TRUE if it is the final segment
+     */
+    private def scanSegment() : (Array[Byte], Boolean) = {
+      var records = 0
+      var isFinal = false
+      var done = false
+      while(!done) {
+        val token = scanner.next()
+        if(token == XmlByteScanner.EOF) {
+          isFinal = true
+          done = true
+        } else if(token == XmlByteScanner.END_TAG && scanner.tokenDepth == 1) {
+          // Root end tag - consume the epilogue
+          while(scanner.next() != XmlByteScanner.EOF) { }
+          isFinal = true
+          done = true
+        } else if(
+          (token == XmlByteScanner.END_TAG && scanner.tokenDepth == 2) ||
+          (token == XmlByteScanner.EMPTY_TAG && scanner.tokenDepth == 2)
+        ) {
+          records += 1
+          done = records >= recordsPerSegment || scanner.capture.size >= maxSegmentBytes
+        }
+      }
+      val segment = scanner.capture.toArray
+      scanner.capture.clear()
+      (segment, isFinal)
+    }
+
+    /**
+     * Cancel the segments that have not started parsing and wait for the 
+     * segments that have, so that no parse outlives the failed reader
+     */
+    private def cancel(pending : List[Future[IndexedSeq[XmlEvent]]]) {
+      cancelled.set(true)
+      for(future <- pending) {
+        try {
+          await(future)
+        } catch {
+          case e : Exception =>
+        }
+      }
+    }
+
+    def step() = {
+      var nextPending = pending
+      try {
+        // Read ahead and submit segments
+        var nextEoi = eoi
+        while(!nextEoi && nextPending.size < parallelism * 2) {
+          val (segment, isFinal) = scanSegment()
+          nextEoi = isFinal
+          nextPending = nextPending :+ Future {
+            if(cancelled.get) {
+              IndexedSeq.empty[XmlEvent]
+            } else {
+              parseSegment(xmlDeclaration, rootStartTag, rootEndTag, segment, isFinal)
+            }
+          }
+        }
+        if(nextEoi) {
+          in.close()
+        }
+
+        if(nextPending.isEmpty) {
+          // No more segments - return Success
+          Success[XmlEvent](
+            progress = progress,
+            output = Chunk(EndXmlDocumentEvent(XmlFileLocator.NONE))
+          )
+        } else {
+          // Wait for the next segment in document order
+          val events = Await.result(await(nextPending.head), Duration.Inf)
+          if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+            XmlTrace.trace(thisclass, "step", s"Segment with ${events.size} events pending=${nextPending.size - 1} eoi=$nextEoi")
+          }
+          Result(copy(pending = nextPending.tail, eoi = nextEoi), events)
+        }
+      } catch {
+        case e : Exception =>
+          log.fatal("Failed to parse segment",e)
+          cancel(nextPending)
+          in.close()
+          val issue : Issue = Issues.INSTANCE.fatalError(e.getMessage)
+          Failure[XmlEvent](
+            progress = progress,
+            issues = Chunk(issue)
+          )
+      }
+    }
+  }
+}
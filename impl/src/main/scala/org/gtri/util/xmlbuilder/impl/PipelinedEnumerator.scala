@@ -0,0 +1,185 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import java.io.Closeable
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import org.gtri.util.scala.exelog.noop._
+import org.gtri.util.issue.Issues
+import org.gtri.util.issue.api.Issue
+import org.gtri.util.iteratee.api._
+import org.gtri.util.iteratee.impl.iteratees.Chunk
+import org.gtri.util.iteratee.impl.enumerators._
+
+object PipelinedEnumerator {
+  implicit val thisclass =  classOf[PipelinedEnumerator[_]]
+  implicit val log =        Logger.getLog(thisclass)
+
+  val STD_CAPACITY = 16
+}
+
+/**
+ * An enumerator that steps another enumerator on a dedicated thread, so that the source is read while the previous chunks are consumed on the
+ * caller's thread. Results of the source are passed, in order, through a 
+ * ring buffer of capacity results; the source waits while the buffer is 
+ * full and stepping waits while it is empty. Output, issues and progress of
+ * the source are returned by the steps of this enumerator as they are 
+ * produced.
+ *
+ * The source runs on its own daemon thread until it is done. The thread 
+ * spends most of its time waiting on the buffer, so it is not taken from a
+ * shared pool, where it could starve tasks the source itself waits on (such
+ * as the segments of a ParallelXmlReader).
+ *
+ * A state of this enumerator should be stepped only once. A consumer that 
+ * stops stepping before the source is done (e.g. a plan whose iteratee 
+ * failed) must call cancel on the enumerator (or on its state) to release 
+ * the source's thread. Once cancelled, the source stops at its next step and 
+ * a source state that is Closeable (such as the state of an XmlReader) is 
+ * closed, which closes its input.
+ */
+class PipelinedEnumerator[A <: AnyRef](
+  val source :    Enumerator[A],
+  val capacity :  Int = PipelinedEnumerator.STD_CAPACITY
+) extends Enumerator[A] {
+  import PipelinedEnumerator._
+
+  require(capacity > 0)
+
+  // The buffers of the sources that are running
+  private val buffers = Collections.newSetFromMap(new ConcurrentHashMap[SpscRingBuffer[Enumerator.State.Result[A]], java.lang.Boolean])
+
+  /**
+   * Stop stepping the sources of all states of this enumerator. Results 
+   * produced but not yet taken are discarded.
+   */
+  def cancel() {
+    val i = buffers.iterator
+    while(i.hasNext) {
+      i.next().close()
+    }
+  }
+
+  def initialState() = {
+    val buffer = new SpscRingBuffer[Enumerator.State.Result[A]](capacity)
+    buffers.add(buffer)
+    // Start stepping the source on a dedicated thread
+    val producer = new Thread(new Runnable {
+      def run() {
+        produce(buffer)
+      }
+    }, "PipelinedEnumerator")
+    producer.setDaemon(true)
+    producer.start()
+    Cont(buffer, Progress.empty)
+  }
+
+  private def produce(buffer : SpscRingBuffer[Enumerator.State.Result[A]]) {
+    var progress = Progress.empty
+    var state : Enumerator.State[A] = null
+    try {
+      state = source.initialState()
+      if(state.statusCode.isDone) {
+        // Source failed to start - pass its final state
+        buffer.put(state match {
+          case result : Enumerator.State.Result[A] => result
+          case _ => Result(next = state)
+        })
+      }
+      while(!state.statusCode.isDone && !buffer.isClosed) {
+        val result = state.step()
+        buffer.put(result)
+        state = result.next
+        progress = state.progress
+      }
+    } catch {
+      case e : Throwable =>
+        log.fatal("Source failed",e)
+        val issue : Issue = Issues.INSTANCE.fatalError(e.getMessage)
+        buffer.put(Failure[A](
+          progress = progress,
+          issues = Chunk(issue)
+        ))
+    } finally {
+      // Results already put may still be taken
+      buffer.close()
+      buffers.remove(buffer)
+      if(state != null && !state.statusCode.isDone) {
+        // Cancelled or failed - close the source
+        state match {
+          case closeable : Closeable =>
+            try {
+              closeable.close()
+            } catch {
+              case e : Exception =>
+                log.warn("Failed to close source: " + e.getMessage)
+            }
+          case _ =>
+        }
+      }
+    }
+  }
+
+  /**
+   * Waiting for the results of the source
+   * @param progress the progress of the source as of the last result
+   */
+  case class Cont(
+    buffer :        SpscRingBuffer[Enumerator.State.Result[A]],
+    val progress :  Progress
+  ) extends Enumerator.State[A] {
+
+    def statusCode = StatusCode.CONTINUE
+
+    def step() = {
+      // Take the next result of the source
+      val result = buffer.take()
+      if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+        XmlTrace.trace(thisclass, "step", s"Took result=${result != null} buffered=${buffer.size}")
+      }
+      if(result == null) {
+        // Cancelled
+        val issue : Issue = Issues.INSTANCE.fatalError("Pipeline was cancelled")
+        Failure[A](
+          progress = progress,
+          issues = Chunk(issue)
+        )
+      } else if(result.next.statusCode.isDone) {
+        // Source is done - return its final result
+        buffer.close()
+        result
+      } else {
+        Result(Cont(buffer, result.next.progress), result.output, result.issues)
+      }
+    }
+
+    /**
+     * Stop stepping the source. Results produced but not yet taken are 
+     * discarded.
+     */
+    def cancel() {
+      buffer.close()
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicReferenceArray}
+import java.util.concurrent.locks.LockSupport
+import scala.concurrent.forkjoin.ForkJoinPool
+
+object SpscRingBuffer {
+  /** The number of times to retry before parking */
+  val SPIN_COUNT = 100
+  /** The maximum time to park before retrying (bounds the delay of a missed wake up) */
+  val PARK_NANOS = 100000L
+}
+
+/**
+ * A bounded queue for exactly one producer thread and one consumer thread. 
+ * offer and poll are lock free. put and take wait while the buffer is full
+ * or empty, first by spinning and then by parking until woken by the other
+ * thread. Closing the buffer releases a waiting producer or consumer. A 
+ * thread of a ForkJoinPool parks as a managed blocker, so that the pool may
+ * add a thread while it waits.
+ * @param requestedCapacity the minimum capacity (rounded up to a power of two)
+ */
+final class SpscRingBuffer[A <: AnyRef](requestedCapacity : Int) {
+  import SpscRingBuffer._
+
+  require(requestedCapacity > 0)
+
+  val capacity = {
+    var c = 1
+    while(c < requestedCapacity) {
+      c <<= 1
+    }
+    c
+  }
+
+  private[this] val mask = capacity - 1
+  private[this] val items = new AtomicReferenceArray[A](capacity)
+  // Index of the next item to poll, only written by the consumer
+  private[this] val head = new AtomicLong(0)
+  // Index of the next item to offer, only written by the producer
+  private[this] val tail = new AtomicLong(0)
+  @volatile private[this] var waitingProducer : Thread = null
+  @volatile private[this] var waitingConsumer : Thread = null
+  @volatile private[this] var closed = false
+
+  // Parks the producer until the buffer is not full or is closed
+  private[this] val notFull = new ForkJoinPool.ManagedBlocker {
+    def isReleasable = closed || size != capacity
+    def block() = {
+      LockSupport.parkNanos(SpscRingBuffer.this, PARK_NANOS)
+      isReleasable
+    }
+  }
+
+  // Parks the consumer until the buffer is not empty or is closed
+  private[this] val notEmpty = new ForkJoinPool.ManagedBlocker {
+    def isReleasable = closed || size != 0
+    def block() = {
+      LockSupport.parkNanos(SpscRingBuffer.this, PARK_NANOS)
+      isReleasable
+    }
+  }
+
+  def size = (tail.get - head.get).toInt
+
+  def isClosed = closed
+
+  /**
+   * Close the buffer. Items already in the buffer may still be taken.
+   */
+  def close() {
+    closed = true
+    LockSupport.unpark(waitingProducer)
+    LockSupport.unpark(waitingConsumer)
+  }
+
+  /**
+   * Add an item if the buffer is not full. Producer thread only.
+   * @return TRUE if the item was added
+   */
+  def offer(item : A) : Boolean = {
+    val t = tail.get
+    if(t - head.get == capacity) {
+      false
+    } else {
+      items.lazySet((t & mask).toInt, item)
+      tail.lazySet(t + 1)
+      val consumer = waitingConsumer
+      if(consumer != null) {
+        LockSupport.unpark(consumer)
+      }
+      true
+    }
+  }
+
+  /**
+   * Remove the next item if the buffer is not empty. Consumer thread only.
+   * @return the item or null if the buffer is empty
+   */
+  def poll() : A = {
+    val h = head.get
+    if(h == tail.get) {
+      null.asInstanceOf[A]
+    } else {
+      val i = (h & mask).toInt
+      val item = items.get(i)
+      items.lazySet(i, null.asInstanceOf[A])
+      head.lazySet(h + 1)
+      val producer = waitingProducer
+      if(producer != null) {
+        LockSupport.unpark(producer)
+      }
+      item
+    }
+  }
+
+  /**
+   * Add an item, waiting while the buffer is full. Producer thread only.
+   * @return TRUE if the item was added, FALSE if the buffer was closed
+   */
+  def put(item : A) : Boolean = {
+    var spins = 0
+    while(!closed && !offer(item)) {
+      if(spins < SPIN_COUNT) {
+        spins += 1
+        Thread.`yield`()
+      } else {
+        waitingProducer = Thread.currentThread
+        ForkJoinPool.managedBlock(notFull)
+        waitingProducer = null
+      }
+    }
+    !closed
+  }
+
+  /**
+   * Remove the next item, waiting while the buffer is empty. Consumer thread
+   * only.
+   * @return the item or null if the buffer is empty and closed
+   */
+  def take() : A = {
+    var spins = 0
+    var item = poll()
+    while(item == null && !closed) {
+      if(spins < SPIN_COUNT) {
+        spins += 1
+        Thread.`yield`()
+      } else {
+        waitingConsumer = Thread.currentThread
+        ForkJoinPool.managedBlock(notEmpty)
+        waitingConsumer = null
+      }
+      item = poll()
+    }
+    if(item == null) {
+      // Closed - take any item added before the buffer was closed
+      poll()
+    } else {
+      item
+    }
+  }
+}
@@ -0,0 +1,385 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.impl
+
+import java.io.{EOFException, IOException, InputStream, OutputStream}
+import java.nio.charset.Charset
+import org.gtri.util.issue.api.DiagnosticLocator
+import org.gtri.util.xsddatatypes.{XsdAnyURI, XsdNCName, XsdQName}
+import org.gtri.util.xmlbuilder.api.XmlEvent
+import org.gtri.util.xmlbuilder.impl.events._
+
+/**
+ * A compact binary encoding of an XmlEvent stream.
+ *
+ * Layout:
+ * {{{
+ * header   := MAGIC(4 bytes) VERSION(1 byte) FLAGS(1 byte)
+ * record   := TAG(1 byte) payload [locator if FLAG_LOCATORS]
+ * }}}
+ * Names, namespace URIs, prefixes and locator ids are written through a
+ * per-document string table: the first occurrence of a string is written
+ * inline and assigned the next id, later occurrences are written as the id.
+ * Text and attribute values are always written inline. Integers are written
+ * as unsigned LEB128 varints.
+ */
+object XmlBinaryFormat {
+  val MAGIC = Array[Byte](0x58, 0x45, 0x56, 0x42) // XEVB
+  final val VERSION = 1
+
+  final val FLAG_LOCATORS = 0x01
+
+  final val TAG_EOF = 0
+  final val TAG_START_DOCUMENT = 1
+  final val TAG_END_DOCUMENT = 2
+  final val TAG_START_ELEMENT = 3
+  final val TAG_END_ELEMENT = 4
+  final val TAG_TEXT = 5
+  final val TAG_COMMENT = 6
+
+  final val LOCATOR_NONE = 0
+  final val LOCATOR_FULL = 1
+  final val LOCATOR_LINE_COLUMN = 2
+
+  val UTF8 = Charset.forName("UTF-8")
+
+  /**
+   * Encodes XmlEvents to a stream. An encoder holds the string table of one
+   * document and is not thread safe.
+   */
+  class Encoder(out : OutputStream, val includeLocators : Boolean) {
+    private[this] val stringTable = new java.util.HashMap[String, Integer]
+
+    def writeHeader() {
+      out.write(MAGIC)
+      out.write(VERSION)
+      out.write(if(includeLocators) FLAG_LOCATORS else 0)
+    }
+
+    def writeEOF() {
+      out.write(TAG_EOF)
+    }
+
+    /** 
+     * Checkpoints are positions in a particular input and are not encoded
+     * @return FALSE if the event type is not supported by the format 
+     */
+    def write(event : XmlEvent) : Boolean = {
+      event match {
+        case e:StartXmlDocumentEvent =>
+          out.write(TAG_START_DOCUMENT)
+          writeString(e.encoding)
+          writeString(e.version)
+          out.write(if(e.isStandAlone) 1 else 0)
+          writeString(e.characterEncodingScheme)
+          writeLocator(e.locator)
+          true
+        case e:EndXmlDocumentEvent =>
+          out.write(TAG_END_DOCUMENT)
+          writeLocator(e.locator)
+          true
+        case e:StartXmlElementEvent =>
+          val element = e.element
+          out.write(TAG_START_ELEMENT)
+          writeQName(element.qName)
+          writeString(element.value.orNull)
+          writeVarInt(element.attributeCount)
+          var i = 0
+          while(i < element.attributeCount) {
+            writeQName(element.attributeName(i))
+            writeString(element.attributeValue(i))
+            i += 1
+          }
+          writeVarInt(element.prefixCount)
+          i = 0
+          while(i < element.prefixCount) {
+            writeRef(element.prefix(i).toString)
+            writeRef(element.namespaceURI(i).toString)
+            i += 1
+          }
+          writeLocator(e.locator)
+          true
+        case e:EndXmlElementEvent =>
+          out.write(TAG_END_ELEMENT)
+          writeQName(e.qName)
+          writeLocator(e.locator)
+          true
+        case e:AddXmlTextEvent =>
+          out.write(TAG_TEXT)
+          writeString(e.text)
+          writeLocator(e.locator)
+          true
+        case e:AddXmlCommentEvent =>
+          out.write(TAG_COMMENT)
+          writeString(e.comment)
+          writeLocator(e.locator)
+          true
+        case e:XmlCheckpointEvent =>
+          true
+        case _ =>
+          false
+      }
+    }
+
+    private def writeQName(qName : XsdQName) {
+      writeRef(qName.getPrefix.toString)
+      writeRef(qName.getNamespaceURI.toString)
+      writeRef(qName.getLocalName.toString)
+    }
+
+    private def writeLocator(locator : DiagnosticLocator) {
+      if(includeLocators) {
+        locator match {
+          case l:XmlLineColumnLocator =>
+            out.write(LOCATOR_LINE_COLUMN)
+            writeVarInt(l.charOffset + 1)
+            writeVarInt(l.columnNumber + 1)
+            writeVarInt(l.lineNumber + 1)
+          case l:org.gtri.util.xmlbuilder.api.XmlFileLocator if l ne XmlFileLocator.NONE =>
+            out.write(LOCATOR_FULL)
+            writeVarInt(l.charOffset + 1)
+            writeVarInt(l.columnNumber + 1)
+            writeVarInt(l.lineNumber + 1)
+            writeRef(l.publicId)
+            writeRef(l.systemId)
+          case _ =>
+            out.write(LOCATOR_NONE)
+        }
+      }
+    }
+
+    /** Write a string through the string table. Id 0 is NULL. */
+    private def writeRef(s : String) {
+      if(s == null) {
+        writeVarInt(0)
+      } else {
+        val id = stringTable.get(s)
+        if(id != null) {
+          writeVarInt(id.intValue)
+        } else {
+          val newId = stringTable.size + 1
+          stringTable.put(s, newId)
+          writeVarInt(newId)
+          writeString(s)
+        }
+      }
+    }
+
+    /** Write a string inline as length + 1 followed by UTF-8 bytes. Length 0 is NULL. */
+    private def writeString(s : String) {
+      if(s == null) {
+        writeVarInt(0)
+      } else {
+        val bytes = s.getBytes(UTF8)
+        writeVarInt(bytes.length + 1)
+        out.write(bytes)
+      }
+    }
+
+    private def writeVarInt(value : Int) {
+      var v = value
+      while((v & ~0x7F) != 0) {
+        out.write((v & 0x7F) | 0x80)
+        v >>>= 7
+      }
+      out.write(v)
+    }
+  }
+
+  /**
+   * Decodes XmlEvents from a stream. A decoder holds the string table of one
+   * document and is not thread safe.
+   */
+  class Decoder(in : InputStream, nameCache : XmlNameCache) {
+    private[this] val strings = new java.util.ArrayList[String]
+    private[this] val ncNames = new java.util.ArrayList[XsdNCName]
+    private[this] val anyURIs = new java.util.ArrayList[XsdAnyURI]
+    private[this] var includeLocators = false
+
+    strings.add(null)
+    ncNames.add(null)
+    anyURIs.add(null)
+
+    def readHeader() {
+      val magic = new Array[Byte](MAGIC.length)
+      readFully(magic)
+      if(!java.util.Arrays.equals(magic, MAGIC)) {
+        throw new IOException("Not an XmlEvent binary stream")
+      }
+      val version = readByte()
+      if(version != VERSION) {
+        throw new IOException(s"Unsupported XmlEvent binary version $version")
+      }
+      includeLocators = (readByte() & FLAG_LOCATORS) != 0
+    }
+
+    /** @return the next event or null at EOF */
+    def read() : XmlEvent = {
+      readByte() match {
+        case TAG_EOF =>
+          null
+        case TAG_START_DOCUMENT =>
+          val encoding = readString()
+          val version = readString()
+          val isStandAlone = readByte() != 0
+          val characterEncodingScheme = readString()
+          StartXmlDocumentEvent(encoding, version, isStandAlone, characterEncodingScheme, readLocator())
+        case TAG_END_DOCUMENT =>
+          EndXmlDocumentEvent(readLocator())
+        case TAG_START_ELEMENT =>
+          val qName = readQName()
+          val value = Option(readString())
+          val attributeCount = readVarInt()
+          val attributes = new Array[(XsdQName, String)](attributeCount)
+          var i = 0
+          while(i < attributeCount) {
+            attributes(i) = (readQName(), readString())
+            i += 1
+          }
+          val prefixCount = readVarInt()
+          val prefixes = new Array[(XsdNCName, XsdAnyURI)](prefixCount)
+          i = 0
+          while(i < prefixCount) {
+            prefixes(i) = (readNCName(), readAnyURI())
+            i += 1
+          }
+          val locator = readLocator()
+          val optLocator = if(locator eq XmlFileLocator.NONE) None else Some(locator)
+          StartXmlElementEvent(XmlElement(qName, value, attributes, prefixes, optLocator), locator)
+        case TAG_END_ELEMENT =>
+          val qName = readQName()
+          EndXmlElementEvent(qName, readLocator())
+        case TAG_TEXT =>
+          val text = readString()
+          AddXmlTextEvent(text, readLocator())
+        case TAG_COMMENT =>
+          val comment = readString()
+          AddXmlCommentEvent(comment, readLocator())
+        case tag =>
+          throw new IOException(s"Invalid XmlEvent binary tag $tag")
+      }
+    }
+
+    private def readQName() : XsdQName = {
+      val prefix = readRef()
+      val namespaceURI = readRef()
+      val localName = readRef()
+      nameCache.qName(strings.get(prefix), strings.get(namespaceURI), strings.get(localName))
+    }
+
+    private def readNCName() : XsdNCName = {
+      val id = readRef()
+      var retv = ncNames.get(id)
+      if(retv == null) {
+        retv = nameCache.ncName(strings.get(id))
+        ncNames.set(id, retv)
+      }
+      retv
+    }
+
+    private def readAnyURI() : XsdAnyURI = {
+      val id = readRef()
+      var retv = anyURIs.get(id)
+      if(retv == null) {
+        retv = nameCache.anyURI(strings.get(id))
+        anyURIs.set(id, retv)
+      }
+      retv
+    }
+
+    private def readLocator() : DiagnosticLocator = {
+      if(includeLocators) {
+        readByte() match {
+          case LOCATOR_FULL =>
+            val charOffset = readVarInt() - 1
+            val columnNumber = readVarInt() - 1
+            val lineNumber = readVarInt() - 1
+            val publicId = strings.get(readRef())
+            val systemId = strings.get(readRef())
+            XmlFileLocator(charOffset, columnNumber, lineNumber, publicId, systemId)
+          case LOCATOR_LINE_COLUMN =>
+            val charOffset = readVarInt() - 1
+            val columnNumber = readVarInt() - 1
+            val lineNumber = readVarInt() - 1
+            XmlLineColumnLocator(charOffset, columnNumber, lineNumber)
+          case _ =>
+            XmlFileLocator.NONE
+        }
+      } else {
+        XmlFileLocator.NONE
+      }
+    }
+
+    /** @return the id of a string read through the string table */
+    private def readRef() : Int = {
+      val id = readVarInt()
+      if(id == strings.size) {
+        strings.add(readString())
+        ncNames.add(null)
+        anyURIs.add(null)
+      }
+      id
+    }
+
+    private def readString() : String = {
+      val length = readVarInt()
+      if(length == 0) {
+        null
+      } else {
+        val bytes = new Array[Byte](length - 1)
+        readFully(bytes)
+        new String(bytes, UTF8)
+      }
+    }
+
+    private def readVarInt() : Int = {
+      var shift = 0
+      var retv = 0
+      var b = readByte()
+      while((b & 0x80) != 0) {
+        retv |= (b & 0x7F) << shift
+        shift += 7
+        b = readByte()
+      }
+      retv | (b << shift)
+    }
+
+    private def readByte() : Int = {
+      val b = in.read()
+      if(b < 0) {
+        throw new EOFException("Unexpected end of XmlEvent binary stream")
+      }
+      b
+    }
+
+    private def readFully(bytes : Array[Byte]) {
+      var n = 0
+      while(n < bytes.length) {
+        val count = in.read(bytes, n, bytes.length - n)
+        if(count < 0) {
+          throw new EOFException("Unexpected end of XmlEvent binary stream")
+        }
+        n += count
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import java.io.{BufferedInputStream, InputStream}
+import com.google.common.io.InputSupplier
+import org.gtri.util.scala.exelog.noop._
+import org.gtri.util.issue.Issues
+import org.gtri.util.issue.api.{ Issue, IssueHandlingStrategy }
+import org.gtri.util.iteratee.api._
+import org.gtri.util.iteratee.impl.iteratees.Chunk
+import org.gtri.util.iteratee.impl.ImmutableBufferConversions._
+import org.gtri.util.iteratee.impl.enumerators._
+import org.gtri.util.xmlbuilder.api.XmlEvent
+import org.gtri.util.xmlbuilder.impl.events._
+
+object XmlBinaryReader {
+  implicit val thisclass =  classOf[XmlBinaryReader]
+  implicit val log =        Logger.getLog(thisclass)
+}
+
+/**
+ * An enumerator that replays XmlEvents from the binary format written by 
+ * XmlBinaryWriter.
+ */
+class XmlBinaryReader(
+  supplier :                InputSupplier[_ <: InputStream],
+  issueHandlingStrategy :   IssueHandlingStrategy,
+  val chunkSize :           Int = 256,
+  val nameCache :           XmlNameCache = new XmlNameCache()
+) extends Enumerator[XmlEvent] {
+  import XmlBinaryReader._
+
+  require(chunkSize > 0)
+
+  def initialState() = {
+    try {
+      val in = new BufferedInputStream(supplier.getInput)
+      val decoder = new XmlBinaryFormat.Decoder(in, nameCache)
+      decoder.readHeader()
+      Cont(in, decoder)
+    } catch {
+      case e : Exception =>
+        log.fatal("Failed to open input",e)
+        val msg : String = e.getMessage
+        val issue : Issue = Issues.INSTANCE.fatalError(msg)
+        Failure[XmlEvent](
+          progress = Progress.empty,
+          issues = Chunk(issue)
+        )
+    }
+  }
+
+  case class Cont(in : InputStream, decoder : XmlBinaryFormat.Decoder) extends Enumerator.State[XmlEvent] {
+
+    def statusCode = StatusCode.CONTINUE
+
+    def progress = Progress.empty
+
+    def step() = {
+      try {
+        // Fill buffer until buffer full or end of input
+        val buffer = new collection.mutable.ArrayBuffer[XmlEvent](chunkSize)
+        var endEvent : XmlEvent = null
+        var done = false
+        while(!done && buffer.size < chunkSize) {
+          decoder.read() match {
+            case null =>
+              done = true
+            case e:EndXmlDocumentEvent =>
+              endEvent = e
+              done = true
+            case e =>
+              buffer += e
+          }
+        }
+        if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+          XmlTrace.trace(thisclass, "step", s"Filled buffer with ${buffer.size} events done=$done")
+        }
+
+        if(!done) {
+          Result(this, buffer.toIndexedSeq)
+        } else {
+          // End of input - close input
+          in.close()
+          val end = if(endEvent == null) EndXmlDocumentEvent(XmlFileLocator.NONE) else endEvent
+          if(buffer.isEmpty) {
+            Success[XmlEvent](
+              progress = progress,
+              output = Chunk(end)
+            )
+          } else {
+            Result(Done(end), buffer.toIndexedSeq)
+          }
+        }
+      } catch {
+        case e : Exception =>
+          log.fatal("Failed to read input",e)
+          in.close()
+          val issue : Issue = Issues.INSTANCE.fatalError(e.getMessage)
+          Failure[XmlEvent](
+            progress = progress,
+            issues = Chunk(issue)
+          )
+      }
+    }
+  }
+
+  case class Done(end : XmlEvent) extends Enumerator.State[XmlEvent] {
+
+    def statusCode = StatusCode.CONTINUE
+
+    def progress = Progress.empty
+
+    def step() = Success[XmlEvent](
+      progress = progress,
+      output = Chunk(end)
+    )
+  }
+}
@@ -0,0 +1,94 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import java.io.{BufferedOutputStream, OutputStream}
+import com.google.common.io.OutputSupplier
+import org.gtri.util.scala.exelog.noop._
+import org.gtri.util.issue.api.{Issue, IssueHandlingStrategy}
+import org.gtri.util.issue.Issues
+import org.gtri.util.iteratee.impl.ImmutableBufferConversions._
+import org.gtri.util.iteratee.api._
+import org.gtri.util.iteratee.impl.iteratees._
+import org.gtri.util.xmlbuilder.api.XmlEvent
+
+object XmlBinaryWriter {
+  implicit val thisclass =  classOf[XmlBinaryWriter]
+  implicit val log =        Logger.getLog(thisclass)
+}
+
+/**
+ * An iteratee that writes XmlEvents in the binary format read by 
+ * XmlBinaryReader.
+ */
+class XmlBinaryWriter(
+  supplier :                OutputSupplier[_ <: OutputStream],
+  issueHandlingStrategy :   IssueHandlingStrategy,
+  val includeLocators :     Boolean = true
+) extends Iteratee[XmlEvent, Unit] {
+
+  import XmlBinaryWriter._
+
+  def initialState =  {
+    try {
+      val out = new BufferedOutputStream(supplier.getOutput)
+      val encoder = new XmlBinaryFormat.Encoder(out, includeLocators)
+      encoder.writeHeader()
+      Cont(out, encoder)
+    } catch {
+      case e : Exception =>
+        log.fatal("Failed to open output",e)
+        val msg : String = e.getMessage
+        val issue : Issue = Issues.INSTANCE.fatalError(msg)
+        Failure(issues = Chunk(issue))
+    }
+  }
+
+  case class Cont(out : OutputStream, encoder : XmlBinaryFormat.Encoder) extends SingleItemCont[XmlEvent, Unit] {
+
+    def apply(xmlEvent: XmlEvent) = {
+      if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+        XmlTrace.trace(thisclass, "apply", s"xmlEvent=$xmlEvent")
+      }
+      if(encoder.write(xmlEvent)) {
+        Result(next = this)
+      } else {
+        val error = Issues.INSTANCE.recoverableError(s"Invalid XmlEvent: $xmlEvent")
+        if(issueHandlingStrategy.canContinue(error)) {
+          val warn = Issues.INSTANCE.warning(s"Ignoring invalid XmlEvent: $xmlEvent")
+          Result(next = this, issues = error :: warn :: Nil)
+        } else {
+          Result(next = this, issues = error :: Nil)
+        }
+      }
+    }
+
+    def endOfInput() = {
+      // Write EOF, flush and close output, return success
+      encoder.writeEOF()
+      out.flush()
+      out.close()
+      Success()
+    }
+  }
+}
@@ -0,0 +1,308 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.impl
+
+import java.io.InputStream
+import java.nio.charset.Charset
+
+object XmlByteScanner {
+  final val EOF = 0
+  final val START_TAG = 1
+  final val END_TAG = 2
+  final val EMPTY_TAG = 3
+  final val PROCESSING_INSTRUCTION = 4
+  final val OTHER = 5 // text, comments, CDATA and DOCTYPE
+
+  private val UTF8 = Charset.forName("UTF-8")
+  private val NameRegex = """^</?([^\s/>]+)""".r
+  private val NamespaceRegex = """\s(xmlns(?::([^\s=]+))?)\s*=\s*(?:"([^"]*)"|'([^']*)')""".r
+
+  /**
+   * A growable byte array
+   */
+  final class Bytes(initialCapacity : Int = 1024) {
+    private[this] var array = new Array[Byte](initialCapacity)
+    private[this] var length = 0
+
+    def size = length
+
+    def +=(b : Byte) {
+      if(length == array.length) {
+        array = java.util.Arrays.copyOf(array, array.length * 2)
+      }
+      array(length) = b
+      length += 1
+    }
+
+    def ++=(bytes : Array[Byte]) {
+      if(length + bytes.length > array.length) {
+        array = java.util.Arrays.copyOf(array, math.max(array.length * 2, length + bytes.length))
+      }
+      System.arraycopy(bytes, 0, array, length, bytes.length)
+      length += bytes.length
+    }
+
+    def clear() {
+      length = 0
+    }
+
+    def toArray : Array[Byte] = java.util.Arrays.copyOf(array, length)
+  }
+
+  /**
+   * @return the qualified name of a start, end or empty element tag
+   */
+  def tagName(tag : Array[Byte]) : String = {
+    NameRegex.findFirstMatchIn(new String(tag, UTF8)).map { _.group(1) }.getOrElse("")
+  }
+
+  /**
+   * @return the namespace declarations (prefix -> namespace URI) of a start or 
+   * empty element tag. The default namespace has the prefix "".
+   */
+  def tagNamespaces(tag : Array[Byte]) : Seq[(String, String)] = {
+    val s = new String(tag, UTF8)
+    NamespaceRegex.findAllMatchIn(s).map { m =>
+      val prefix = Option(m.group(2)).getOrElse("")
+      val uri = Option(m.group(3)).getOrElse(m.group(4))
+      prefix -> unescape(uri)
+    }.toList
+  }
+
+  /**
+   * @return the string escaped for use as a double quoted attribute value
+   */
+  private[impl] def escape(s : String) = {
+    s.replace("&","&amp;").replace("<","&lt;").replace("\"","&quot;").replace("\n","&#10;").replace("\r","&#13;").replace("\t","&#9;")
+  }
+
+  private def unescape(s : String) = {
+    if(s.indexOf('&') < 0) {
+      s
+    } else {
+      s.replace("&lt;","<").replace("&gt;",">").replace("&quot;","\"").replace("&apos;","'").replace("&amp;","&")
+    }
+  }
+}
+
+/**
+ * A lightweight scanner that splits raw XML bytes into tags and other tokens
+ * without parsing names, attributes or entities. It tracks byte offsets, line
+ * and column numbers and element depth, which makes it much cheaper than a 
+ * full parse. The input must use an ASCII compatible encoding such as UTF-8.
+ *
+ * If capture is set, every byte consumed is appended to it.
+ */
+class XmlByteScanner(in : InputStream, bufferSize : Int = 64 * 1024) {
+  import XmlByteScanner._
+
+  private[this] val buf = new Array[Byte](bufferSize)
+  private[this] var bufPos = 0
+  private[this] var bufLimit = 0
+
+  /** The offset of the next byte to be read */
+  var offset : Long = 0
+  /** The line of the next byte to be read */
+  var line = 1
+  /** The column of the next character to be read */
+  var column = 1
+  /** The number of open elements */
+  var depth = 0
+
+  /** The offset of the first byte of the last token */
+  var tokenOffset : Long = 0
+  var tokenLine = 1
+  var tokenColumn = 1
+  /** For tags, the depth of the element (the root element is depth 1) */
+  var tokenDepth = 0
+
+  var capture : Bytes = null
+
+  private[this] val tag = new Bytes(256)
+  private[this] var recordTag = false
+
+  /** @return the bytes of the last tag or processing instruction */
+  def tagBytes : Array[Byte] = tag.toArray
+
+  private def fill() : Boolean = {
+    if(bufPos < bufLimit) {
+      true
+    } else {
+      val n = in.read(buf, 0, buf.length)
+      if(n <= 0) {
+        false
+      } else {
+        bufPos = 0
+        bufLimit = n
+        true
+      }
+    }
+  }
+
+  /** @return the next byte without consuming it or -1 at EOF */
+  private def peek() : Int = if(fill()) buf(bufPos) & 0xFF else -1
+
+  /** @return the next byte or -1 at EOF */
+  private def read() : Int = {
+    if(!fill()) {
+      -1
+    } else {
+      val b = buf(bufPos)
+      bufPos += 1
+      offset += 1
+      if(b == '\n') {
+        line += 1
+        column = 1
+      } else if((b & 0xC0) != 0x80) {
+        // Count characters not UTF-8 continuation bytes
+        column += 1
+      }
+      if(capture != null) {
+        capture += b
+      }
+      if(recordTag) {
+        tag += b
+      }
+      b & 0xFF
+    }
+  }
+
+  /** Consume bytes until the terminator has been consumed */
+  private def skipPast(terminator : String) {
+    var matched = 0
+    while(matched < terminator.length) {
+      val b = read()
+      if(b < 0) {
+        return
+      }
+      if(b == terminator.charAt(matched)) {
+        matched += 1
+      } else if(b == terminator.charAt(0)) {
+        // Handle runs such as "--->" or "]]]>" for terminators that start with a repeated character
+        matched = if(matched >= 2 && terminator.charAt(1) == terminator.charAt(0)) 2 else 1
+      } else {
+        matched = 0
+      }
+    }
+  }
+
+  /** @return TRUE if the next bytes match s, matched bytes are consumed */
+  private def consume(s : String) : Boolean = {
+    var i = 0
+    while(i < s.length) {
+      if(peek() != s.charAt(i)) {
+        return false
+      }
+      read()
+      i += 1
+    }
+    true
+  }
+
+  /**
+   * Scan the next token
+   * @return the kind of the token
+   */
+  def next() : Int = {
+    tokenOffset = offset
+    tokenLine = line
+    tokenColumn = column
+    recordTag = false
+    tag.clear()
+    val first = peek()
+    if(first < 0) {
+      EOF
+    } else if(first != '<') {
+      while(peek() >= 0 && peek() != '<') {
+        read()
+      }
+      OTHER
+    } else {
+      recordTag = true
+      read()
+      peek() match {
+        case '/' =>
+          skipPast(">")
+          recordTag = false
+          tokenDepth = depth
+          depth -= 1
+          END_TAG
+        case '?' =>
+          skipPast("?>")
+          recordTag = false
+          PROCESSING_INSTRUCTION
+        case '!' =>
+          recordTag = false
+          read()
+          if(consume("--")) {
+            skipPast("-->")
+          } else if(consume("[CDATA[")) {
+            skipPast("]]>")
+          } else {
+            skipDeclaration()
+          }
+          OTHER
+        case _ =>
+          var quote = -1
+          var last = -1
+          var b = read()
+          while(b >= 0 && (quote >= 0 || b != '>')) {
+            if(quote >= 0) {
+              if(b == quote) quote = -1
+            } else if(b == '"' || b == '\'') {
+              quote = b
+            }
+            if(b > ' ') last = b
+            b = read()
+          }
+          recordTag = false
+          if(last == '/') {
+            tokenDepth = depth + 1
+            EMPTY_TAG
+          } else {
+            depth += 1
+            tokenDepth = depth
+            START_TAG
+          }
+      }
+    }
+  }
+
+  /** Skip a DOCTYPE or other declaration, including an internal subset */
+  private def skipDeclaration() {
+    var brackets = 0
+    var quote = -1
+    var b = read()
+    while(b >= 0 && (quote >= 0 || brackets > 0 || b != '>')) {
+      if(quote >= 0) {
+        if(b == quote) quote = -1
+      } else if(b == '"' || b == '\'') {
+        quote = b
+      } else if(b == '[') {
+        brackets += 1
+      } else if(b == ']') {
+        brackets -= 1
+      }
+      b = read()
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+object XmlCheckpointElement {
+  def apply(element : XmlElement) : XmlCheckpointElement = {
+    val qName = element.qName
+    XmlCheckpointElement(
+      qName.getPrefix.toString,
+      qName.getNamespaceURI.toString,
+      qName.getLocalName.toString,
+      for(i <- 0 until element.prefixCount) yield element.prefix(i).toString -> element.namespaceURI(i).toString
+    )
+  }
+}
+
+/**
+ * An element that is open at a checkpoint
+ * @param namespaces the namespace bindings (prefix -> namespace URI) declared
+ * on the element, the default namespace has the prefix ""
+ */
+@SerialVersionUID(1L)
+case class XmlCheckpointElement(
+  prefix :        String,
+  namespaceURI :  String,
+  localName :     String,
+  namespaces :    IndexedSeq[(String, String)]
+) {
+  def qName = if(prefix.isEmpty) localName else prefix + ":" + localName
+
+  def declarationCount = namespaces.size
+
+  def declaredPrefix(i : Int) = namespaces(i)._1
+
+  def declaredNamespaceURI(i : Int) = namespaces(i)._2
+}
+
+/**
+ * A point in a document at which reading (and writing) can be resumed. 
+ * Checkpoints are created by an XmlReader between events, and are 
+ * serializable so they can be saved to survive a failure.
+ *
+ * @param byteOffset the offset in the input of the first byte after the
+ * events read before the checkpoint
+ * @param eventCount the number of events read before the checkpoint
+ * @param openElements the elements open at the checkpoint, outermost first
+ * @param encoding the character encoding of the input
+ * @param version the XML version of the input
+ * @param outputOffset the number of bytes of output written for the events
+ * before the checkpoint or -1 if unknown. Set by an XmlWriter.
+ */
+@SerialVersionUID(1L)
+case class XmlCheckpoint(
+  byteOffset :    Long,
+  eventCount :    Long,
+  openElements :  IndexedSeq[XmlCheckpointElement],
+  encoding :      String,
+  version :       String,
+  outputOffset :  Long = -1
+) {
+  def openElementCount = openElements.size
+
+  def openElement(i : Int) = openElements(i)
+
+  def withOutputOffset(offset : Long) = copy(outputOffset = offset)
+
+  /**
+   * @return the bytes that restore the parsing context when read before the 
+   * input from byteOffset: an XML declaration followed by the start tags of 
+   * the open elements with their namespace declarations
+   */
+  def resumePrefix : Array[Byte] = {
+    val s = new StringBuilder
+    s.append("<?xml version=\"").append(version).append("\" encoding=\"").append(encoding).append("\"?>")
+    for(element <- openElements) {
+      s.append('<').append(element.qName)
+      for((prefix, namespaceURI) <- element.namespaces) {
+        s.append(if(prefix.isEmpty) " xmlns" else " xmlns:" + prefix)
+        s.append("=\"").append(XmlByteScanner.escape(namespaceURI)).append('"')
+      }
+      s.append('>')
+    }
+    s.toString.getBytes(encoding)
+  }
+
+  override def toString = s"XmlCheckpoint(byteOffset=$byteOffset,eventCount=$eventCount,depth=$openElementCount,outputOffset=$outputOffset)"
+}
+
+/**
+ * Receives the checkpoints written by an XmlWriter
+ */
+trait XmlCheckpointListener {
+  /**
+   * Called once every event before the checkpoint has been written and 
+   * flushed. Saving the checkpoint allows reading and writing to resume from
+   * it.
+   * @param checkpoint the checkpoint with the offset of the output
+   */
+  def checkpointWritten(checkpoint : XmlCheckpoint)
+}
@@ -0,0 +1,77 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+object XmlChunkBudget {
+  val STD_MAX_CHARS = 64 * 1024
+  val STD_MAX_FILL_NANOS = 1000000L
+  val STD_MAX_EVENTS = 16384
+
+  val STD = XmlChunkBudget()
+}
+
+/**
+ * A budget for adaptive chunk sizing. Instead of a fixed number of events, an
+ * XmlReader with a budget fills each chunk until it has consumed about 
+ * maxChars characters of input or spent about maxFillNanos filling it. The
+ * number of events expected to fit the budget is estimated from previous 
+ * chunks. The characters consumed are checked after every event, the fill 
+ * time only periodically.
+ *
+ * Memory per chunk is bounded by maxChars plus the size of a single event 
+ * (which may be larger than maxChars, e.g. an element with a large value) 
+ * and by maxEvents plus the events of a single parse step.
+ *
+ * @param maxChars the target number of characters of input per chunk
+ * @param maxFillNanos the target time to fill a chunk
+ * @param maxEvents the maximum number of events per chunk
+ */
+case class XmlChunkBudget(
+  maxChars :      Int = XmlChunkBudget.STD_MAX_CHARS,
+  maxFillNanos :  Long = XmlChunkBudget.STD_MAX_FILL_NANOS,
+  maxEvents :     Int = XmlChunkBudget.STD_MAX_EVENTS
+) {
+  require(maxChars > 0)
+  require(maxFillNanos > 0)
+  require(maxEvents > 0)
+
+  /**
+   * Estimate the number of events that fit in the budget from the last chunk
+   * @param eventLimit the event limit used for the last chunk
+   * @param eventCount the number of events in the last chunk
+   * @param charCount the number of characters consumed by the last chunk or -1 if unknown
+   * @param fillNanos the time spent filling the last chunk
+   * @return the event limit for the next chunk
+   */
+  def nextEventLimit(eventLimit : Int, eventCount : Int, charCount : Long, fillNanos : Long) : Int = {
+    if(eventCount == 0) {
+      eventLimit
+    } else {
+      val byChars = if(charCount > 0) maxChars.toLong * eventCount / charCount else maxEvents.toLong
+      val byTime = if(fillNanos > 0) maxFillNanos * eventCount / fillNanos else maxEvents.toLong
+      val estimate = math.min(math.min(byChars, byTime), maxEvents.toLong)
+      // Average with the last limit to smooth out variation between chunks
+      math.max(1, ((eventLimit + estimate) / 2).toInt)
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import org.gtri.util.xmlbuilder.api.{XmlBatchContract, XmlContract, XmlEventBatch}
+
+/**
+ * Adapts an XmlContract to an XmlBatchContract by pushing each event of a 
+ * batch to the contract.
+ */
+class XmlContractBatchAdapter(val contract : XmlContract) extends XmlBatchContract {
+  def addXmlEvents(batch : XmlEventBatch) {
+    var i = 0
+    while(i < batch.size) {
+      batch.event(i).pushTo(contract)
+      i += 1
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import org.gtri.util.scala.exelog.noop._
+import org.gtri.util.issue.api.Issue
+import org.gtri.util.issue.Issues
+import org.gtri.util.iteratee.api._
+import org.gtri.util.iteratee.impl.iteratees._
+import org.gtri.util.xmlbuilder.api.{XmlBatchContract, XmlEvent}
+
+object XmlContractWriter {
+  implicit val thisclass =  classOf[XmlContractWriter]
+  implicit val log =        Logger.getLog(thisclass)
+}
+
+/**
+ * An iteratee that adds each chunk of XmlEvents to an XmlBatchContract as a
+ * single batch.
+ */
+class XmlContractWriter(
+  val contract : XmlBatchContract
+) extends Iteratee[XmlEvent, Unit] {
+
+  import XmlContractWriter._
+
+  def initialState = Cont
+
+  object Cont extends Iteratee.State[XmlEvent, Unit] {
+
+    def statusCode = StatusCode.CONTINUE
+
+    def apply(input : ImmutableBuffer[XmlEvent]) = {
+      // Adding chunk to contract as a batch
+      val batch = XmlEventArrayBatch(input)
+      try {
+        if(batch.size > 0) {
+          contract.addXmlEvents(batch)
+        }
+        Result(next = this)
+      } catch {
+        case e : Exception =>
+          log.fatal("Contract failed to add batch",e)
+          val msg : String = e.getMessage
+          val issue : Issue = Issues.INSTANCE.fatalError(msg)
+          Failure(issues = Chunk(issue))
+      }
+    }
+
+    def endOfInput() = {
+      Success()
+    }
+  }
+}
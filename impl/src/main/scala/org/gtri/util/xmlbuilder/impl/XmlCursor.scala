@@ -0,0 +1,215 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import javax.xml.stream.{XMLStreamConstants, XMLStreamException, XMLStreamReader}
+import org.gtri.util.scala.exelog.noop._
+import org.gtri.util.xsddatatypes.XsdQName
+import org.gtri.util.xmlbuilder.api.{XmlEvent, XmlLocatorMode}
+import org.gtri.util.xmlbuilder.impl.events._
+
+object XmlCursor {
+  implicit val thisclass =  classOf[XmlCursor]
+  implicit val log =        Logger.getLog(thisclass)
+
+  /** The event type before the first call to next */
+  val NONE =            0
+  val START_DOCUMENT =  XMLStreamConstants.START_DOCUMENT
+  val END_DOCUMENT =    XMLStreamConstants.END_DOCUMENT
+  val START_ELEMENT =   XMLStreamConstants.START_ELEMENT
+  val END_ELEMENT =     XMLStreamConstants.END_ELEMENT
+  /** Character data, including CDATA sections */
+  val TEXT =            XMLStreamConstants.CHARACTERS
+  val COMMENT =         XMLStreamConstants.COMMENT
+}
+
+/**
+ * A forward only cursor over the events of a document. The cursor is a 
+ * single mutable view of the current event that is moved through the 
+ * document by next. Nothing is allocated per event: names, attributes and 
+ * text are read directly from the XMLStreamReader and are only valid until 
+ * the next call to next. Call snapshot to get the current event as an
+ * immutable XmlEvent that can be kept.
+ *
+ * Unlike XmlReader, the value of an element is not peek parsed; the text of
+ * an element is reported as TEXT events between its start and end events.
+ * Processing instructions, DTDs and other events that XmlReader drops are 
+ * skipped. The reader must be blocking (not an AsyncXMLStreamReader). The 
+ * cursor is not thread safe.
+ */
+class XmlCursor(
+  val reader :        XMLStreamReader,
+  val nameCache :     XmlNameCache = new XmlNameCache(),
+  val locatorMode :   XmlLocatorMode = XmlLocatorMode.FULL
+) {
+  import XmlCursor._
+
+  private[this] val locatorCapture = new XmlFileLocator.Capture(locatorMode)
+  private[this] var _eventType = NONE
+  private[this] var _depth = 0
+
+  /** @return the type of the current event, one of the XmlCursor event types */
+  def eventType = _eventType
+
+  /** @return the depth of the current element, 0 outside the root element */
+  def depth = _depth
+
+  def hasNext = _eventType != END_DOCUMENT
+
+  /**
+   * Move to the next event
+   * @return FALSE if the cursor was at the end of the document
+   */
+  @throws(classOf[XMLStreamException])
+  def next() : Boolean = {
+    _eventType match {
+      case END_DOCUMENT =>
+        false
+      case NONE =>
+        // First event is the reader's current event
+        moveTo(reader.getEventType)
+        true
+      case _ =>
+        if(_eventType == END_ELEMENT) {
+          _depth -= 1
+        }
+        moveTo(reader.next())
+        true
+    }
+  }
+
+  private def moveTo(readerEventType : Int) {
+    var t = readerEventType
+    while(!isReported(t)) {
+      t = reader.next()
+    }
+    t match {
+      case XMLStreamConstants.CDATA =>
+        _eventType = TEXT
+      case START_ELEMENT =>
+        _depth += 1
+        _eventType = t
+      case _ =>
+        _eventType = t
+    }
+  }
+
+  private def isReported(readerEventType : Int) = readerEventType match {
+    case START_DOCUMENT | END_DOCUMENT | START_ELEMENT | END_ELEMENT | COMMENT => true
+    case XMLStreamConstants.CHARACTERS | XMLStreamConstants.CDATA => true
+    case _ => false
+  }
+
+  /**
+   * Skip the rest of the current element. The element's children are read by 
+   * type only. If the cursor is at a START_ELEMENT, it is moved to the 
+   * matching END_ELEMENT.
+   */
+  @throws(classOf[XMLStreamException])
+  def skipElement() {
+    if(_eventType == START_ELEMENT) {
+      var skipDepth = 1
+      while(skipDepth > 0) {
+        reader.next() match {
+          case START_ELEMENT => skipDepth += 1
+          case END_ELEMENT => skipDepth -= 1
+          case _ =>
+        }
+      }
+      _eventType = END_ELEMENT
+    }
+  }
+
+  def isStartElement = _eventType == START_ELEMENT
+  def isEndElement = _eventType == END_ELEMENT
+  def isText = _eventType == TEXT
+
+  // START_ELEMENT and END_ELEMENT
+  def localName : String = reader.getLocalName
+  def namespaceURI : String = reader.getNamespaceURI
+  def prefix : String = reader.getPrefix
+  /** @return the canonical qName from the name cache */
+  def qName : XsdQName = nameCache.qName(reader.getPrefix, reader.getNamespaceURI, reader.getLocalName)
+
+  // START_ELEMENT
+  def attributeCount : Int = reader.getAttributeCount
+  def attributeLocalName(i : Int) : String = reader.getAttributeLocalName(i)
+  def attributeNamespace(i : Int) : String = reader.getAttributeNamespace(i)
+  def attributePrefix(i : Int) : String = reader.getAttributePrefix(i)
+  def attributeValue(i : Int) : String = reader.getAttributeValue(i)
+  def attributeValue(namespaceURI : String, localName : String) : String = reader.getAttributeValue(namespaceURI, localName)
+  def namespaceCount : Int = reader.getNamespaceCount
+  def namespacePrefix(i : Int) : String = reader.getNamespacePrefix(i)
+  def namespaceURI(i : Int) : String = reader.getNamespaceURI(i)
+
+  // TEXT and COMMENT
+  /** @return the reader's character buffer, valid until the next event */
+  def textCharacters : Array[Char] = reader.getTextCharacters
+  def textStart : Int = reader.getTextStart
+  def textLength : Int = reader.getTextLength
+  /** @return the text as a new String */
+  def text : String = reader.getText
+
+  // START_DOCUMENT
+  def encoding : String = reader.getEncoding
+  def version : String = reader.getVersion
+
+  def lineNumber : Int = reader.getLocation.getLineNumber
+  def columnNumber : Int = reader.getLocation.getColumnNumber
+
+  /**
+   * @return the current event as an immutable XmlEvent
+   * @throws IllegalStateException before the first call to next
+   */
+  def snapshot() : XmlEvent = {
+    _eventType match {
+      case START_DOCUMENT =>
+        StartXmlDocumentEvent(reader.getEncoding, reader.getVersion, reader.isStandalone, reader.getCharacterEncodingScheme, locatorCapture(reader))
+      case END_DOCUMENT =>
+        EndXmlDocumentEvent(locatorCapture(reader))
+      case START_ELEMENT =>
+        val attributes =
+          for(i <- 0 until reader.getAttributeCount)
+          yield nameCache.qName(reader.getAttributePrefix(i), reader.getAttributeNamespace(i), reader.getAttributeLocalName(i)) -> reader.getAttributeValue(i)
+        val prefixes =
+          for(i <- 0 until reader.getNamespaceCount)
+          yield nameCache.ncName(reader.getNamespacePrefix(i)) -> nameCache.anyURI(reader.getNamespaceURI(i))
+        val locator = locatorCapture(reader)
+        val optLocator = if(locatorCapture.isEnabled) Some(locator) else None
+        StartXmlElementEvent(XmlElement(qName, None, attributes, prefixes, optLocator), locator)
+      case END_ELEMENT =>
+        EndXmlElementEvent(qName, locatorCapture(reader))
+      case TEXT =>
+        AddXmlTextEvent(reader.getText, locatorCapture(reader))
+      case COMMENT =>
+        AddXmlCommentEvent(reader.getText, locatorCapture(reader))
+      case _ =>
+        throw new IllegalStateException("No current event")
+    }
+  }
+
+  @throws(classOf[XMLStreamException])
+  def close() {
+    reader.close()
+  }
+}
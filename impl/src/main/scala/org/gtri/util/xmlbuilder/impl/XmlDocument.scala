@@ -0,0 +1,591 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import javax.xml.stream.XMLStreamException
+import com.google.common.collect.ImmutableMap
+import org.gtri.util.xsddatatypes.{XsdAnyURI, XsdNCName, XsdQName}
+import org.gtri.util.iteratee.api.Enumerator
+import org.gtri.util.xmlbuilder.api.{XmlContract, XmlEvent}
+import org.gtri.util.xmlbuilder.impl.events._
+import scala.reflect.ClassTag
+
+object XmlDocument {
+  /** The node index used for no node (e.g. the parent of the document node) */
+  val NONE = -1
+
+  /** The document node, the parent of the root element */
+  val DOCUMENT_NODE = 0
+
+  // Node kinds
+  val DOCUMENT =  0
+  val ELEMENT =   1
+  val TEXT =      2
+  val COMMENT =   3
+
+  private val INITIAL_CAPACITY = 256
+
+  /**
+   * A table that assigns each distinct symbol an id in order of first use
+   */
+  private final class SymbolTable[A <: AnyRef : ClassTag] {
+    private[this] val ids = new java.util.HashMap[A, Integer]()
+    private[this] var symbols = new Array[A](64)
+
+    def size = ids.size
+
+    def id(symbol : A) : Int = {
+      val id = ids.get(symbol)
+      if(id != null) {
+        id.intValue
+      } else {
+        val newId = ids.size
+        if(newId == symbols.length) {
+          symbols = java.util.Arrays.copyOf(symbols.asInstanceOf[Array[AnyRef]], newId * 2).asInstanceOf[Array[A]]
+        }
+        symbols(newId) = symbol
+        ids.put(symbol, newId)
+        newId
+      }
+    }
+
+    def result = (java.util.Arrays.copyOf(symbols.asInstanceOf[Array[AnyRef]], size).asInstanceOf[Array[A]], ids)
+  }
+
+  /**
+   * Builds an XmlDocument from XmlEvents in document order. Adjacent text is
+   * merged into one text node. Elements that are still open when the 
+   * document is built are closed. Locators are not kept.
+   */
+  final class Builder {
+    private[this] var nodeCount = 1
+    private[this] var kinds = new Array[Byte](INITIAL_CAPACITY)
+    private[this] var parents = new Array[Int](INITIAL_CAPACITY)
+    private[this] var firstChildren = new Array[Int](INITIAL_CAPACITY)
+    private[this] var nextSiblings = new Array[Int](INITIAL_CAPACITY)
+    private[this] var subtreeEnds = new Array[Int](INITIAL_CAPACITY)
+    private[this] var names = new Array[Int](INITIAL_CAPACITY)
+    private[this] var textStarts = new Array[Int](INITIAL_CAPACITY)
+    private[this] var textLengths = new Array[Int](INITIAL_CAPACITY)
+    // Attributes and prefixes of node i are [starts(i), starts(i+1))
+    private[this] var attributeStarts = new Array[Int](INITIAL_CAPACITY + 1)
+    private[this] var prefixStarts = new Array[Int](INITIAL_CAPACITY + 1)
+
+    private[this] var attributeCount = 0
+    private[this] var attributeNames = new Array[Int](INITIAL_CAPACITY)
+    private[this] var attributeValueStarts = new Array[Int](INITIAL_CAPACITY)
+    private[this] var attributeValueLengths = new Array[Int](INITIAL_CAPACITY)
+
+    private[this] var prefixCount = 0
+    private[this] var prefixes = new Array[Int](INITIAL_CAPACITY)
+    private[this] var namespaceURIs = new Array[Int](INITIAL_CAPACITY)
+
+    private[this] var charCount = 0
+    private[this] var chars = new Array[Char](INITIAL_CAPACITY * 16)
+
+    private[this] val qNames = new SymbolTable[XsdQName]
+    private[this] val ncNames = new SymbolTable[XsdNCName]
+    private[this] val anyURIs = new SymbolTable[XsdAnyURI]
+
+    // Open elements (innermost last) and the last child added to each
+    private[this] var depth = 0
+    private[this] var openNodes = new Array[Int](64)
+    private[this] var lastChildren = new Array[Int](64)
+
+    private[this] var encoding : String = null
+    private[this] var version : String = null
+    private[this] var isStandAlone = false
+
+    kinds(0) = DOCUMENT.toByte
+    parents(0) = NONE
+    firstChildren(0) = NONE
+    nextSiblings(0) = NONE
+    names(0) = NONE
+    textLengths(0) = -1
+    lastChildren(0) = NONE
+
+    def add(event : XmlEvent) {
+      event match {
+        case StartXmlElementEvent(element, _) =>
+          startElement(element)
+        case EndXmlElementEvent(_, _) =>
+          endElement()
+        case AddXmlTextEvent(text, _) =>
+          addText(text)
+        case AddXmlCommentEvent(comment, _) =>
+          addNode(COMMENT, NONE, text = comment)
+        case e : StartXmlDocumentEvent =>
+          encoding = e.encoding
+          version = e.version
+          isStandAlone = e.isStandAlone
+        case _ =>
+      }
+    }
+
+    def startElement(element : XmlElement) {
+      val node = addNode(ELEMENT, qNames.id(element.qName), element.value.orNull)
+      var i = 0
+      while(i < element.attributeCount) {
+        if(attributeCount == attributeNames.length) {
+          val capacity = attributeCount * 2
+          attributeNames = java.util.Arrays.copyOf(attributeNames, capacity)
+          attributeValueStarts = java.util.Arrays.copyOf(attributeValueStarts, capacity)
+          attributeValueLengths = java.util.Arrays.copyOf(attributeValueLengths, capacity)
+        }
+        val value = element.attributeValue(i)
+        attributeNames(attributeCount) = qNames.id(element.attributeName(i))
+        attributeValueStarts(attributeCount) = appendChars(value)
+        attributeValueLengths(attributeCount) = value.length
+        attributeCount += 1
+        i += 1
+      }
+      i = 0
+      while(i < element.prefixCount) {
+        if(prefixCount == prefixes.length) {
+          val capacity = prefixCount * 2
+          prefixes = java.util.Arrays.copyOf(prefixes, capacity)
+          namespaceURIs = java.util.Arrays.copyOf(namespaceURIs, capacity)
+        }
+        prefixes(prefixCount) = ncNames.id(element.prefix(i))
+        namespaceURIs(prefixCount) = anyURIs.id(element.namespaceURI(i))
+        prefixCount += 1
+        i += 1
+      }
+      attributeStarts(nodeCount) = attributeCount
+      prefixStarts(nodeCount) = prefixCount
+      depth += 1
+      if(depth == openNodes.length) {
+        openNodes = java.util.Arrays.copyOf(openNodes, depth * 2)
+        lastChildren = java.util.Arrays.copyOf(lastChildren, depth * 2)
+      }
+      openNodes(depth) = node
+      lastChildren(depth) = NONE
+    }
+
+    def endElement() {
+      if(depth > 0) {
+        subtreeEnds(openNodes(depth)) = nodeCount
+        depth -= 1
+      }
+    }
+
+    def addText(text : String) {
+      val last = lastChildren(depth)
+      if(last != NONE && kinds(last) == TEXT && textStarts(last) + textLengths(last) == charCount) {
+        // Merge adjacent text
+        appendChars(text)
+        textLengths(last) += text.length
+      } else {
+        addNode(TEXT, NONE, text)
+      }
+    }
+
+    private def appendChars(s : String) : Int = {
+      val start = charCount
+      if(charCount + s.length > chars.length) {
+        chars = java.util.Arrays.copyOf(chars, math.max(chars.length * 2, charCount + s.length))
+      }
+      s.getChars(0, s.length, chars, charCount)
+      charCount += s.length
+      start
+    }
+
+    private def addNode(kind : Int, name : Int, text : String) : Int = {
+      if(nodeCount == kinds.length) {
+        val capacity = nodeCount * 2
+        kinds = java.util.Arrays.copyOf(kinds, capacity)
+        parents = java.util.Arrays.copyOf(parents, capacity)
+        firstChildren = java.util.Arrays.copyOf(firstChildren, capacity)
+        nextSiblings = java.util.Arrays.copyOf(nextSiblings, capacity)
+        subtreeEnds = java.util.Arrays.copyOf(subtreeEnds, capacity)
+        names = java.util.Arrays.copyOf(names, capacity)
+        textStarts = java.util.Arrays.copyOf(textStarts, capacity)
+        textLengths = java.util.Arrays.copyOf(textLengths, capacity)
+        attributeStarts = java.util.Arrays.copyOf(attributeStarts, capacity + 1)
+        prefixStarts = java.util.Arrays.copyOf(prefixStarts, capacity + 1)
+      }
+      val node = nodeCount
+      val parent = openNodes(depth)
+      kinds(node) = kind.toByte
+      parents(node) = parent
+      firstChildren(node) = NONE
+      nextSiblings(node) = NONE
+      subtreeEnds(node) = node + 1
+      names(node) = name
+      if(text == null) {
+        textStarts(node) = charCount
+        textLengths(node) = -1
+      } else {
+        textStarts(node) = appendChars(text)
+        textLengths(node) = text.length
+      }
+      attributeStarts(node) = attributeCount
+      prefixStarts(node) = prefixCount
+      val prevSibling = lastChildren(depth)
+      if(prevSibling == NONE) {
+        firstChildren(parent) = node
+      } else {
+        nextSiblings(prevSibling) = node
+      }
+      lastChildren(depth) = node
+      nodeCount += 1
+      attributeStarts(nodeCount) = attributeCount
+      prefixStarts(nodeCount) = prefixCount
+      node
+    }
+
+    /**
+     * @return the document, the builder may not be used after
+     */
+    def result() : XmlDocument = {
+      while(depth > 0) {
+        endElement()
+      }
+      subtreeEnds(0) = nodeCount
+      val (qNameSymbols, qNameIds) = qNames.result
+      new XmlDocument(
+        encoding, 
+        version, 
+        isStandAlone,
+        nodeCount,
+        java.util.Arrays.copyOf(kinds, nodeCount),
+        java.util.Arrays.copyOf(parents, nodeCount),
+        java.util.Arrays.copyOf(firstChildren, nodeCount),
+        java.util.Arrays.copyOf(nextSiblings, nodeCount),
+        java.util.Arrays.copyOf(subtreeEnds, nodeCount),
+        java.util.Arrays.copyOf(names, nodeCount),
+        java.util.Arrays.copyOf(textStarts, nodeCount),
+        java.util.Arrays.copyOf(textLengths, nodeCount),
+        java.util.Arrays.copyOf(attributeStarts, nodeCount + 1),
+        java.util.Arrays.copyOf(prefixStarts, nodeCount + 1),
+        java.util.Arrays.copyOf(attributeNames, attributeCount),
+        java.util.Arrays.copyOf(attributeValueStarts, attributeCount),
+        java.util.Arrays.copyOf(attributeValueLengths, attributeCount),
+        java.util.Arrays.copyOf(prefixes, prefixCount),
+        java.util.Arrays.copyOf(namespaceURIs, prefixCount),
+        java.util.Arrays.copyOf(chars, charCount),
+        qNameSymbols,
+        qNameIds,
+        ncNames.result._1,
+        anyURIs.result._1
+      )
+    }
+  }
+
+  /**
+   * Read all events of a reader into an XmlDocument
+   * @throws XMLStreamException if the reader fails
+   */
+  @throws(classOf[XMLStreamException])
+  def load(reader : Enumerator[XmlEvent]) : XmlDocument = {
+    val builder = new Builder
+    var state = reader.initialState
+    while(!state.statusCode.isDone) {
+      val result = state.step()
+      val output = result.output
+      if(output != null) {
+        var i = 0
+        while(i < output.length) {
+          builder.add(output(i))
+          i += 1
+        }
+      }
+      state = result.next
+    }
+    if(!state.statusCode.isSuccess) {
+      throw new XMLStreamException(s"Reader failed: ${state.statusCode}")
+    }
+    builder.result()
+  }
+}
+
+/**
+ * A compact, read-only tree of a document. Nodes are numbered in document 
+ * order, with node 0 the document node. The structure of the tree is held in
+ * primitive int arrays (parent, first child, next sibling and the end of each
+ * node's subtree), names are ids into shared symbol tables and all text 
+ * (element values, text, comments and attribute values) is held in one char
+ * array. Strings are only created when requested.
+ *
+ * Since nodes are in document order, the descendants of a node are the nodes
+ * (node, subtreeEnd(node)), so descendant searches are a linear scan of the
+ * name ids. Build with XmlDocument.Builder, XmlDocument.load or an 
+ * XmlDocumentBuilder iteratee. Instances are immutable and thread safe.
+ */
+final class XmlDocument private (
+  val encoding :                    String,
+  val version :                     String,
+  val isStandAlone :                Boolean,
+  val nodeCount :                   Int,
+  kinds :                           Array[Byte],
+  parents :                         Array[Int],
+  firstChildren :                   Array[Int],
+  nextSiblings :                    Array[Int],
+  subtreeEnds :                     Array[Int],
+  names :                           Array[Int],
+  textStarts :                      Array[Int],
+  textLengths :                     Array[Int],
+  attributeStarts :                 Array[Int],
+  prefixStarts :                    Array[Int],
+  attributeNames :                  Array[Int],
+  attributeValueStarts :            Array[Int],
+  attributeValueLengths :           Array[Int],
+  prefixes :                        Array[Int],
+  namespaceURIs :                   Array[Int],
+  chars :                           Array[Char],
+  qNames :                          Array[XsdQName],
+  qNameIds :                        java.util.Map[XsdQName, Integer],
+  ncNames :                         Array[XsdNCName],
+  anyURIs :                         Array[XsdAnyURI]
+) {
+  import XmlDocument._
+
+  /** @return the kind of the node, one of DOCUMENT, ELEMENT, TEXT or COMMENT */
+  def kind(node : Int) : Int = kinds(node)
+  def isElement(node : Int) = kinds(node) == ELEMENT
+
+  def parent(node : Int) : Int = parents(node)
+  def firstChild(node : Int) : Int = firstChildren(node)
+  def nextSibling(node : Int) : Int = nextSiblings(node)
+  /** @return the node after the last descendant of the node */
+  def subtreeEnd(node : Int) : Int = subtreeEnds(node)
+
+  /** @return the root element or NONE if the document is empty */
+  def rootElement : Int = firstChildElement(DOCUMENT_NODE)
+
+  /** @return the name id of an element or NONE */
+  def nameId(node : Int) : Int = names(node)
+  /** @return the id of a name or NONE if no element or attribute has the name */
+  def nameIdOf(qName : XsdQName) : Int = {
+    val id = qNameIds.get(qName)
+    if(id == null) NONE else id.intValue
+  }
+  def qName(node : Int) : XsdQName = if(names(node) == NONE) null else qNames(names(node))
+  def nameCount = qNames.length
+  def name(nameId : Int) : XsdQName = qNames(nameId)
+
+  /**
+   * @return the value of an element, the text of a text or comment node or 
+   * NULL if the element has no value
+   */
+  def text(node : Int) : String = if(textLengths(node) < 0) null else new String(chars, textStarts(node), textLengths(node))
+  /** @return the length of the text of the node or -1 if it has none */
+  def textLength(node : Int) : Int = textLengths(node)
+  /** Copy the text of the node to dest */
+  def getTextChars(node : Int, dest : Array[Char], destOffset : Int) {
+    System.arraycopy(chars, textStarts(node), dest, destOffset, math.max(0, textLengths(node)))
+  }
+
+  def attributeCount(node : Int) : Int = attributeStarts(node + 1) - attributeStarts(node)
+  def attributeName(node : Int, i : Int) : XsdQName = qNames(attributeNames(attributeStarts(node) + i))
+  def attributeValue(node : Int, i : Int) : String = {
+    val a = attributeStarts(node) + i
+    new String(chars, attributeValueStarts(a), attributeValueLengths(a))
+  }
+  /** @return the value of the attribute or NULL if the element does not have it */
+  def attributeValue(node : Int, qName : XsdQName) : String = {
+    val id = nameIdOf(qName)
+    var a = attributeStarts(node)
+    val end = attributeStarts(node + 1)
+    while(a < end && attributeNames(a) != id) {
+      a += 1
+    }
+    if(id == NONE || a == end) null else new String(chars, attributeValueStarts(a), attributeValueLengths(a))
+  }
+
+  def prefixCount(node : Int) : Int = prefixStarts(node + 1) - prefixStarts(node)
+  def prefix(node : Int, i : Int) : XsdNCName = ncNames(prefixes(prefixStarts(node) + i))
+  def namespaceURI(node : Int, i : Int) : XsdAnyURI = anyURIs(namespaceURIs(prefixStarts(node) + i))
+
+  /** @return the first child element of the node or NONE */
+  def firstChildElement(node : Int) : Int = nextElement(firstChildren(node), NONE)
+
+  /** @return the first child element of the node with the name or NONE */
+  def firstChildElement(node : Int, qName : XsdQName) : Int = {
+    val id = nameIdOf(qName)
+    if(id == NONE) NONE else nextElement(firstChildren(node), id)
+  }
+
+  /** @return the next sibling element of the node or NONE */
+  def nextSiblingElement(node : Int) : Int = nextElement(nextSiblings(node), NONE)
+
+  /** @return the next sibling element of the node with the name or NONE */
+  def nextSiblingElement(node : Int, qName : XsdQName) : Int = {
+    val id = nameIdOf(qName)
+    if(id == NONE) NONE else nextElement(nextSiblings(node), id)
+  }
+
+  // First element of the sibling chain starting at node with the name id (or any name if NONE)
+  private def nextElement(node : Int, id : Int) : Int = {
+    var n = node
+    while(n != NONE && (kinds(n) != ELEMENT || (id != NONE && names(n) != id))) {
+      n = nextSiblings(n)
+    }
+    n
+  }
+
+  /** @return the child elements of the node in document order */
+  def childElements(node : Int) : Array[Int] = collectChildren(node, NONE)
+
+  /** @return the child elements of the node with the name in document order */
+  def childElements(node : Int, qName : XsdQName) : Array[Int] = {
+    val id = nameIdOf(qName)
+    if(id == NONE) Array.emptyIntArray else collectChildren(node, id)
+  }
+
+  private def collectChildren(node : Int, id : Int) : Array[Int] = {
+    val retv = new collection.mutable.ArrayBuilder.ofInt
+    var n = nextElement(firstChildren(node), id)
+    while(n != NONE) {
+      retv += n
+      n = nextElement(nextSiblings(n), id)
+    }
+    retv.result()
+  }
+
+  /** @return the descendant elements of the node with the name in document order */
+  def descendantElements(node : Int, qName : XsdQName) : Array[Int] = {
+    val id = nameIdOf(qName)
+    val retv = new collection.mutable.ArrayBuilder.ofInt
+    if(id != NONE) {
+      var n = node + 1
+      val end = subtreeEnds(node)
+      while(n < end) {
+        if(names(n) == id && kinds(n) == ELEMENT) {
+          retv += n
+        }
+        n += 1
+      }
+    }
+    retv.result()
+  }
+
+  /** @return the number of descendant elements of the node with the name */
+  def countDescendantElements(node : Int, qName : XsdQName) : Int = {
+    val id = nameIdOf(qName)
+    var count = 0
+    if(id != NONE) {
+      var n = node + 1
+      val end = subtreeEnds(node)
+      while(n < end) {
+        if(names(n) == id && kinds(n) == ELEMENT) {
+          count += 1
+        }
+        n += 1
+      }
+    }
+    count
+  }
+
+  /** Push the document to the contract */
+  def replay(contract : XmlContract) {
+    replay(DOCUMENT_NODE, contract)
+  }
+
+  /** Push the node and its descendants (or only the descendants of the document node) to the contract */
+  def replay(node : Int, contract : XmlContract) {
+    // Ends of the subtrees of the open elements, innermost last
+    var openEnds = new Array[Int](64)
+    var depth = 0
+    var n = if(node == DOCUMENT_NODE) 1 else node
+    val end = subtreeEnds(node)
+    while(n < end) {
+      while(depth > 0 && openEnds(depth - 1) == n) {
+        contract.endXmlElement()
+        depth -= 1
+      }
+      (kinds(n) : Int) match {
+        case ELEMENT =>
+          contract.addXmlElement(qNames(names(n)), text(n), attributesImmutableMap(n), prefixToNamespaceURIImmutableMap(n))
+          if(depth == openEnds.length) {
+            openEnds = java.util.Arrays.copyOf(openEnds, depth * 2)
+          }
+          openEnds(depth) = subtreeEnds(n)
+          depth += 1
+        case TEXT =>
+          contract.addXmlText(text(n))
+        case COMMENT =>
+          contract.addXmlComment(text(n))
+        case _ =>
+      }
+      n += 1
+    }
+    while(depth > 0) {
+      contract.endXmlElement()
+      depth -= 1
+    }
+  }
+
+  def attributesImmutableMap(node : Int) : ImmutableMap[XsdQName, String] = {
+    val count = attributeCount(node)
+    if(count == 0) {
+      XmlContract.EMPTY_ATTRIBUTES
+    } else {
+      // ImmutableMap.Builder rejects duplicate keys, the last value wins
+      val map = new java.util.LinkedHashMap[XsdQName, String](count * 2)
+      var i = 0
+      while(i < count) {
+        map.put(attributeName(node, i), attributeValue(node, i))
+        i += 1
+      }
+      ImmutableMap.copyOf(map)
+    }
+  }
+
+  def prefixToNamespaceURIImmutableMap(node : Int) : ImmutableMap[XsdNCName, XsdAnyURI] = {
+    val count = prefixCount(node)
+    if(count == 0) {
+      XmlContract.EMPTY_PREFIXES
+    } else {
+      // ImmutableMap.Builder rejects duplicate keys, the last namespace wins
+      val map = new java.util.LinkedHashMap[XsdNCName, XsdAnyURI](count * 2)
+      var i = 0
+      while(i < count) {
+        map.put(prefix(node, i), namespaceURI(node, i))
+        i += 1
+      }
+      ImmutableMap.copyOf(map)
+    }
+  }
+
+  /** @return the element as an XmlElement (without a locator) */
+  def toXmlElement(node : Int) : XmlElement = {
+    XmlElement(
+      qNames(names(node)),
+      Option(text(node)),
+      for(i <- 0 until attributeCount(node)) yield attributeName(node, i) -> attributeValue(node, i),
+      for(i <- 0 until prefixCount(node)) yield prefix(node, i) -> namespaceURI(node, i)
+    )
+  }
+
+  /**
+   * @return the approximate number of bytes of the arrays that hold the 
+   * document, excluding the shared name objects
+   */
+  def byteSize : Long = {
+    nodeCount.toLong * (1 + 4 * 9) + 
+    attributeNames.length.toLong * 4 * 3 + 
+    prefixes.length.toLong * 4 * 2 + 
+    chars.length.toLong * 2
+  }
+}
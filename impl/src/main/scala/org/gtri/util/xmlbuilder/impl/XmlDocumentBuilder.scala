@@ -0,0 +1,54 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import org.gtri.util.iteratee.api._
+import org.gtri.util.iteratee.impl.iteratees._
+import org.gtri.util.xmlbuilder.api.XmlEvent
+
+/**
+ * An iteratee that builds an XmlDocument from XmlEvents. The document is the
+ * value of the iteratee's Success.
+ */
+class XmlDocumentBuilder extends Iteratee[XmlEvent, XmlDocument] {
+
+  def initialState = new Cont(new XmlDocument.Builder)
+
+  class Cont(builder : XmlDocument.Builder) extends Iteratee.State[XmlEvent, XmlDocument] {
+
+    def statusCode = StatusCode.CONTINUE
+
+    def apply(input : ImmutableBuffer[XmlEvent]) = {
+      var i = 0
+      while(i < input.length) {
+        builder.add(input(i))
+        i += 1
+      }
+      Result(next = this)
+    }
+
+    def endOfInput() = {
+      Success(value = builder.result())
+    }
+  }
+}
@@ -25,13 +25,20 @@ import org.gtri.util.scala.exelog.noop._
 import org.gtri.util.xsddatatypes.{XsdAnyURI, XsdNCName, XsdQName}
 import org.gtri.util.xsddatatypes.XsdQName.NamespaceURIToPrefixResolver
 import org.gtri.util.xmlbuilder.impl.XmlElement.Metadata
+import org.gtri.util.xmlbuilder.api.XmlContract
 import org.gtri.util.issue.api.DiagnosticLocator
+import com.google.common.collect.ImmutableMap
 
 
 object XmlElement {
   implicit val thisclass =    classOf[XmlElement]
   implicit val log : Log =    Logger.getLog(thisclass)
 
+  /**
+   * optAttributesOrder and optPrefixesOrder are only used to order the maps
+   * passed to apply(qName, value, attributesMap, prefixToNamespaceURIMap, 
+   * metadata). Elements created from sequences keep them in document order.
+   */
   case class Metadata(
     optRawAttributesOrder:    Option[Seq[String]] = None, // Note: this includes xmlns:XXX
     optAttributesOrder:       Option[Seq[XsdQName]] = None, // This does *not* include xmlns
@@ -39,6 +46,11 @@ object XmlElement {
     optLocator :              Option[DiagnosticLocator] = None
   )
 
+  private val NO_QNAMES = new Array[XsdQName](0)
+  private val NO_STRINGS = new Array[String](0)
+  private val NO_NCNAMES = new Array[XsdNCName](0)
+  private val NO_ANYURIS = new Array[XsdAnyURI](0)
+
   def apply(
     qName :            XsdQName,
     value :            Option[String],
@@ -46,75 +58,202 @@ object XmlElement {
     prefixes :         Seq[(XsdNCName, XsdAnyURI)],
     optLocator :       Option[DiagnosticLocator] = None,
     optRawAttributes : Option[Seq[(String,String)]] = None
-  ) = new XmlElement(
-    qName,
-    value,
-    attributes.toMap,
-    prefixes.toMap,
-    Some(Metadata(
-      optRawAttributesOrder =  optRawAttributes map { _ map { _._1 } },
-      optAttributesOrder =     Some(attributes map { _._1 }),
-      optPrefixesOrder =       Some(prefixes map { _._1 }),
-      optLocator =             optLocator
-    ))
-  )
+  ) : XmlElement = {
+    val attributeCount = attributes.size
+    val attributeNames = if(attributeCount == 0) NO_QNAMES else new Array[XsdQName](attributeCount)
+    val attributeValues = if(attributeCount == 0) NO_STRINGS else new Array[String](attributeCount)
+    var i = 0
+    for((name, value) <- attributes) {
+      attributeNames(i) = name
+      attributeValues(i) = value
+      i += 1
+    }
+    val prefixCount = prefixes.size
+    val prefixNames = if(prefixCount == 0) NO_NCNAMES else new Array[XsdNCName](prefixCount)
+    val namespaceURIs = if(prefixCount == 0) NO_ANYURIS else new Array[XsdAnyURI](prefixCount)
+    i = 0
+    for((prefix, namespaceURI) <- prefixes) {
+      prefixNames(i) = prefix
+      namespaceURIs(i) = namespaceURI
+      i += 1
+    }
+    val metadata =
+      if(optLocator.isEmpty && optRawAttributes.isEmpty) {
+        None
+      } else {
+        Some(Metadata(
+          optRawAttributesOrder =  optRawAttributes map { _ map { _._1 } },
+          optLocator =             optLocator
+        ))
+      }
+    new XmlElement(qName, value, attributeNames, attributeValues, prefixNames, namespaceURIs, metadata)
+  }
+
+  /**
+   * Create an element from maps (the constructor of XmlElement before it
+   * stored attributes and prefixes in arrays). Attributes and prefixes are 
+   * ordered by the optAttributesOrder and optPrefixesOrder metadata if 
+   * defined, otherwise they are sorted lexicographically by name.
+   */
+  def apply(
+    qName :                     XsdQName,
+    value :                     Option[String],
+    attributesMap :             Map[XsdQName, String],
+    prefixToNamespaceURIMap :   Map[XsdNCName, XsdAnyURI],
+    metadata :                  Option[Metadata]
+  ) : XmlElement = {
+    val attributes =
+      metadata flatMap { _.optAttributesOrder } match {
+        case Some(order) => order flatMap { qName => attributesMap.get(qName) map { value => (qName, value) } }
+        case None => attributesMap.toSeq.sortWith { (t1,t2) => t1._1.toString < t2._1.toString }
+      }
+    val prefixes =
+      metadata flatMap { _.optPrefixesOrder } match {
+        case Some(order) => order flatMap { prefix => prefixToNamespaceURIMap.get(prefix) map { uri => (prefix, uri) } }
+        case None => prefixToNamespaceURIMap.toSeq.sortWith { (t1,t2) => t1._1.toString < t2._1.toString }
+      }
+    val element = apply(qName, value, attributes, prefixes)
+    element.copy(metadata = metadata)
+  }
+
+  def apply(
+    qName :                     XsdQName,
+    value :                     Option[String],
+    attributesMap :             Map[XsdQName, String],
+    prefixToNamespaceURIMap :   Map[XsdNCName, XsdAnyURI]
+  ) : XmlElement = apply(qName, value, attributesMap, prefixToNamespaceURIMap, None)
+
+  def unapply(element : XmlElement) : Option[(XsdQName, Option[String], Map[XsdQName, String], Map[XsdNCName, XsdAnyURI], Option[Metadata])] =
+    Some((element.qName, element.value, element.attributesMap, element.prefixToNamespaceURIMap, element.metadata))
 }
-case class XmlElement(
-  qName :                     XsdQName,
-  value :                     Option[String],
-  attributesMap :             Map[XsdQName, String],
-  prefixToNamespaceURIMap :   Map[XsdNCName, XsdAnyURI],
-  metadata :                  Option[Metadata] = None
-)extends NamespaceURIToPrefixResolver {
+
+/**
+ * An XML element. Attributes and namespace prefixes are stored in parallel
+ * arrays in document order. Map views of attributes and prefixes are only
+ * built when requested.
+ */
+final class XmlElement(
+  val qName :                 XsdQName,
+  val value :                 Option[String],
+  attributeNames :            Array[XsdQName],
+  attributeValues :           Array[String],
+  prefixes :                  Array[XsdNCName],
+  namespaceURIs :             Array[XsdAnyURI],
+  val metadata :              Option[Metadata] = None
+) extends NamespaceURIToPrefixResolver {
   import XmlElement._
 
-  lazy val orderedAttributes : Seq[(XsdQName, String)] = {
-    log.block("orderAttributes") {
-      +"Order attributes by attributesOrder metadata (if defined) or sort lexographically by name"
-      if(metadata.isDefined && metadata.get.optAttributesOrder.isDefined) {
-        ~"Sort by metadata attributesOrder"
-        metadata.get.optAttributesOrder.get.map({
-          qName => attributesMap.get(qName).map { value => (qName,value) }
-        }).flatten
-      } else {
-        ~"Sort by name lexographically"
-        attributesMap.toSeq.sortWith { (t1,t2) => t1._1.toString < t2._1.toString }
+  def attributeCount = attributeNames.length
+  def attributeName(i : Int) = attributeNames(i)
+  def attributeValue(i : Int) = attributeValues(i)
+
+  def prefixCount = prefixes.length
+  def prefix(i : Int) = prefixes(i)
+  def namespaceURI(i : Int) = namespaceURIs(i)
+
+  def optLocator : Option[DiagnosticLocator] = metadata flatMap { _.optLocator }
+
+  /**
+   * Attributes in document order
+   */
+  def orderedAttributes : IndexedSeq[(XsdQName, String)] = new IndexedSeq[(XsdQName, String)] {
+    def length = attributeNames.length
+    def apply(i : Int) = (attributeNames(i), attributeValues(i))
+  }
+
+  /**
+   * Prefixes in document order
+   */
+  def orderedPrefixes : IndexedSeq[(XsdNCName, XsdAnyURI)] = new IndexedSeq[(XsdNCName, XsdAnyURI)] {
+    def length = prefixes.length
+    def apply(i : Int) = (prefixes(i), namespaceURIs(i))
+  }
+
+  lazy val attributesMap : Map[XsdQName, String] = orderedAttributes.toMap
+
+  lazy val prefixToNamespaceURIMap : Map[XsdNCName, XsdAnyURI] = orderedPrefixes.toMap
+
+  lazy val namespaceURIToPrefixMap = prefixToNamespaceURIMap.map(_.swap)
+
+  /**
+   * Attributes as an ImmutableMap in document order. Cached so that repeated
+   * pushes to an XmlContract do not copy the attributes again. If an 
+   * attribute is repeated, the last value wins (as in attributesMap).
+   */
+  lazy val attributesImmutableMap : ImmutableMap[XsdQName, String] = {
+    if(attributeNames.length == 0) {
+      XmlContract.EMPTY_ATTRIBUTES
+    } else {
+      // ImmutableMap.Builder rejects duplicate keys
+      val map = new java.util.LinkedHashMap[XsdQName, String](attributeNames.length * 2)
+      var i = 0
+      while(i < attributeNames.length) {
+        map.put(attributeNames(i), attributeValues(i))
+        i += 1
       }
+      ImmutableMap.copyOf(map)
     }
   }
 
-  lazy val orderedPrefixes : Seq[(XsdNCName, XsdAnyURI)] = {
-    log.block("orderedPrefixes") {
-      +"Order prefixes by prefixOrder metadata (if defined) or sort lexographically name"
-      if(metadata.isDefined && metadata.get.optPrefixesOrder.isDefined) {
-        ~"Sort by metadata prefixOrder"
-        metadata.get.optPrefixesOrder.get.map({
-          prefix => prefixToNamespaceURIMap.get(prefix).map { uri => (prefix,uri) }
-        }).flatten
-      } else {
-        ~"Sort by name lexographically"
-        prefixToNamespaceURIMap.toSeq.sortWith { (t1,t2) => t1._1.toString < t2._1.toString }
+  /**
+   * Prefixes as an ImmutableMap in document order. Cached so that repeated
+   * pushes to an XmlContract do not copy the prefixes again. If a prefix is
+   * repeated, the last namespace wins (as in prefixToNamespaceURIMap).
+   */
+  lazy val prefixToNamespaceURIImmutableMap : ImmutableMap[XsdNCName, XsdAnyURI] = {
+    if(prefixes.length == 0) {
+      XmlContract.EMPTY_PREFIXES
+    } else {
+      // ImmutableMap.Builder rejects duplicate keys
+      val map = new java.util.LinkedHashMap[XsdNCName, XsdAnyURI](prefixes.length * 2)
+      var i = 0
+      while(i < prefixes.length) {
+        map.put(prefixes(i), namespaceURIs(i))
+        i += 1
       }
+      ImmutableMap.copyOf(map)
     }
   }
 
-  lazy val namespaceURIToPrefixMap = prefixToNamespaceURIMap.map(_.swap)
-
   def isValidPrefixForNamespaceURI(prefix: XsdNCName, namespaceURI: XsdAnyURI) = {
-    log.block("isValidPrefixForNamespaceURI", Seq("prefix" -> prefix, "namespaceURI" -> namespaceURI)) {
-      +"TRUE if prefix is defined with the given namespaceURI otherwise FALSE"
-      val optionNsURI = prefixToNamespaceURIMap.get(prefix)
-      if(optionNsURI.isDefined) {
-        optionNsURI.get == namespaceURI
-      } else {
-        false
-      }
+    // TRUE if prefix is defined with the given namespaceURI otherwise FALSE
+    var i = 0
+    var retv = false
+    while(!retv && i < prefixes.length) {
+      retv = prefixes(i) == prefix && namespaceURIs(i) == namespaceURI
+      i += 1
     }
+    retv
   }
 
-  def getPrefixForNamespaceURI(namespaceURI: XsdAnyURI) = {
-    log.block("getPrefixForNamespaceURI", Seq("namespaceURI" -> namespaceURI)) {
-      namespaceURIToPrefixMap.get(namespaceURI).orNull
+  def getPrefixForNamespaceURI(namespaceURI: XsdAnyURI) : XsdNCName = {
+    // Last prefix declared for namespaceURI or NULL
+    var i = namespaceURIs.length - 1
+    while(i >= 0 && namespaceURIs(i) != namespaceURI) {
+      i -= 1
     }
+    if(i >= 0) prefixes(i) else null
   }
-}
\ No newline at end of file
+
+  def copy(
+    qName :     XsdQName = this.qName,
+    value :     Option[String] = this.value,
+    metadata :  Option[Metadata] = this.metadata
+  ) = new XmlElement(qName, value, attributeNames, attributeValues, prefixes, namespaceURIs, metadata)
+
+  override def equals(other : Any) = other match {
+    case e : XmlElement =>
+      (this eq e) || (
+        qName == e.qName &&
+        value == e.value &&
+        orderedAttributes == e.orderedAttributes &&
+        orderedPrefixes == e.orderedPrefixes &&
+        metadata == e.metadata
+      )
+    case _ => false
+  }
+
+  override def hashCode = (qName, value, orderedAttributes, orderedPrefixes).hashCode
+
+  override def toString = s"XmlElement($qName,$value,${orderedAttributes.mkString("[",",","]")},${orderedPrefixes.mkString("[",",","]")},$metadata)"
+}
@@ -0,0 +1,101 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import org.gtri.util.issue.api.DiagnosticLocator
+import org.gtri.util.xsddatatypes.{XsdAnyURI, XsdNCName, XsdQName}
+import org.gtri.util.xmlbuilder.api.{XmlEvent, XmlEventBatch}
+import org.gtri.util.xmlbuilder.api.XmlEventBatch._
+import org.gtri.util.xmlbuilder.impl.events._
+import scala.collection.JavaConverters._
+
+object XmlEventArrayBatch {
+  def apply(events : java.lang.Iterable[XmlEvent]) : XmlEventArrayBatch = new XmlEventArrayBatch(events.asScala.toArray)
+
+  def apply(events : Seq[XmlEvent]) : XmlEventArrayBatch = new XmlEventArrayBatch(events.toArray)
+}
+
+/**
+ * An XmlEventBatch stored in parallel arrays. The attributes and prefixes of
+ * an element are read from the arrays of its XmlElement, so building a batch
+ * only copies references.
+ */
+final class XmlEventArrayBatch(events : Array[XmlEvent]) extends XmlEventBatch {
+  private[this] val eventTypes = new Array[Byte](events.length)
+  private[this] val qNames = new Array[XsdQName](events.length)
+  private[this] val texts = new Array[String](events.length)
+  private[this] val elements = new Array[XmlElement](events.length)
+
+  {
+    var i = 0
+    while(i < events.length) {
+      events(i) match {
+        case StartXmlElementEvent(element, _) =>
+          eventTypes(i) = START_ELEMENT.toByte
+          qNames(i) = element.qName
+          texts(i) = element.value.orNull
+          elements(i) = element
+        case EndXmlElementEvent(qName, _) =>
+          eventTypes(i) = END_ELEMENT.toByte
+          qNames(i) = qName
+        case AddXmlTextEvent(text, _) =>
+          eventTypes(i) = TEXT.toByte
+          texts(i) = text
+        case AddXmlCommentEvent(comment, _) =>
+          eventTypes(i) = COMMENT.toByte
+          texts(i) = comment
+        case _ : StartXmlDocumentEvent =>
+          eventTypes(i) = START_DOCUMENT.toByte
+        case _ : EndXmlDocumentEvent =>
+          eventTypes(i) = END_DOCUMENT.toByte
+        case _ =>
+          eventTypes(i) = OTHER.toByte
+      }
+      i += 1
+    }
+  }
+
+  def size = events.length
+
+  def eventType(i : Int) : Int = eventTypes(i)
+
+  def qName(i : Int) = qNames(i)
+
+  def text(i : Int) = texts(i)
+
+  def attributeCount(i : Int) = if(elements(i) == null) 0 else elements(i).attributeCount
+
+  def attributeName(i : Int, attributeIndex : Int) = elements(i).attributeName(attributeIndex)
+
+  def attributeValue(i : Int, attributeIndex : Int) = elements(i).attributeValue(attributeIndex)
+
+  def prefixCount(i : Int) = if(elements(i) == null) 0 else elements(i).prefixCount
+
+  def prefix(i : Int, prefixIndex : Int) = elements(i).prefix(prefixIndex)
+
+  def namespaceURI(i : Int, prefixIndex : Int) = elements(i).namespaceURI(prefixIndex)
+
+  def locator(i : Int) : DiagnosticLocator = events(i).locator
+
+  def event(i : Int) = events(i)
+}
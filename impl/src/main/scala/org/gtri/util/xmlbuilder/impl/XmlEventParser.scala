@@ -0,0 +1,454 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.impl
+
+import javax.xml.stream.{XMLStreamConstants, XMLStreamReader}
+import com.fasterxml.aalto.AsyncXMLStreamReader
+import org.gtri.util.scala.exelog.noop._
+import org.gtri.util.xsddatatypes._
+import org.gtri.util.issue.api.DiagnosticLocator
+import org.gtri.util.xmlbuilder.api.XmlEvent
+import org.gtri.util.xmlbuilder.impl.events._
+import annotation.tailrec
+
+object XmlEventParser {
+  implicit val thisclass =  classOf[XmlEventParser]
+  implicit val log =        Logger.getLog(thisclass)
+
+  val NO_MAX_TEXT_LENGTH = Int.MaxValue
+}
+
+/**
+ * Converts the events of an XMLStreamReader to XmlEvents. The parser advances
+ * the XMLStreamReader and is not thread safe.
+ *
+ * The reader may be a non-blocking AsyncXMLStreamReader. When it runs out of
+ * input nextEvents returns Nil, and any element whose value is being peek 
+ * parsed is suspended until nextEvents is called again after more input is
+ * fed to the reader.
+ *
+ * Text longer than maxTextLength is not merged into the value of its element.
+ * Instead the element has no value and the text is emitted as a sequence of
+ * AddXmlTextEvents of at most maxTextLength characters, one per call to 
+ * nextEvents, so that the text is never held in memory all at once.
+ *
+ * If there is a projection, only the elements it selects are parsed into 
+ * events. Their ancestors are remembered as they are read, but are emitted 
+ * only when a selected descendant is found. Subtrees that can not contain a
+ * selected element are skipped without reading their names, attributes or 
+ * text, and text and comments outside of selected elements are dropped.
+ */
+class XmlEventParser(
+  val reader :              XMLStreamReader,
+  val nameCache :           XmlNameCache,
+  val locatorCapture :      XmlFileLocator.Capture,
+  val maxTextLength :       Int = XmlEventParser.NO_MAX_TEXT_LENGTH,
+  val projection :          XmlProjection = null
+) {
+  import XmlEventParser._
+
+  require(maxTextLength > 1)
+
+  private[this] var _depth = 0
+  private[this] var _maxDepth = 0
+
+  /**
+   * An element whose value is being peek parsed
+   * @param peekQueue the events peeked so far, in reverse document order
+   * @param peekLength the length of the text peeked so far
+   */
+  private case class PendingElement(
+    qName :       XsdQName,
+    attributes :  Seq[(XsdQName, String)],
+    prefixes :    Seq[(XsdNCName, XsdAnyURI)],
+    optLocator :  Option[DiagnosticLocator],
+    locator :     DiagnosticLocator,
+    peekQueue :   List[XmlEvent],
+    peekLength :  Long
+  )
+
+  // Elements suspended while waiting for input, outermost first
+  private[this] var pendingElements : List[PendingElement] = Nil
+
+  // Offset of the next segment of the current text event, if it is being emitted in segments
+  private[this] var textOffset = 0
+
+  /** An unselected element that may contain a selected element */
+  private class ProjectedAncestor(
+    val state :       XmlProjection.State,
+    val qName :       XsdQName,
+    val attributes :  Seq[(XsdQName, String)],
+    val prefixes :    Seq[(XsdNCName, XsdAnyURI)],
+    val optLocator :  Option[DiagnosticLocator],
+    val locator :     DiagnosticLocator
+  ) {
+    var emitted = false
+  }
+
+  // Open unselected elements, innermost first
+  private[this] var ancestors : List[ProjectedAncestor] = Nil
+
+  // Depth of the selected element being parsed or 0 if outside of selected elements
+  private[this] var selectedDepth = 0
+
+  // Depth of the reader in the subtree being skipped or 0 if not skipping
+  private[this] var skipDepth = 0
+
+  def hasNext = reader.hasNext
+
+  /** @return the depth of the current element, 0 outside the root element */
+  def depth = _depth
+
+  /** @return the maximum element depth seen so far */
+  def maxDepth = _maxDepth
+
+  /**
+   * @return TRUE if every event read from the reader has been returned by 
+   * nextEvents, so that parsing could restart at the reader's current event
+   */
+  def isAtEventBoundary = textOffset == 0 && pendingElements.isEmpty && projection == null
+
+  /**
+   * Parse the next event(s) from the reader. More than one event is returned
+   * when the value of an element could not be peek parsed.
+   * @return the next events in reverse document order
+   */
+  def nextEvents() : List[XmlEvent] = {
+    if(pendingElements.nonEmpty) {
+      // Resume outermost suspended element
+      val pendingElement = pendingElements.head
+      pendingElements = pendingElements.tail
+      parseElement(pendingElement)
+    } else if(projection != null && selectedDepth == 0) {
+      nextProjectedEvents()
+    } else {
+      parseNextEvents()
+    }
+  }
+
+  private def enterElement() {
+    _depth += 1
+    if(_depth > _maxDepth) {
+      _maxDepth = _depth
+    }
+  }
+
+  /**
+   * Parse the next event(s) outside of selected elements
+   * @return the next events in reverse document order or Nil if the reader 
+   * needs more input or is at the end of the document
+   */
+  @tailrec
+  private def nextProjectedEvents() : List[XmlEvent] = {
+    if(skipDepth > 0 && !skipSubtree()) {
+      // Reader needs more input to finish skipping
+      Nil
+    } else {
+      val eventType = reader.getEventType()
+      eventType match {
+        case XMLStreamConstants.START_DOCUMENT => {
+          parseNextEvents()
+        }
+        case XMLStreamConstants.END_DOCUMENT => {
+          // End of document is reported by the owner of the reader (as when hasNext is false)
+          Nil
+        }
+        case XMLStreamConstants.START_ELEMENT => {
+          val parentState = if(ancestors.isEmpty) projection.initialState else ancestors.head.state
+          val state = projection.nextState(parentState, reader.getNamespaceURI(), reader.getLocalName())
+          if(state.isSelected) {
+            // Selected element - parse it and emit any ancestors that have not been emitted
+            selectedDepth = _depth + 1
+            parseNextEvents() ::: emitAncestors()
+          } else if(state.isEmpty) {
+            // Subtree can not contain a selected element - skip it
+            skipDepth = 1
+            nextProjectedEvents()
+          } else {
+            // Subtree may contain a selected element - remember the element
+            val (qName, attributes, prefixes) = getElementInfoFromReader()
+            val locator = getLocatorFromReader
+            val optLocator = if(locatorCapture.isEnabled) Some(locator) else None
+            ancestors = new ProjectedAncestor(state, qName, attributes, prefixes, optLocator, locator) :: ancestors
+            enterElement()
+            reader.next()
+            nextProjectedEvents()
+          }
+        }
+        case XMLStreamConstants.END_ELEMENT => {
+          val ancestor = ancestors.head
+          ancestors = ancestors.tail
+          _depth -= 1
+          if(ancestor.emitted) {
+            val retv = List(EndXmlElementEvent(ancestor.qName, getLocatorFromReader))
+            reader.next()
+            retv
+          } else {
+            reader.next()
+            nextProjectedEvents()
+          }
+        }
+        case AsyncXMLStreamReader.EVENT_INCOMPLETE => {
+          if(reader.next() == AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+            // Reader needs more input
+            Nil
+          } else {
+            nextProjectedEvents()
+          }
+        }
+        case _ => {
+          // Drop text, comments and other events outside of selected elements
+          reader.next()
+          nextProjectedEvents()
+        }
+      }
+    }
+  }
+
+  /**
+   * Advance the reader past the end of the subtree being skipped. Only the 
+   * event types of the subtree are read.
+   * @return FALSE if the reader needs more input
+   */
+  @tailrec
+  private def skipSubtree() : Boolean = {
+    reader.next() match {
+      case XMLStreamConstants.START_ELEMENT =>
+        skipDepth += 1
+        skipSubtree()
+      case XMLStreamConstants.END_ELEMENT =>
+        skipDepth -= 1
+        if(skipDepth == 0) {
+          reader.next()
+          true
+        } else {
+          skipSubtree()
+        }
+      case AsyncXMLStreamReader.EVENT_INCOMPLETE =>
+        false
+      case _ =>
+        skipSubtree()
+    }
+  }
+
+  /**
+   * Mark the ancestors that have not been emitted as emitted
+   * @return their start events in reverse document order
+   */
+  private def emitAncestors() : List[XmlEvent] = {
+    ancestors.takeWhile { !_.emitted } map { ancestor =>
+      ancestor.emitted = true
+      StartXmlElementEvent(XmlElement(ancestor.qName, None, ancestor.attributes, ancestor.prefixes, ancestor.optLocator), ancestor.locator)
+    }
+  }
+
+  private def parseNextEvents() : List[XmlEvent] = {
+    val eventType = reader.getEventType()
+    eventType match {
+      case XMLStreamConstants.START_DOCUMENT => {
+        val retv = List(StartXmlDocumentEvent(
+          reader.getEncoding,
+          reader.getVersion,
+          reader.isStandalone,
+          reader.getCharacterEncodingScheme,
+          getLocatorFromReader
+        ))
+        reader.next()
+        retv 
+      }
+      case XMLStreamConstants.END_DOCUMENT => {
+        val retv = List(EndXmlDocumentEvent(getLocatorFromReader))
+        retv 
+      }
+      case XMLStreamConstants.START_ELEMENT => {
+        val (qName, attributes, prefixes) = getElementInfoFromReader()
+        val locator = getLocatorFromReader
+        val optLocator = if(locatorCapture.isEnabled) Some(locator) else None
+        enterElement()
+        reader.next()
+        parseElement(PendingElement(qName, attributes, prefixes, optLocator, locator, Nil, 0))
+      }
+      case XMLStreamConstants.END_ELEMENT => {
+        val retv = List(EndXmlElementEvent(getElementQNameFromReader, getLocatorFromReader))
+        if(_depth == selectedDepth) {
+          // End of selected element
+          selectedDepth = 0
+        }
+        _depth -= 1
+        reader.next()
+        retv 
+      }
+      case XMLStreamConstants.CHARACTERS => {
+        List(nextTextEvent())
+      }
+      case XMLStreamConstants.CDATA => {
+        List(nextTextEvent())
+      }
+      case XMLStreamConstants.COMMENT => {
+        val retv = List(AddXmlCommentEvent(reader.getText(), getLocatorFromReader))
+        reader.next()
+        retv 
+      }
+      case AsyncXMLStreamReader.EVENT_INCOMPLETE => {
+        reader.next() match {
+          case AsyncXMLStreamReader.EVENT_INCOMPLETE =>
+            // Reader needs more input
+            Nil
+          case XMLStreamConstants.END_DOCUMENT =>
+            // End of document is reported by the owner of the reader (as when hasNext is false)
+            Nil
+          case _ =>
+            parseNextEvents()
+        }
+      }
+      case _ =>
+        log warn s"Unhandled event: $eventType"
+        reader.next()
+        parseNextEvents()
+    }
+  }
+
+  private def getElementQNameFromReader : XsdQName = {
+    nameCache.qName(reader.getPrefix(), reader.getNamespaceURI(), reader.getLocalName())
+  }
+
+  private def getElementInfoFromReader() : (XsdQName, Seq[(XsdQName, String)], Seq[(XsdNCName, XsdAnyURI)]) = {
+    val qName = getElementQNameFromReader
+
+    // Building attributes from reader
+    val attributes = {
+      for(i <- 0 until reader.getAttributeCount())
+      yield {
+        val qName = nameCache.qName(reader.getAttributePrefix(i), reader.getAttributeNamespace(i), reader.getAttributeLocalName(i))
+        val value = reader.getAttributeValue(i)
+        qName -> value
+      }
+    }
+
+    // Building prefixes from reader
+    val prefixes = {
+      for(i <- 0 until reader.getNamespaceCount())
+      yield {
+        val prefix = nameCache.ncName(reader.getNamespacePrefix(i))
+        val uri = nameCache.anyURI(reader.getNamespaceURI(i))
+        prefix -> uri
+      }
+    }
+
+    (qName, attributes, prefixes)
+  }
+
+  def getLocatorFromReader : DiagnosticLocator = locatorCapture(reader)
+
+  /**
+   * Get the text of the current CHARACTERS or CDATA event, or its next 
+   * segment if it is longer than maxTextLength. The reader is advanced after
+   * the last segment.
+   */
+  private def nextTextEvent() : AddXmlTextEvent = {
+    val locator = getLocatorFromReader
+    val textLength = reader.getTextLength
+    if(textOffset == 0 && textLength <= maxTextLength) {
+      val retv = AddXmlTextEvent(reader.getText(), locator)
+      reader.next()
+      retv
+    } else {
+      var length = math.min(maxTextLength, textLength - textOffset)
+      if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+        XmlTrace.trace(thisclass, "nextTextEvent", s"Emit text segment textOffset=$textOffset length=$length textLength=$textLength")
+      }
+      val buffer = reader.getTextCharacters
+      val start = reader.getTextStart + textOffset
+      if(textOffset + length < textLength && Character.isHighSurrogate(buffer(start + length - 1))) {
+        // Do not split a surrogate pair
+        length -= 1
+      }
+      textOffset += length
+      if(textOffset == textLength) {
+        textOffset = 0
+        reader.next()
+      }
+      AddXmlTextEvent(new String(buffer, start, length), locator)
+    }
+  }
+
+  /**
+   * Peek parse the value of an element
+   * @return the element's events in reverse document order or Nil if the 
+   * element was suspended waiting for input
+   */
+  private def parseElement(pendingElement : PendingElement) : List[XmlEvent] = {
+    peekParseElementValue(pendingElement, pendingElement.peekQueue, pendingElement.peekLength) match {
+      case Some((value, peekQueue)) =>
+        val e = pendingElement
+        peekQueue :::
+          StartXmlElementEvent(XmlElement(e.qName, value, e.attributes, e.prefixes, e.optLocator), e.locator) :: Nil
+      case None =>
+        Nil
+    }
+  }
+
+  // Peek at the next few XmlEvents - if it is a string of text events followed by an end event then compress
+  // the sequence by extracting the combined "value" of the text events and throw away the individual
+  // text events. Returns None if the reader needs more input, after suspending the element. If the text is
+  // longer than maxTextLength, peeking stops and the text events are returned as is.
+  @tailrec
+  private def peekParseElementValue(pendingElement : PendingElement, peekQueue : List[XmlEvent], peekLength : Long) : Option[(Option[String], List[XmlEvent])] = {
+    val events = nextEvents()
+    events match {
+      case Nil => {
+        // Reader needs more input - suspend element
+        if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+          XmlTrace.trace(thisclass, "peekParseElementValue", s"Suspend element=${pendingElement.qName} peekLength=$peekLength")
+        }
+        pendingElements = pendingElement.copy(peekQueue = peekQueue, peekLength = peekLength) :: pendingElements
+        None
+      }
+      case List(e:AddXmlTextEvent) => {
+        val nextPeekLength = peekLength + e.text.length
+        if(nextPeekLength > maxTextLength) {
+          // Text is too long to merge into the element value
+          Some((None, e :: peekQueue))
+        } else {
+          peekParseElementValue(pendingElement, e :: peekQueue, nextPeekLength)
+        }
+      }
+      case List(e:EndXmlElementEvent) => {
+        if(peekQueue.nonEmpty) {
+          // peekQueue is in reverse document order
+          val result = peekQueue.foldRight(new StringBuilder) {
+            (event,s) =>
+              event match {
+                case AddXmlTextEvent(text,_) => s.append(text)
+              }
+          }
+          Some((Some(result.toString), events))
+        } else {
+          Some((None, events))
+        }
+      }
+      case _ => {
+        Some((None, events ::: peekQueue))
+      }
+    }
+  }
+}
@@ -21,7 +21,52 @@
 */
 package org.gtri.util.xmlbuilder.impl
 
+import javax.xml.stream.XMLStreamReader
+import org.gtri.util.issue.api.DiagnosticLocator
 import org.gtri.util.xmlbuilder.api
+import org.gtri.util.xmlbuilder.api.XmlLocatorMode
+
+object XmlFileLocator {
+  /**
+   * The locator reported when locators are not captured
+   */
+  val NONE : api.XmlFileLocator = XmlFileLocator(-1, -1, -1, null, null)
+
+  /**
+   * Captures locators from an XMLStreamReader according to an XmlLocatorMode
+   */
+  class Capture(mode : XmlLocatorMode) {
+    /** @return TRUE if locators are captured */
+    def isEnabled = mode != XmlLocatorMode.NONE
+
+    def apply(reader : XMLStreamReader) : DiagnosticLocator = {
+      mode match {
+        case XmlLocatorMode.FULL =>
+          val l = reader.getLocation()
+          XmlFileLocator(l.getCharacterOffset, l.getColumnNumber, l.getLineNumber, l.getPublicId, l.getSystemId)
+        case XmlLocatorMode.LINE_COLUMN =>
+          val l = reader.getLocation()
+          XmlLineColumnLocator(l.getCharacterOffset, l.getColumnNumber, l.getLineNumber)
+        case XmlLocatorMode.NONE =>
+          NONE
+      }
+    }
+  }
+}
+
+/**
+ * A compact locator that holds only the character offset, column and line
+ */
+case class XmlLineColumnLocator(
+  charOffset :    Int,
+  columnNumber :  Int,
+  lineNumber :    Int
+) extends api.XmlFileLocator {
+  def publicId : String = null
+  def systemId : String = null
+
+  override def toString = s"[$lineNumber:$columnNumber]"
+}
 
 case class XmlFileLocator(
   charOffset :    Int,
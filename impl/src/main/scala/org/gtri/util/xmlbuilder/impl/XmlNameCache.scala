@@ -0,0 +1,180 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.impl
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import org.gtri.util.xsddatatypes.{XsdAnyURI, XsdNCName, XsdQName}
+import org.gtri.util.xmlbuilder.api.XmlConstants
+
+object XmlNameCache {
+  val STD_MAX_SIZE = 16384
+}
+
+/**
+ * A bounded, concurrent symbol table that hands back canonical XsdNCName, 
+ * XsdAnyURI and XsdQName instances for the strings reported by a parser. Each
+ * distinct name is validated once. Once maxSize names have been cached, new 
+ * names are created without being cached so that documents with unbounded
+ * name sets cannot grow the table without limit.
+ *
+ * Hit and miss counts are shared by all threads using the cache, so they are
+ * only recorded if requested. A qName lookup counts as one hit or miss.
+ *
+ * @param maxSize maximum number of cached names of each kind
+ * @param recordStats TRUE to record hit and miss counts
+ */
+class XmlNameCache(val maxSize : Int = XmlNameCache.STD_MAX_SIZE, val recordStats : Boolean = false) {
+  require(maxSize >= 0)
+
+  private[this] val ncNames = new ConcurrentHashMap[String, XsdNCName]
+  private[this] val anyURIs = new ConcurrentHashMap[String, XsdAnyURI]
+  // localName -> namespaceURI -> prefix -> qName (nested to avoid allocating a key per lookup)
+  private[this] val qNames = new ConcurrentHashMap[String, ConcurrentHashMap[String, ConcurrentHashMap[String, XsdQName]]]
+  private[this] val qNameCount = new AtomicInteger(0)
+  private[this] val hits = new AtomicLong(0)
+  private[this] val misses = new AtomicLong(0)
+
+  def hitCount : Long = hits.get
+  def missCount : Long = misses.get
+
+  /** @return the canonical XsdNCName for name, null or "" is the default namespace prefix */
+  def ncName(name : String) : XsdNCName = {
+    if(name == null || name.isEmpty) {
+      XmlConstants.DEFAULT_NS_PREFIX
+    } else {
+      val cached = ncNames.get(name)
+      if(cached != null) {
+        if(recordStats) hits.incrementAndGet()
+        cached
+      } else {
+        if(recordStats) misses.incrementAndGet()
+        cacheNCName(name)
+      }
+    }
+  }
+
+  private def cacheNCName(name : String) : XsdNCName = {
+    val retv = new XsdNCName(name)
+    if(ncNames.size < maxSize) {
+      val prev = ncNames.putIfAbsent(name, retv)
+      if(prev != null) prev else retv
+    } else {
+      retv
+    }
+  }
+
+  /** @return the canonical XsdAnyURI for uri, null or "" is the null namespace URI */
+  def anyURI(uri : String) : XsdAnyURI = {
+    if(uri == null || uri.isEmpty) {
+      XmlConstants.NULL_NS_URI
+    } else {
+      val cached = anyURIs.get(uri)
+      if(cached != null) {
+        if(recordStats) hits.incrementAndGet()
+        cached
+      } else {
+        if(recordStats) misses.incrementAndGet()
+        cacheAnyURI(uri)
+      }
+    }
+  }
+
+  private def cacheAnyURI(uri : String) : XsdAnyURI = {
+    val retv = new XsdAnyURI(uri)
+    if(anyURIs.size < maxSize) {
+      val prev = anyURIs.putIfAbsent(uri, retv)
+      if(prev != null) prev else retv
+    } else {
+      retv
+    }
+  }
+
+  // Uncounted lookups for the parts of a qName
+  private def ncNamePart(name : String) : XsdNCName = {
+    if(name == null || name.isEmpty) {
+      XmlConstants.DEFAULT_NS_PREFIX
+    } else {
+      val cached = ncNames.get(name)
+      if(cached != null) cached else cacheNCName(name)
+    }
+  }
+
+  private def anyURIPart(uri : String) : XsdAnyURI = {
+    if(uri == null || uri.isEmpty) {
+      XmlConstants.NULL_NS_URI
+    } else {
+      val cached = anyURIs.get(uri)
+      if(cached != null) cached else cacheAnyURI(uri)
+    }
+  }
+
+  /** @return the canonical XsdQName for prefix, namespace URI and local name */
+  def qName(prefix : String, uri : String, localName : String) : XsdQName = {
+    val p = if(prefix == null) "" else prefix
+    val u = if(uri == null) "" else uri
+    val byURI = qNames.get(localName)
+    val byPrefix = if(byURI == null) null else byURI.get(u)
+    val cached = if(byPrefix == null) null else byPrefix.get(p)
+    if(cached != null) {
+      if(recordStats) hits.incrementAndGet()
+      cached
+    } else {
+      if(recordStats) misses.incrementAndGet()
+      val retv = new XsdQName(ncNamePart(p), anyURIPart(u), ncNamePart(localName))
+      if(qNameCount.get < maxSize) {
+        val prev = getOrCreate(getOrCreate(qNames, localName), u).putIfAbsent(p, retv)
+        if(prev != null) {
+          prev
+        } else {
+          qNameCount.incrementAndGet()
+          retv
+        }
+      } else {
+        retv
+      }
+    }
+  }
+
+  private def getOrCreate[V](map : ConcurrentHashMap[String, ConcurrentHashMap[String, V]], key : String) : ConcurrentHashMap[String, V] = {
+    val existing = map.get(key)
+    if(existing != null) {
+      existing
+    } else {
+      val created = new ConcurrentHashMap[String, V](4)
+      val prev = map.putIfAbsent(key, created)
+      if(prev != null) prev else created
+    }
+  }
+
+  /** Remove all cached names and reset the hit/miss counts */
+  def clear() {
+    ncNames.clear()
+    anyURIs.clear()
+    qNames.clear()
+    qNameCount.set(0)
+    hits.set(0)
+    misses.set(0)
+  }
+
+  override def toString = s"XmlNameCache(hits=$hitCount, misses=$missCount)"
+}
@@ -0,0 +1,80 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package org.gtri.util.xmlbuilder.impl
+
+import org.gtri.util.xsddatatypes.{XsdAnyURI, XsdNCName}
+import org.gtri.util.xsddatatypes.XsdQName.NamespaceURIToPrefixResolver
+
+object XmlNamespaceScope {
+  val EMPTY = new XmlNamespaceScope(Map.empty, Map.empty)
+}
+
+/**
+ * An immutable namespace scope that holds every prefix binding in effect for
+ * an element. Scopes are built incrementally: pushing an element only adds
+ * the element's own prefix bindings to the parent scope (sharing structure 
+ * with it), so lookups do not walk the open element stack.
+ */
+final class XmlNamespaceScope private (
+  prefixToNamespaceURIMap :   Map[XsdNCName, XsdAnyURI],
+  namespaceURIToPrefixMap :   Map[XsdAnyURI, XsdNCName]
+) extends NamespaceURIToPrefixResolver {
+
+  /**
+   * @return the scope of the element, inner bindings hide outer bindings
+   */
+  def push(element : XmlElement) : XmlNamespaceScope = {
+    if(element.prefixCount == 0) this else push(element.orderedPrefixes)
+  }
+
+  def push(prefixes : Seq[(XsdNCName, XsdAnyURI)]) : XmlNamespaceScope = {
+    if(prefixes.isEmpty) {
+      this
+    } else {
+      var p2u = prefixToNamespaceURIMap
+      var u2p = namespaceURIToPrefixMap
+      for((prefix, namespaceURI) <- prefixes) {
+        val oldNamespaceURI = p2u.getOrElse(prefix, null)
+        p2u += prefix -> namespaceURI
+        // If the prefix was bound to another namespace, the old namespace is no longer reachable through it
+        if(oldNamespaceURI != null && u2p.getOrElse(oldNamespaceURI, null) == prefix) {
+          // Fall back to any other prefix still bound to the old namespace
+          p2u collectFirst { case (otherPrefix, `oldNamespaceURI`) => otherPrefix } match {
+            case Some(otherPrefix) => u2p += oldNamespaceURI -> otherPrefix
+            case None => u2p -= oldNamespaceURI
+          }
+        }
+        u2p += namespaceURI -> prefix
+      }
+      new XmlNamespaceScope(p2u, u2p)
+    }
+  }
+
+  def isValidPrefixForNamespaceURI(prefix: XsdNCName, namespaceURI: XsdAnyURI) = {
+    val boundNamespaceURI = prefixToNamespaceURIMap.getOrElse(prefix, null)
+    boundNamespaceURI != null && boundNamespaceURI == namespaceURI
+  }
+
+  def getPrefixForNamespaceURI(namespaceURI: XsdAnyURI) : XsdNCName = namespaceURIToPrefixMap.getOrElse(namespaceURI, null)
+
+  override def toString = prefixToNamespaceURIMap.mkString("XmlNamespaceScope(", ",", ")")
+}
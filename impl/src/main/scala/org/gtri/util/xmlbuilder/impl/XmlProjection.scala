@@ -0,0 +1,209 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import annotation.varargs
+
+object XmlProjection {
+
+  /**
+   * Create a projection from path patterns. A pattern is a sequence of steps
+   * separated by / (child) or // (descendant). A pattern that starts with / 
+   * is matched from the root element, one that starts with // or with a 
+   * step matches at any depth. A step is an element name in Clark notation:
+   * {uri}local matches the local name in the namespace, local matches the 
+   * local name in no namespace, {*}local matches the local name in any 
+   * namespace, {uri}* matches any element in the namespace and * matches any
+   * element. Examples: /{urn:a}doc/{urn:a}record, //{*}item, {urn:a}x//y
+   * @param patterns the path patterns
+   * @return the projection
+   * @throws IllegalArgumentException if a pattern is invalid
+   */
+  @varargs
+  def parse(patterns : String*) : XmlProjection = new XmlProjection(patterns.map(parsePattern))
+
+  /**
+   * A step of a path pattern
+   * @param descendant TRUE if the step matches descendants of the previous step, FALSE if only children
+   * @param namespaceURI the namespace to match or null to match any
+   * @param localName the local name to match or null to match any
+   */
+  case class Step(descendant : Boolean, namespaceURI : String, localName : String) {
+    def matches(uri : String, local : String) =
+      (namespaceURI == null || namespaceURI == uri) && (localName == null || localName == local)
+
+    override def toString = {
+      val name = if(localName == null) "*" else localName
+      val axis = if(descendant) "//" else "/"
+      if(namespaceURI == null) {
+        axis + (if(localName == null) "" else "{*}") + name
+      } else if(namespaceURI.isEmpty && localName != null) {
+        axis + name
+      } else {
+        axis + "{" + namespaceURI + "}" + name
+      }
+    }
+  }
+
+  def parsePattern(pattern : String) : List[Step] = {
+    require(pattern != null && pattern.length > 0, "Empty path pattern")
+    def invalid(msg : String) = throw new IllegalArgumentException(s"Invalid path pattern '$pattern': $msg")
+    val steps = List.newBuilder[Step]
+    var descendant = !pattern.startsWith("/") || pattern.startsWith("//")
+    var i = if(pattern.startsWith("//")) 2 else if(pattern.startsWith("/")) 1 else 0
+    var done = false
+    while(!done) {
+      // None if the name has no {uri} part
+      val optURI = {
+        if(i < pattern.length && pattern.charAt(i) == '{') {
+          val end = pattern.indexOf('}', i)
+          if(end == -1) {
+            invalid("missing }")
+          }
+          val uri = pattern.substring(i + 1, end)
+          i = end + 1
+          Some(if(uri == "*") null else uri)
+        } else {
+          None
+        }
+      }
+      val end = pattern.indexOf('/', i) match {
+        case -1 => pattern.length
+        case n => n
+      }
+      val local = pattern.substring(i, end)
+      if(local.isEmpty || local.contains('{') || local.contains('}')) {
+        invalid("expected a name at " + i)
+      }
+      steps += {
+        if(local == "*") {
+          Step(descendant, optURI.orNull, null)
+        } else {
+          Step(descendant, optURI.getOrElse(""), local)
+        }
+      }
+      if(end == pattern.length) {
+        done = true
+      } else {
+        descendant = pattern.startsWith("//", end)
+        i = if(descendant) end + 2 else end + 1
+        if(i >= pattern.length) {
+          invalid("expected a name after /")
+        }
+      }
+    }
+    steps.result()
+  }
+
+  /**
+   * The state of matching an element against the projection's patterns
+   * @param positions the indexes of the steps that descendants of the element may match next
+   * @param isSelected TRUE if the element matches a pattern
+   */
+  final class State(private[XmlProjection] val positions : Array[Int], val isSelected : Boolean) {
+    /** @return TRUE if neither the element nor any of its descendants can match a pattern */
+    def isEmpty = !isSelected && positions.length == 0
+  }
+
+  private val SELECTED = new State(Array(), true)
+  private val EMPTY = new State(Array(), false)
+}
+
+/**
+ * A set of path patterns that select the elements of a document to read.
+ * Reading with a projection emits selected elements with all of their 
+ * content. The ancestors of a selected element are emitted (without text 
+ * or comments) to preserve its context. Subtrees that can not contain a 
+ * selected element are skipped without building any events.
+ *
+ * Patterns are matched with a set of positions in their steps per open 
+ * element, so the cost of matching an element is proportional to the number
+ * of patterns, not to its depth.
+ *
+ * @param patterns the steps of each pattern
+ */
+class XmlProjection(val patterns : Seq[List[XmlProjection.Step]]) {
+  import XmlProjection._
+
+  require(patterns.nonEmpty && patterns.forall(_.nonEmpty))
+
+  // The steps of all patterns, in order
+  private[this] val steps = patterns.flatten.toArray
+  // TRUE if the step at the same index is the last step of its pattern
+  private[this] val isLastStep = patterns.flatMap { pattern => List.fill(pattern.size - 1)(false) :+ true }.toArray
+
+  /** The state of the document, before the root element */
+  val initialState = new State(patterns.scanLeft(0) { _ + _.size }.init.toArray, false)
+
+  /**
+   * Match an element
+   * @param parent the state of the parent of the element
+   * @param namespaceURI the namespace of the element (null or empty for none)
+   * @param localName the local name of the element
+   * @return the state of the element
+   */
+  def nextState(parent : State, namespaceURI : String, localName : String) : State = {
+    require(!parent.isSelected)
+    val uri = if(namespaceURI == null) "" else namespaceURI
+    val positions = parent.positions
+    // Each position advances to at most two positions
+    val nextPositions = new Array[Int](positions.length * 2)
+    var count = 0
+    def add(position : Int) {
+      var i = 0
+      while(i < count && nextPositions(i) != position) {
+        i += 1
+      }
+      if(i == count) {
+        nextPositions(count) = position
+        count += 1
+      }
+    }
+    var isSelected = false
+    var i = 0
+    while(i < positions.length && !isSelected) {
+      val position = positions(i)
+      val step = steps(position)
+      if(step.matches(uri, localName)) {
+        if(isLastStep(position)) {
+          isSelected = true
+        } else {
+          add(position + 1)
+        }
+      }
+      if(step.descendant) {
+        add(position)
+      }
+      i += 1
+    }
+    if(isSelected) {
+      SELECTED
+    } else if(count == 0) {
+      EMPTY
+    } else {
+      new State(java.util.Arrays.copyOf(nextPositions, count), false)
+    }
+  }
+
+  override def toString = patterns.map { _.mkString }.mkString("XmlProjection(", ", ", ")")
+}
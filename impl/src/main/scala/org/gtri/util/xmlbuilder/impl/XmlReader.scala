@@ -22,290 +22,341 @@
 
 package org.gtri.util.xmlbuilder.impl
 
-import javax.xml.stream.{XMLStreamConstants, XMLStreamReader}
+import javax.xml.stream.XMLStreamReader
+import javax.xml.stream.util.StreamReaderDelegate
+import org.codehaus.stax2.XMLStreamReader2
 import org.gtri.util.scala.exelog.noop._
-import org.gtri.util.xsddatatypes._
 import org.gtri.util.issue.Issues
 import org.gtri.util.issue.api.{ Issue, IssueHandlingStrategy }
 import org.gtri.util.iteratee.api._
 import org.gtri.util.iteratee.impl.iteratees.Chunk
 import org.gtri.util.iteratee.impl.ImmutableBufferConversions._
 import org.gtri.util.iteratee.impl.enumerators._
-import org.gtri.util.xmlbuilder.api.XmlEvent
+import org.gtri.util.xmlbuilder.api.{ByteCounter, XmlEvent, XmlLocatorMode, XmlReaderListener}
 import org.gtri.util.xmlbuilder.api.XmlFactory.XMLStreamReaderFactory
 import org.gtri.util.xmlbuilder.impl.events._
-import annotation.tailrec
+import scala.collection.JavaConverters._
 
 
 object XmlReader {
   implicit val thisclass =  classOf[XmlReader]
   implicit val log =        Logger.getLog(thisclass)
+
+  /** The number of events between checks of the chunk fill time */
+  val BUDGET_CHECK_INTERVAL = 16
+
+  /**
+   * Create a Progress from 64-bit counts. Progress counts are ints, so counts
+   * larger than Int.MaxValue are scaled down by a power of two to preserve
+   * the ratio of completed to total.
+   */
+  def progressOf(completed : Long, total : Long) : Progress = {
+    var shift = 0
+    while((total >> shift) > Int.MaxValue) {
+      shift += 1
+    }
+    new Progress(0, (math.min(completed, total) >> shift).toInt, (total >> shift).toInt)
+  }
+
+  /**
+   * @return the reader underneath any StreamReaderDelegates
+   */
+  def unwrap(reader : XMLStreamReader) : XMLStreamReader = {
+    reader match {
+      case delegate : StreamReaderDelegate => unwrap(delegate.getParent)
+      case _ => reader
+    }
+  }
+
+  /**
+   * @return TRUE if markup in the encoding is one byte per character, which 
+   * is required to resume from a byte offset
+   */
+  def isAsciiCompatible(encoding : String) : Boolean = {
+    try {
+      "<".getBytes(encoding).length == 1
+    } catch {
+      case e : java.io.UnsupportedEncodingException => false
+    }
+  }
 }
+
+/**
+ * Reads XmlEvents from an XMLStreamReader.
+ *
+ * If checkpointInterval is greater than 0, an XmlCheckpointEvent is added 
+ * after the chunk in which at least checkpointInterval events have been read
+ * since the last checkpoint. Checkpoints require an XMLStreamReader2 (such as
+ * Aalto) that reports byte offsets, an ASCII compatible encoding and no 
+ * projection. A reader created with resumeFrom reads an input that starts 
+ * with the checkpoint's resumePrefix followed by the input from the 
+ * checkpoint's byte offset. It drops the events of the resume prefix and 
+ * continues as if it had read the document from the start.
+ */
 class XmlReader(
   factory :                 XMLStreamReaderFactory,
   issueHandlingStrategy :   IssueHandlingStrategy,
-  val chunkSize :           Int = 256
+  val chunkSize :           Int = 256,
+  val nameCache :           XmlNameCache = new XmlNameCache(),
+  val locatorMode :         XmlLocatorMode = XmlLocatorMode.FULL,
+  val listener :            XmlReaderListener = null,
+  val chunkBudget :         XmlChunkBudget = null,
+  val maxTextLength :       Int = XmlEventParser.NO_MAX_TEXT_LENGTH,
+  val projection :          XmlProjection = null,
+  val checkpointInterval :  Long = 0,
+  val resumeFrom :          XmlCheckpoint = null
 ) extends Enumerator[XmlEvent] {
   import XmlReader._
 
   require(chunkSize > 0)
+  require(checkpointInterval >= 0)
+
+  private val initialEventLimit = if(chunkBudget == null) chunkSize else math.min(chunkSize, chunkBudget.maxEvents)
 
   def initialState() = {
-    log.block("initialState") {
-      try {
-        +"Trying to create reader"
-        val result = factory.create()
-        +"Created reader"
-        Cont(result.reader(), new Progress(0,0,result.totalByteSize))
-      } catch {
-        case e : Exception =>
-          log.fatal("Failed to create reader",e)
-          val msg : String = e.getMessage
-          val issue : Issue = Issues.INSTANCE.fatalError(msg)
-          Failure[XmlEvent](
-            progress = Progress.empty,
-            issues = Chunk(issue)
-          )
-      }
+    try {
+      val result = factory.create()
+      val parser = new XmlEventParser(result.reader(), nameCache, new XmlFileLocator.Capture(locatorMode), maxTextLength, projection)
+      val checkpointer = if(checkpointInterval > 0 || resumeFrom != null) new Checkpointer(parser) else null
+      Cont(parser, result.byteCounter(), result.totalByteSize(), progressOf(0, result.totalByteSize()), 0, initialEventLimit, checkpointer)
+    } catch {
+      case e : Exception =>
+        log.fatal("Failed to create reader",e)
+        val msg : String = e.getMessage
+        val issue : Issue = Issues.INSTANCE.fatalError(msg)
+        Failure[XmlEvent](
+          progress = Progress.empty,
+          issues = Chunk(issue)
+        )
     }
   }
 
-  case class Cont(reader : XMLStreamReader, val progress : Progress) extends Enumerator.State[XmlEvent] {
-
-    def statusCode = StatusCode.CONTINUE
-
-    def step() = {
-      log.block("step") {
-        // TODO: what happens if reader fails?
-        +"Filling buffer"
-        ~s"Creating buffer of size=$chunkSize"
-        val buffer = new collection.mutable.ArrayBuffer[XmlEvent](chunkSize)
-        ~s"Filling buffer with nextEvents"
-        while(buffer.size < chunkSize && reader.hasNext) {
-          buffer ++= nextEvents().reverse
-        }
-        ~s"Filled buffer#: $buffer"
+  /**
+   * Tracks the open elements and the number of the events read, and creates
+   * checkpoints. When resuming, drops the events of the resume prefix.
+   */
+  class Checkpointer(parser : XmlEventParser) {
+    private[this] val reader2 = unwrap(parser.reader) match {
+      case r : XMLStreamReader2 => r
+      case _ =>
+        log.warn("Reader does not report byte offsets, checkpoints are disabled")
+        null
+    }
+    // Offset in the input of the first byte read by the reader
+    private[this] val byteOffsetBase = if(resumeFrom == null) 0L else resumeFrom.byteOffset - resumeFrom.resumePrefix.length
+    // Events of the resume prefix (start document and the open elements) not yet dropped
+    private[this] var resumePrefixEventCount = if(resumeFrom == null) 0 else resumeFrom.openElementCount + 1
+    private[this] var eventCount = if(resumeFrom == null) 0L else resumeFrom.eventCount
+    private[this] var nextCheckpoint = eventCount + checkpointInterval
+    // Open elements of the checkpoint resumed from that are still open, outermost first
+    private[this] var resumedElements = if(resumeFrom == null) IndexedSeq[XmlCheckpointElement]() else resumeFrom.openElements
+    // Elements opened since, innermost first. Converted only when a checkpoint is created.
+    private[this] var elements : List[XmlElement] = Nil
+    private[this] var encoding = if(resumeFrom == null) "UTF-8" else resumeFrom.encoding
+    private[this] var version = if(resumeFrom == null) "1.0" else resumeFrom.version
 
-        +"Calculating nextProgress"
-        val nextProgress = {
-          if(progress.totalItemCount > 0) {
-            val charOffset = reader.getLocation.getCharacterOffset
-            ~s"Got charOffset=$charOffset -1 is returned after eoi reached"
-            if(charOffset == -1) {
-              ~s"At eoi"
-              new Progress(0,progress.totalItemCount,progress.totalItemCount)
-            } else {
-              ~s"Some progress"
-              new Progress(0,reader.getLocation.getCharacterOffset,progress.totalItemCount)
-            }
-          } else {
-            ~s"Not possible to calc nextProgress setting to empty"
-            Progress.empty
+    /**
+     * Add events to the buffer, dropping events of the resume prefix
+     */
+    def add(buffer : collection.mutable.ArrayBuffer[XmlEvent], events : List[XmlEvent]) {
+      for(event <- events) {
+        if(resumePrefixEventCount > 0) {
+          resumePrefixEventCount -= 1
+          event match {
+            case StartXmlElementEvent(element, locator) if resumePrefixEventCount == 0 && element.value.exists { _.nonEmpty } =>
+              // Text of the innermost open element was parsed as the value of its resume prefix start tag
+              add(buffer, AddXmlTextEvent(element.value.get, locator) :: Nil)
+            case _ =>
           }
-        }
-        ~s"nextProgress=$nextProgress"
-
-        +s"If buffer is empty we are done"
-        if(buffer.isEmpty) {
-          +s"Buffer is empty - close reader and return Success"
-          reader.close()
-
-          Success[XmlEvent](
-            progress = nextProgress,
-            output = Chunk(EndXmlDocumentEvent(getLocatorFromReader))
-          )
         } else {
-          +s"Buffer not empty - make immutable copy and return result"
-          val immutableCopyOfBuffer : IndexedSeq[XmlEvent] = buffer.toIndexedSeq
-          Result(Cont(reader, nextProgress), immutableCopyOfBuffer)
+          buffer += event
+          eventCount += 1
+          event match {
+            case e : StartXmlElementEvent =>
+              elements = e.element :: elements
+            case e : EndXmlElementEvent =>
+              if(elements.nonEmpty) {
+                elements = elements.tail
+              } else if(resumedElements.nonEmpty) {
+                resumedElements = resumedElements.dropRight(1)
+              }
+            case e : StartXmlDocumentEvent =>
+              if(e.encoding != null) encoding = e.encoding
+              if(e.version != null) version = e.version
+            case _ =>
+          }
         }
       }
     }
 
-    private def nextEvents() : List[XmlEvent] = {
-      log.block("nextEvents") {
-        val eventType = reader.getEventType()
-        ~s"MATCH reader.getEventType=$eventType"
-        eventType match {
-  // TODO: these don't work for some reason
-  //        case XMLStreamConstants.ATTRIBUTE => {
-  //          val i = reader.getAttributeCount - 1
-  //          println("getAttributeCount=" + reader.getAttributeCount)
-  //          println("getAttributeLocalName=" + reader.getAttributeName(i))
-  //          println("getAttributeCount=" + reader.getAttributeValue(i))
-  //          nextEvents()
-  //        }
-  //        case XMLStreamConstants.NAMESPACE => {
-  //          val i = reader.getNamespaceCount - 1
-  //          println("getNamespaceCount=" + reader.getNamespaceCount)
-  //          println("getNamespacePrefix=" + reader.getNamespacePrefix(i))
-  //          println("getNamespaceURI=" + reader.getNamespaceURI(i))
-  //          nextEvents()
-  //        }
-          case XMLStreamConstants.START_DOCUMENT => {
-            ~s"CASE START_DOCUMENT"
-            val retv = List(StartXmlDocumentEvent(
-              reader.getEncoding,
-              reader.getVersion,
-              reader.isStandalone,
-              reader.getCharacterEncodingScheme,
-              getLocatorFromReader
-            ))
-            ~"reader.next()"
-            reader.next()
-            retv 
-          }
-          case XMLStreamConstants.END_DOCUMENT => {
-            ~s"CASE END_DOCUMENT"
-            val retv = List(EndXmlDocumentEvent(getLocatorFromReader))
-            retv 
-          }
-          case XMLStreamConstants.START_ELEMENT => {
-            ~s"CASE START_ELEMENT"
-            val (qName, attributes, prefixes) = getElementInfoFromReader()
-            val locator = getLocatorFromReader
-            ~s"reader.next()"
-            reader.next()
-            val (value, peekQueue) = peekParseElementValue()
-            ~s"Peek parsed value=$value peekQueue=$peekQueue"
-            val retv = peekQueue :::
-              StartXmlElementEvent(XmlElement(qName, value, attributes, prefixes, Some(locator)), locator) :: Nil
-            retv 
-          }
-          case XMLStreamConstants.END_ELEMENT => {
-            ~s"CASE END_ELEMENT"
-            val retv = List(EndXmlElementEvent(getElementQNameFromReader, getLocatorFromReader))
-            ~s"reader.next()"
-            reader.next()
-            retv 
-          }
-          case XMLStreamConstants.CHARACTERS => {
-            ~s"CASE CHARACTERS"
-            val retv = List(AddXmlTextEvent(reader.getText(), getLocatorFromReader))
-            ~s"reader.next()"
-            reader.next()
-            retv 
-          }
-          case XMLStreamConstants.CDATA => {
-            ~s"CASE CDATA"
-            val retv = List(AddXmlTextEvent(reader.getText(), getLocatorFromReader))
-            ~s"reader.next()"
-            reader.next()
-            retv 
-          }
-          case XMLStreamConstants.COMMENT => {
-            ~s"CASE COMMENT"
-            val retv = List(AddXmlCommentEvent(reader.getText(), getLocatorFromReader))
-            ~s"reader.next()"
-            reader.next()
-            retv 
+    /**
+     * @return a checkpoint event if one is due and parsing can resume at the
+     * reader's current event
+     */
+    def checkpoint() : Option[XmlCheckpointEvent] = {
+      if(
+        checkpointInterval > 0 && 
+        eventCount >= nextCheckpoint && 
+        reader2 != null && 
+        parser.isAtEventBoundary && 
+        parser.hasNext && 
+        isAsciiCompatible(encoding)
+      ) {
+        val offset = reader2.getLocationInfo.getStartingByteOffset
+        if(offset < 0) {
+          None
+        } else {
+          nextCheckpoint = eventCount + checkpointInterval
+          val openElements = resumedElements ++ elements.reverse.map { XmlCheckpointElement(_) }
+          val checkpoint = XmlCheckpoint(byteOffsetBase + offset, eventCount, openElements, encoding, version)
+          if(XmlTrace.ENABLED) {
+            XmlTrace.trace(thisclass, "checkpoint", s"Created checkpoint=$checkpoint")
           }
-          case _ =>
-            log warn s"Unhandled event: $eventType"
-            ~s"reader.next()"
-            reader.next()
-            ~s"Recursing nextEvents"
-            nextEvents()
+          Some(XmlCheckpointEvent(checkpoint, parser.getLocatorFromReader))
         }
+      } else {
+        None
       }
     }
+  }
 
-    private def getElementQNameFromReader : XsdQName = {
-      val prefix = newXsdNCName(reader.getPrefix())
-      val uri = newXsdAnyURI(reader.getNamespaceURI())
-      val localName = new XsdNCName(reader.getLocalName())
-      new XsdQName(prefix, uri, localName)
-    }
+  case class Cont(
+    parser :        XmlEventParser, 
+    byteCounter :   ByteCounter, 
+    totalByteSize : Long, 
+    val progress :  Progress,
+    byteCount :     Long,
+    eventLimit :    Int,
+    checkpointer :  Checkpointer
+  ) extends Enumerator.State[XmlEvent] with java.io.Closeable {
 
-    private def getElementInfoFromReader() : (XsdQName, Seq[(XsdQName, String)], Seq[(XsdNCName, XsdAnyURI)]) = {
-      log.block(s"getElementInfoFromReader") {
-
-        val qName = getElementQNameFromReader
-
-        ~"Building attributes from reader"
-        val attributes = {
-          for(i <- 0 until reader.getAttributeCount())
-          yield {
-            val prefix = newXsdNCName(reader.getPrefix())
-            val uri = newXsdAnyURI(reader.getAttributeNamespace(i))
-            val localName = new XsdNCName(reader.getAttributeLocalName(i))
-            val qName = new XsdQName(prefix, uri, localName)
-            val value = reader.getAttributeValue(i)
-            qName -> value
-          }
-        }
+    def statusCode = StatusCode.CONTINUE
 
-        ~"Building prefixes from reader"
-        val prefixes = {
-          for(i <- 0 until reader.getNamespaceCount())
-          yield {
-            val prefix = newXsdNCName(reader.getNamespacePrefix(i))
-            val uri = newXsdAnyURI(reader.getNamespaceURI(i))
-            prefix -> uri
-          }
-        }
-  
-        (qName, attributes, prefixes)
-      }
+    def reader = parser.reader
+
+    /**
+     * Close the reader (and its input) when the document will not be read 
+     * to the end
+     */
+    def close() {
+      reader.close()
     }
 
-    private def newXsdAnyURI(uri: String) = {
-      if(uri == null) {
-        XmlConstants.NULL_NS_URI
+    private def addNextEvents(buffer : collection.mutable.ArrayBuffer[XmlEvent]) {
+      if(checkpointer == null) {
+        buffer ++= parser.nextEvents().reverse
       } else {
-        new XsdAnyURI(uri)
+        checkpointer.add(buffer, parser.nextEvents().reverse)
       }
     }
-    private def newXsdNCName(name : String) = {
-      if(name == null) {
-        XmlConstants.DEFAULT_NS_PREFIX
-      } else {
-        new XsdNCName(name)
+
+    /**
+     * Fill the buffer until it reaches the event limit or exceeds the chunk 
+     * budget. The characters consumed are checked after every event, the 
+     * fill time every BUDGET_CHECK_INTERVAL events.
+     * @return the event limit for the next chunk
+     */
+    private def fillToBudget(buffer : collection.mutable.ArrayBuffer[XmlEvent]) : Int = {
+      val startNanos = System.nanoTime()
+      val startCharOffset = reader.getLocation.getCharacterOffset
+      var overBudget = false
+      var nextCheck = BUDGET_CHECK_INTERVAL
+      while(!overBudget && buffer.size < eventLimit && reader.hasNext) {
+        addNextEvents(buffer)
+        val charOffset = reader.getLocation.getCharacterOffset
+        overBudget = startCharOffset >= 0 && charOffset - startCharOffset >= chunkBudget.maxChars
+        if(!overBudget && buffer.size >= nextCheck) {
+          nextCheck = buffer.size + BUDGET_CHECK_INTERVAL
+          overBudget = System.nanoTime() - startNanos >= chunkBudget.maxFillNanos
+        }
       }
+      val fillNanos = System.nanoTime() - startNanos
+      val charOffset = reader.getLocation.getCharacterOffset
+      // Offset is -1 if unsupported or after eoi
+      val charCount = if(startCharOffset >= 0 && charOffset >= 0) charOffset - startCharOffset else -1
+      chunkBudget.nextEventLimit(eventLimit, buffer.size, charCount, fillNanos)
     }
-    private def getLocatorFromReader : XmlFileLocator = {
-      val l = reader.getLocation()
-      XmlFileLocator(l.getCharacterOffset, l.getColumnNumber, l.getLineNumber, l.getPublicId, l.getSystemId)
-    }
-    // Peek at the next few XmlEvents - if it is a string of text events followed by an end event then compress
-    // the sequence by extracting the combined "value" of the text events and throw away the individual
-    // text events
-    @tailrec
-    private def peekParseElementValue(peekQueue : List[XmlEvent] = Nil) : (Option[String], List[XmlEvent]) = {
-      log.begin("peekParseElementValue", Seq("peekQueue#" -> peekQueue))
-      val events = nextEvents()
-      ~s"MATCH nextEvents=$events"
-      events match {
-        case List(e:AddXmlTextEvent) => {
-          ~"CASE List(e:AddXmlTextEvent)"
-          ~s"Got an events list with exactly one AddXmlTextEvent=$e"
-          peekParseElementValue(e :: peekQueue)
+
+    def step() = {
+      // TODO: what happens if reader fails?
+      val startNanos = if(listener != null) System.nanoTime() else 0L
+      val buffer = new collection.mutable.ArrayBuffer[XmlEvent](eventLimit)
+      val nextEventLimit = {
+        if(chunkBudget == null) {
+          // Filling buffer with nextEvents
+          while(buffer.size < chunkSize && reader.hasNext) {
+            addNextEvents(buffer)
+          }
+          chunkSize
+        } else {
+          fillToBudget(buffer)
         }
-        case List(e:EndXmlElementEvent) => {
-          ~"CASE List(e:EndXmlElementEvent)"
-          ~s"Got an events list with exactly one EndXmlElementEvent=$e"
-          if(peekQueue.nonEmpty) {
-            val result = peekQueue.foldLeft(new StringBuilder) {
-              (s,event) =>
-                event match {
-                  case AddXmlTextEvent(text,_) => s.append(text)
-                }
+      }
+
+      if(checkpointer != null && buffer.nonEmpty) {
+        // Add a checkpoint after the chunk (if due)
+        checkpointer.checkpoint() foreach { buffer += _ }
+      }
+
+      // Calculating nextProgress
+      val nextProgress = {
+        if(totalByteSize > 0) {
+          if(byteCounter != null) {
+            // Using byteCounter for byte accurate progress
+            progressOf(byteCounter.byteCount, totalByteSize)
+          } else {
+            val charOffset = reader.getLocation.getCharacterOffset
+            if(charOffset == -1) {
+              // At eoi
+              progressOf(totalByteSize, totalByteSize)
+            } else {
+              // Some progress
+              progressOf(charOffset, totalByteSize)
             }
-            val retv = (Some(result.toString), events)
-            log.end("peekParseElementValue", retv)
-            retv
+          }
+        } else {
+          // Not possible to calc nextProgress setting to empty
+          Progress.empty
+        }
+      }
+
+      // Report chunk to listener (if any)
+      def report(events : IndexedSeq[XmlEvent]) : Long = {
+        val fillNanos = System.nanoTime() - startNanos
+        val nextByteCount = {
+          if(byteCounter != null) {
+            byteCounter.byteCount
           } else {
-            val retv = (None, events)
-            log.end("peekParseElementValue", retv)
-            retv
+            val charOffset = reader.getLocation.getCharacterOffset
+            if(charOffset == -1 && totalByteSize > 0) totalByteSize else math.max(byteCount, charOffset.toLong)
           }
         }
-        case _ => {
-          ~"CASE _"
-          val retv = (None, events ::: peekQueue)
-          log.end("peekParseElementValue", retv)
-          retv
+        listener.chunkRead(events.asJava, fillNanos, nextByteCount - byteCount, parser.maxDepth)
+        nextByteCount
+      }
+
+      if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+        XmlTrace.trace(thisclass, "step", s"Filled buffer with ${buffer.size} events nextEventLimit=$nextEventLimit nextProgress=$nextProgress")
+      }
+
+      // If buffer is empty we are done
+      if(buffer.isEmpty) {
+        // Buffer is empty - close reader and return Success
+        val endXmlDocumentEvent = EndXmlDocumentEvent(parser.getLocatorFromReader)
+        if(listener != null) {
+          report(Vector(endXmlDocumentEvent))
         }
+        reader.close()
+
+        Success[XmlEvent](
+          progress = nextProgress,
+          output = Chunk(endXmlDocumentEvent)
+        )
+      } else {
+        // Buffer not empty - make immutable copy and return result
+        val immutableCopyOfBuffer : IndexedSeq[XmlEvent] = buffer.toIndexedSeq
+        val nextByteCount = if(listener != null) report(immutableCopyOfBuffer) else byteCount
+        Result(copy(progress = nextProgress, byteCount = nextByteCount, eventLimit = nextEventLimit), immutableCopyOfBuffer)
       }
     }
   }
@@ -0,0 +1,368 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl
+
+import java.io._
+import com.google.common.io.LimitInputStream
+
+object XmlRecordIndex {
+  private val MAGIC = 0x58524958 // "XRIX"
+  private val VERSION = 1
+  private val UTF8 = "UTF-8"
+
+  /**
+   * @return the conventional sidecar file of an indexed file
+   */
+  def sidecarFile(file : File) : File = new File(file.getPath + ".idx")
+
+  /**
+   * Index every element at a depth in one pass over the input with an
+   * XmlByteScanner. The input is not parsed, so building an index costs
+   * little more than reading the input.
+   * @param in the input, which must use an ASCII compatible encoding such as UTF-8
+   * @param depth the depth of the records (the root element is depth 1)
+   * @param sourceLength the length of the input in bytes, saved to detect a stale index
+   * @return the index
+   */
+  @throws(classOf[IOException])
+  def build(in : InputStream, depth : Int, sourceLength : Long) : XmlRecordIndex = {
+    require(depth > 0)
+    val scanner = new XmlByteScanner(in)
+    val builder = new Builder
+    // Bindings in scope for children of each open element above the record depth
+    var scopes : List[Map[String, String]] = Map.empty[String, String] :: Nil
+    var xmlDeclaration = Array[Byte]()
+    var recordOffset = -1L
+    var token = scanner.next()
+    if(token == XmlByteScanner.PROCESSING_INSTRUCTION && scanner.tokenOffset == 0) {
+      val pi = scanner.tagBytes
+      if(new String(pi, UTF8).startsWith("<?xml ")) {
+        xmlDeclaration = pi
+      }
+    }
+    while(token != XmlByteScanner.EOF) {
+      if(token == XmlByteScanner.START_TAG || token == XmlByteScanner.EMPTY_TAG) {
+        if(scanner.tokenDepth < depth) {
+          if(token == XmlByteScanner.START_TAG) {
+            scopes = (scopes.head ++ XmlByteScanner.tagNamespaces(scanner.tagBytes)) :: scopes
+          }
+        } else if(scanner.tokenDepth == depth) {
+          recordOffset = scanner.tokenOffset
+          builder.start(recordOffset, scanner.tokenLine, scanner.tokenColumn, inheritedNamespaces(scopes.head, scanner))
+          if(token == XmlByteScanner.EMPTY_TAG) {
+            builder.end(scanner.offset - recordOffset)
+            recordOffset = -1
+          }
+        }
+      } else if(token == XmlByteScanner.END_TAG) {
+        if(scanner.tokenDepth < depth) {
+          scopes = scopes.tail
+        } else if(scanner.tokenDepth == depth && recordOffset >= 0) {
+          builder.end(scanner.offset - recordOffset)
+          recordOffset = -1
+        }
+      }
+      token = scanner.next()
+    }
+    builder.result(depth, sourceLength, xmlDeclaration)
+  }
+
+  @throws(classOf[IOException])
+  def build(file : File, depth : Int) : XmlRecordIndex = {
+    val in = new FileInputStream(file)
+    try {
+      build(in, depth, file.length)
+    } finally {
+      in.close()
+    }
+  }
+
+  /**
+   * @return the bindings in scope at a record that it does not declare itself
+   */
+  private def inheritedNamespaces(scope : Map[String, String], scanner : XmlByteScanner) : Map[String, String] = {
+    if(scope.isEmpty) {
+      scope
+    } else {
+      scope -- XmlByteScanner.tagNamespaces(scanner.tagBytes).map { _._1 }
+    }
+  }
+
+  /**
+   * Accumulates records in growable primitive arrays
+   */
+  private final class Builder {
+    var size = 0
+    var offsets = new Array[Long](1024)
+    var lengths = new Array[Long](1024)
+    var lines = new Array[Int](1024)
+    var columns = new Array[Int](1024)
+    var namespaceSetIds = new Array[Int](1024)
+    val namespaceSets = new collection.mutable.ArrayBuffer[Map[String, String]]()
+    val namespaceSetToId = new collection.mutable.HashMap[Map[String, String], Int]()
+
+    def start(offset : Long, line : Int, column : Int, namespaces : Map[String, String]) {
+      if(size == offsets.length) {
+        val capacity = size * 2
+        offsets = java.util.Arrays.copyOf(offsets, capacity)
+        lengths = java.util.Arrays.copyOf(lengths, capacity)
+        lines = java.util.Arrays.copyOf(lines, capacity)
+        columns = java.util.Arrays.copyOf(columns, capacity)
+        namespaceSetIds = java.util.Arrays.copyOf(namespaceSetIds, capacity)
+      }
+      offsets(size) = offset
+      lines(size) = line
+      columns(size) = column
+      namespaceSetIds(size) = namespaceSetToId.getOrElseUpdate(namespaces, {
+        namespaceSets += namespaces
+        namespaceSets.size - 1
+      })
+    }
+
+    def end(length : Long) {
+      lengths(size) = length
+      size += 1
+    }
+
+    def result(depth : Int, sourceLength : Long, xmlDeclaration : Array[Byte]) = new XmlRecordIndex(
+      depth,
+      sourceLength,
+      xmlDeclaration,
+      namespaceSets.toIndexedSeq,
+      java.util.Arrays.copyOf(offsets, size),
+      java.util.Arrays.copyOf(lengths, size),
+      java.util.Arrays.copyOf(lines, size),
+      java.util.Arrays.copyOf(columns, size),
+      java.util.Arrays.copyOf(namespaceSetIds, size)
+    )
+  }
+
+  /**
+   * Load an index saved by XmlRecordIndex.save
+   */
+  @throws(classOf[IOException])
+  def load(in : InputStream) : XmlRecordIndex = {
+    val data = new DataInputStream(new BufferedInputStream(in))
+    if(data.readInt() != MAGIC) {
+      throw new IOException("Not an XmlRecordIndex")
+    }
+    val version = data.readByte()
+    if(version != VERSION) {
+      throw new IOException(s"Unsupported XmlRecordIndex version $version")
+    }
+    val depth = data.readInt()
+    val sourceLength = data.readLong()
+    val xmlDeclaration = new Array[Byte](data.readInt())
+    data.readFully(xmlDeclaration)
+    val namespaceSets = for(_ <- 0 until data.readInt()) yield {
+      (for(_ <- 0 until data.readInt()) yield data.readUTF() -> data.readUTF()).toMap
+    }
+    val size = data.readInt()
+    val offsets = new Array[Long](size)
+    val lengths = new Array[Long](size)
+    val lines = new Array[Int](size)
+    val columns = new Array[Int](size)
+    val namespaceSetIds = new Array[Int](size)
+    var end = 0L
+    var line = 0
+    for(i <- 0 until size) {
+      offsets(i) = end + readVarLong(data)
+      lengths(i) = readVarLong(data)
+      line += readVarLong(data).toInt
+      lines(i) = line
+      columns(i) = readVarLong(data).toInt
+      namespaceSetIds(i) = readVarLong(data).toInt
+      end = offsets(i) + lengths(i)
+    }
+    new XmlRecordIndex(depth, sourceLength, xmlDeclaration, namespaceSets, offsets, lengths, lines, columns, namespaceSetIds)
+  }
+
+  @throws(classOf[IOException])
+  def load(file : File) : XmlRecordIndex = {
+    val in = new FileInputStream(file)
+    try {
+      load(in)
+    } finally {
+      in.close()
+    }
+  }
+
+  private def writeVarLong(out : DataOutputStream, value : Long) {
+    var v = value
+    while((v & ~0x7FL) != 0) {
+      out.writeByte(((v & 0x7F) | 0x80).toInt)
+      v >>>= 7
+    }
+    out.writeByte(v.toInt)
+  }
+
+  private def readVarLong(in : DataInputStream) : Long = {
+    var v = 0L
+    var shift = 0
+    var b = in.readByte()
+    while((b & 0x80) != 0) {
+      v |= (b & 0x7FL) << shift
+      shift += 7
+      b = in.readByte()
+    }
+    v | (b.toLong << shift)
+  }
+}
+
+/**
+ * A sidecar index of the elements (records) at one depth of an XML file. For 
+ * each record it holds the byte offset and length, the line and column of its
+ * start tag and the namespace bindings it inherits from its ancestors. 
+ * Namespace binding sets are shared, since typically every record inherits the
+ * same bindings.
+ *
+ * An indexed record is read by seeking to its offset and reading only its 
+ * bytes, so the cost of a lookup is proportional to the size of the record
+ * not its position in the file. The inherited bindings are declared on the 
+ * record's start tag, which makes each record a standalone document. Entities
+ * declared in an internal DTD subset are not available to records.
+ *
+ * Saved indexes use delta and variable length encoding of the record fields,
+ * which typically costs a few bytes per record.
+ */
+final class XmlRecordIndex private (
+  val depth :                 Int,
+  val sourceLength :          Long,
+  xmlDeclaration :            Array[Byte],
+  namespaceSets :             IndexedSeq[Map[String, String]],
+  offsets :                   Array[Long],
+  lengths :                   Array[Long],
+  lines :                     Array[Int],
+  columns :                   Array[Int],
+  namespaceSetIds :           Array[Int]
+) {
+  import XmlRecordIndex._
+
+  /** @return the number of records */
+  def size : Int = offsets.length
+
+  /** @return the byte offset of the record's start tag */
+  def offset(record : Int) : Long = offsets(record)
+
+  /** @return the length of the record in bytes */
+  def length(record : Int) : Long = lengths(record)
+
+  /** @return the line of the record's start tag */
+  def line(record : Int) : Int = lines(record)
+
+  /** @return the column of the record's start tag */
+  def column(record : Int) : Int = columns(record)
+
+  /** @return the namespace bindings (prefix -> namespace URI) the record inherits, the default namespace has the prefix "" */
+  def namespaces(record : Int) : Map[String, String] = namespaceSets(namespaceSetIds(record))
+
+  /** @return TRUE if the index was built from a file of the same length */
+  def isValidFor(file : File) : Boolean = file.length == sourceLength
+
+  /**
+   * Open a record as a standalone document. The document is the XML 
+   * declaration of the indexed file (if any) followed by the record, with the
+   * inherited namespace bindings declared on its start tag.
+   * @param file the indexed file
+   * @param record
+   * @return the record document
+   */
+  @throws(classOf[IOException])
+  def openRecord(file : File, record : Int) : InputStream = {
+    val fileIn = new FileInputStream(file)
+    try {
+      fileIn.getChannel.position(offsets(record))
+      val in = new BufferedInputStream(new LimitInputStream(fileIn, lengths(record)))
+      val header = new XmlByteScanner.Bytes(256)
+      header ++= xmlDeclaration
+      // Copy the start tag name, the bindings are declared after it
+      var b = in.read()
+      header += b.toByte
+      b = in.read()
+      while(b >= 0 && b > ' ' && b != '/' && b != '>') {
+        header += b.toByte
+        b = in.read()
+      }
+      for((prefix, namespaceURI) <- namespaces(record).toSeq.sortBy { _._1 }) {
+        val attribute = if(prefix.isEmpty) "xmlns" else "xmlns:" + prefix
+        header ++= s""" $attribute="${XmlByteScanner.escape(namespaceURI)}"""".getBytes(UTF8)
+      }
+      if(b >= 0) {
+        header += b.toByte
+      }
+      new SequenceInputStream(new ByteArrayInputStream(header.toArray), in)
+    } catch {
+      case e : IOException =>
+        fileIn.close()
+        throw e
+    }
+  }
+
+  /**
+   * Save the index
+   * @param out
+   */
+  @throws(classOf[IOException])
+  def save(out : OutputStream) {
+    val data = new DataOutputStream(new BufferedOutputStream(out))
+    data.writeInt(MAGIC)
+    data.writeByte(VERSION)
+    data.writeInt(depth)
+    data.writeLong(sourceLength)
+    data.writeInt(xmlDeclaration.length)
+    data.write(xmlDeclaration)
+    data.writeInt(namespaceSets.size)
+    for(namespaceSet <- namespaceSets) {
+      data.writeInt(namespaceSet.size)
+      for((prefix, namespaceURI) <- namespaceSet) {
+        data.writeUTF(prefix)
+        data.writeUTF(namespaceURI)
+      }
+    }
+    data.writeInt(size)
+    var end = 0L
+    var line = 0
+    for(i <- 0 until size) {
+      writeVarLong(data, offsets(i) - end)
+      writeVarLong(data, lengths(i))
+      writeVarLong(data, lines(i) - line)
+      writeVarLong(data, columns(i))
+      writeVarLong(data, namespaceSetIds(i))
+      end = offsets(i) + lengths(i)
+      line = lines(i)
+    }
+    data.flush()
+  }
+
+  @throws(classOf[IOException])
+  def save(file : File) {
+    val out = new FileOutputStream(file)
+    try {
+      save(out)
+    } finally {
+      out.close()
+    }
+  }
+
+  override def toString = s"XmlRecordIndex(depth=$depth,size=$size)"
+}
@@ -0,0 +1,101 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracing for the per-event paths of readers, writers and events. Tracing is
+ * off unless the JVM is started with -Dorg.gtri.util.xmlbuilder.trace=true. 
+ * Every trace point is guarded by ENABLED:
+ * 
+ *   if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+ *     XmlTrace.trace(thisclass, "apply", s"xmlEvent=$xmlEvent")
+ *   }
+ * 
+ * Since ENABLED is a static final constant, the JIT removes the guarded code,
+ * including the construction of the message, when tracing is off.
+ * 
+ * With -Dorg.gtri.util.xmlbuilder.trace.sampleInterval=N only 1 in N trace 
+ * points is recorded, to diagnose production workloads at low overhead. Trace
+ * records are logged to java.util.logging at INFO unless a Sink is set.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public final class XmlTrace {
+  public static final String ENABLED_PROPERTY = "org.gtri.util.xmlbuilder.trace";
+  public static final String SAMPLE_INTERVAL_PROPERTY = "org.gtri.util.xmlbuilder.trace.sampleInterval";
+  
+  public static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+  
+  public static final int SAMPLE_INTERVAL = Math.max(1, Integer.getInteger(SAMPLE_INTERVAL_PROPERTY, 1));
+  
+  /**
+   * An interface for a receiver of trace records
+   */
+  public static interface Sink {
+    void trace(Class<?> source, String method, String message);
+  }
+  
+  private static final Sink LOGGER_SINK = new Sink() {
+    @Override
+    public void trace(Class<?> source, String method, String message) {
+      Logger.getLogger(source.getName()).logp(Level.INFO, source.getName(), method, message);
+    }
+  };
+  
+  private static volatile Sink sink = LOGGER_SINK;
+  
+  private static final AtomicLong tracePointCount = new AtomicLong();
+  
+  private XmlTrace() { }
+  
+  /**
+   * Set the receiver of trace records
+   * @param _sink the sink or NULL to log to java.util.logging
+   */
+  public static void setSink(Sink _sink) {
+    sink = _sink == null ? LOGGER_SINK : _sink;
+  }
+  
+  /**
+   * Test if the current trace point should be recorded. Only call when 
+   * ENABLED.
+   * @return TRUE for 1 in SAMPLE_INTERVAL trace points
+   */
+  public static boolean isSampled() {
+    return SAMPLE_INTERVAL == 1 || tracePointCount.getAndIncrement() % SAMPLE_INTERVAL == 0;
+  }
+  
+  /**
+   * Record a trace point. Only call when ENABLED.
+   * @param source
+   * @param method
+   * @param message 
+   */
+  public static void trace(Class<?> source, String method, String message) {
+    sink.trace(source, method, message);
+  }
+}
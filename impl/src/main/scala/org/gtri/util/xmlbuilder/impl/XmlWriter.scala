@@ -22,7 +22,6 @@
 
 package org.gtri.util.xmlbuilder.impl
 
-import annotation.tailrec
 import javax.xml.stream.XMLStreamWriter
 import javax.xml.XMLConstants
 import org.gtri.util.scala.exelog.noop._
@@ -31,9 +30,7 @@ import org.gtri.util.issue.Issues
 import org.gtri.util.iteratee.impl.ImmutableBufferConversions._
 import org.gtri.util.iteratee.api._
 import org.gtri.util.iteratee.impl.iteratees._
-import org.gtri.util.xsddatatypes.XsdQName.NamespaceURIToPrefixResolver
-import org.gtri.util.xsddatatypes.{XsdNCName, XsdAnyURI}
-import org.gtri.util.xmlbuilder.api.XmlEvent
+import org.gtri.util.xmlbuilder.api.{ByteCounter, XmlEvent, XmlWriterListener}
 import org.gtri.util.xmlbuilder.api.XmlFactory.XMLStreamWriterFactory
 import org.gtri.util.xmlbuilder.impl.events._
 
@@ -42,198 +39,182 @@ object XmlWriter {
   implicit val log =        Logger.getLog(thisclass)
 }
 
+/**
+ * Writes XmlEvents to an XMLStreamWriter.
+ *
+ * If there is a checkpoint listener, then at each XmlCheckpointEvent the 
+ * writer is flushed and the checkpoint is reported with the number of bytes
+ * written (if the XMLStreamWriter is a ByteCounter). A writer created with 
+ * resumeFrom continues inside the checkpoint's open elements, the 
+ * XMLStreamWriter must already be positioned after their start tags.
+ */
 class XmlWriter(
   factory :                 XMLStreamWriterFactory,
-  issueHandlingStrategy :   IssueHandlingStrategy
+  issueHandlingStrategy :   IssueHandlingStrategy,
+  val listener :            XmlWriterListener = null,
+  val checkpointListener :  XmlCheckpointListener = null,
+  val resumeFrom :          XmlCheckpoint = null
 ) extends Iteratee[XmlEvent, Unit] {
 
   import XmlWriter._
 
   def initialState =  {
-    log.block("initialState"){
-      try {
-        +"Trying to create writer"
-        val result = factory.create()
-        +"Created writer"
-        Cont(factory.create(), Nil)
-      } catch {
-        case e : Exception =>
-          log.fatal("Failed to create writer",e)
-          val msg : String = e.getMessage
-          val issue : Issue = Issues.INSTANCE.fatalError(msg)
-          Failure(issues = Chunk(issue))
+    try {
+      val writer = factory.create()
+      Cont(writer, initialStack)
+    } catch {
+      case e : Exception =>
+        log.fatal("Failed to create writer",e)
+        val msg : String = e.getMessage
+        val issue : Issue = Issues.INSTANCE.fatalError(msg)
+        Failure(issues = Chunk(issue))
+    }
+  }
+
+  /**
+   * @return the namespace scopes of the open elements of the checkpoint 
+   * resumed from, innermost first
+   */
+  private def initialStack : List[XmlNamespaceScope] = {
+    if(resumeFrom == null) {
+      Nil
+    } else {
+      val names = new XmlNameCache()
+      resumeFrom.openElements.foldLeft(List[XmlNamespaceScope]()) { (stack, element) =>
+        val parentScope = if(stack.isEmpty) XmlNamespaceScope.EMPTY else stack.head
+        val prefixes = element.namespaces map { case (prefix, namespaceURI) => names.ncName(prefix) -> names.anyURI(namespaceURI) }
+        parentScope.push(prefixes) :: stack
       }
     }
   }
 
-  case class Cont(writer : XMLStreamWriter, stack : List[XmlElement]) extends SingleItemCont[XmlEvent, Unit] {
+  case class Cont(writer : XMLStreamWriter, stack : List[XmlNamespaceScope]) extends SingleItemCont[XmlEvent, Unit] {
 
     def apply(xmlEvent: XmlEvent) = {
-      log.block("apply", Seq("xmlEvent" -> xmlEvent)){
-        +"Writing XmlEvent & appending to active element stack"
-        val (newStack, issues) = writeXmlEvent(xmlEvent, stack)
-        Result(next = Cont(writer, newStack), issues = issues)
+      if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+        XmlTrace.trace(thisclass, "apply", s"xmlEvent=$xmlEvent stack=$stack")
       }
+      val startNanos = if(listener != null) System.nanoTime() else 0L
+      val (newStack, issues, scopeNanos) = writeXmlEvent(xmlEvent, stack)
+      if(listener != null) {
+        val elapsedNanos = System.nanoTime() - startNanos
+        listener.eventWritten(xmlEvent, scopeNanos, elapsedNanos - scopeNanos)
+      }
+      Result(next = Cont(writer, newStack), issues = issues)
     }
 
     def endOfInput() = {
-      log.block("endOfInput") {
-        +"Flush and close writer, return success"
-        writer.flush()
-        writer.close()
-        Success()
-      }
+      // Flush and close writer, return success
+      writer.flush()
+      writer.close()
+      Success()
     }
 
-    private def writeXmlEvent(xmlEvent : XmlEvent, stack : List[XmlElement]) : (List[XmlElement], List[Issue]) = {
-      log.block("writeXmlEvent", Seq("xmlEvent" -> xmlEvent, "stack" -> stack)) {
-        ~"Match event"
-        xmlEvent match {
-          case e:StartXmlDocumentEvent => {
-            ~"Write start document, no change to stack"
-            writer.writeStartDocument()
-            (stack, Nil)
-          }
-          case e:EndXmlDocumentEvent => {
-            ~"Write end document, no change to stack"
-            writer.writeEndDocument()
-            (stack, Nil)
-          }
-          case e:AddXmlCommentEvent => {
-            ~"Write comment, no change to stack"
-            writer.writeComment(e.comment)
-            (stack, Nil)
+    /**
+     * @return the new stack, the issues and the time spent resolving namespaces
+     * (only measured if there is a listener)
+     */
+    private def writeXmlEvent(xmlEvent : XmlEvent, stack : List[XmlNamespaceScope]) : (List[XmlNamespaceScope], List[Issue], Long) = {
+      xmlEvent match {
+        case e:StartXmlDocumentEvent => {
+          // Write start document, no change to stack
+          writer.writeStartDocument()
+          (stack, Nil, 0L)
+        }
+        case e:EndXmlDocumentEvent => {
+          // Write end document, no change to stack
+          writer.writeEndDocument()
+          (stack, Nil, 0L)
+        }
+        case e:AddXmlCommentEvent => {
+          // Write comment, no change to stack
+          writer.writeComment(e.comment)
+          (stack, Nil, 0L)
+        }
+        case e:StartXmlElementEvent => {
+          // Write start element, push element's namespace scope to stack
+          val scopeStartNanos = if(listener != null) System.nanoTime() else 0L
+          val parentScope = if(stack.isEmpty) XmlNamespaceScope.EMPTY else stack.head
+          val scope = parentScope.push(e.element)
+          val scopeNanos = if(listener != null) System.nanoTime() - scopeStartNanos else 0L
+          val newStack = scope :: stack
+
+          // Start an element
+          val qName = e.element.qName
+          val localName = qName.getLocalName.toString
+          val nsURI = qName.getNamespaceURI.toString
+          val optionPrefix = Option(qName.resolvePrefix(scope)).map { _.toString }
+          val prefix = optionPrefix.getOrElse { XMLConstants.DEFAULT_NS_PREFIX }
+          writer.writeStartElement(prefix, localName, nsURI)
+
+          // Write namespace prefixes
+          val element = e.element
+          var i = 0
+          while(i < element.prefixCount) {
+            val namespacePrefixString = element.prefix(i).toString
+            // Skip the prefix for the element
+            if(prefix != namespacePrefixString) {
+              val namespaceURIString = element.namespaceURI(i).toString
+              writer.writeNamespace(namespacePrefixString, namespaceURIString)
+            }
+            i += 1
           }
-          case e:StartXmlElementEvent => {
-            ~"Write start element, append element to stack"
-            val newStack = e.element :: stack
 
-            ~"Start an element"
-            val qName = e.element.qName
+          // Write attributes
+          i = 0
+          while(i < element.attributeCount) {
+            val qName = element.attributeName(i)
+            val value = element.attributeValue(i)
             val localName = qName.getLocalName.toString
             val nsURI = qName.getNamespaceURI.toString
-            val optionPrefix = Option(qName.resolvePrefix(getNamespaceURIToPrefixResolver(newStack))).map { _.toString }
+            val optionPrefix = Option(qName.resolvePrefix(scope)).map { _.toString }
             val prefix = optionPrefix.getOrElse { XMLConstants.DEFAULT_NS_PREFIX }
-            ~s"writer.writeStartElement($prefix, $localName, $nsURI)"
-            writer.writeStartElement(prefix, localName, nsURI)
-
-            ~"Write namespace prefixes"
-            for((namespacePrefix, namespaceURI) <- e.element.orderedPrefixes) {
-              // Skip the prefix for the element
-              if(prefix != namespacePrefix.toString) {
-                val namespacePrefixString = namespacePrefix.toString
-                val namespaceURIString = namespaceURI.toString
-                ~s"writer.writeNamespace(namespacePrefix=$namespacePrefixString, namespaceURI=$namespaceURIString)"
-                writer.writeNamespace(namespacePrefixString, namespaceURIString)
-              }
-            }
-
-            ~"Write attributes"
-            for((qName,value) <- e.element.orderedAttributes) {
-              val localName = qName.getLocalName.toString
-              val nsURI = qName.getNamespaceURI.toString
-              val optionPrefix = Option(qName.resolvePrefix(getNamespaceURIToPrefixResolver(newStack))).map { _.toString }
-              val prefix = optionPrefix.getOrElse { XMLConstants.DEFAULT_NS_PREFIX }
-              ~s"writer.writeAttribute(prefix=$prefix, nsURI=$nsURI, localName=$localName, value=$value)"
-              writer.writeAttribute(prefix, nsURI, localName, value)
-            }
-
-            ~"Write value (if any)"
-            val value = e.element.value
-            if(value.isDefined) {
-              val v = value.get
-              ~s"writer.writeCharacters($v)"
-              writer.writeCharacters(v)
-            }
-            (newStack, Nil)
-          }
-          case e:EndXmlElementEvent => {
-            ~"Write end element, no change to stack"
-            writer.writeEndElement()
-            (stack, Nil)
-          }
-          case e:AddXmlTextEvent => {
-            ~"Write characters, no change to stack"
-            val text = e.text
-            ~s"writer.writeCharacters($text)"
-            writer.writeCharacters(e.text)
-            (stack, Nil)
+            writer.writeAttribute(prefix, nsURI, localName, value)
+            i += 1
           }
-          case e:XmlEvent => {
-            val error = Issues.INSTANCE.recoverableError(s"Invalid XmlEvent: $e")
-            if(issueHandlingStrategy.canContinue(error)) {
-              val warn = Issues.INSTANCE.warning(s"Ignoring invalid XmlEvent: $e")
-              (stack, error :: warn :: Nil)
-            }
-            (stack, error :: Nil)
+
+          // Write value (if any)
+          val value = e.element.value
+          if(value.isDefined) {
+            val v = value.get
+            writer.writeCharacters(v)
           }
+          (newStack, Nil, scopeNanos)
         }
-      }
-    }
-
-    private def getNamespaceURIToPrefixResolver(stack : List[XmlElement]) = new NamespaceURIToPrefixResolver {
-      def isValidPrefixForNamespaceURI(prefix: XsdNCName, namespaceURI: XsdAnyURI) = {
-        log.block("isValidPrefixForNamespaceURIToPrefixResolver", Seq("stack" -> stack, "prefix" -> prefix, "namespaceURI" -> namespaceURI)) {
-          doIsValidPrefixForNamespaceURI(stack, prefix, namespaceURI)
+        case e:EndXmlElementEvent => {
+          // Write end element, pop namespace scope from stack
+          writer.writeEndElement()
+          (if(stack.isEmpty) stack else stack.tail, Nil, 0L)
         }
-      }
-
-      def getPrefixForNamespaceURI(namespaceURI: XsdAnyURI) : XsdNCName = {
-        log.block("getPrefixForNamespaceURI",Seq("stack" -> stack,"namespaceURI" -> namespaceURI)) {
-          doGetPrefixForNamespaceURI(stack, namespaceURI)
+        case e:AddXmlTextEvent => {
+          // Write characters, no change to stack
+          writer.writeCharacters(e.text)
+          (stack, Nil, 0L)
         }
-      }
-    }
-
-    @tailrec
-    private def doIsValidPrefixForNamespaceURI(stack : List[XmlElement], prefix: XsdNCName, namespaceURI: XsdAnyURI) : Boolean = {
-      log.begin("doIsValidPrefixForNamespaceURI", Seq("prefix" -> prefix, "namespaceURI" -> namespaceURI))
-      ~"Stack empty?"
-      if(stack.isEmpty) {
-        ~"Yes, didn't find prefix for namespace"
-        val retv = false
-        log.end("doIsValidPrefixForNamespaceURI", retv)
-        retv
-      } else {
-        ~"No, extract head/tail from stack"
-        val head :: tail = stack
-        ~"Does head contain prefix=namespaceURI?"
-        if(head.isValidPrefixForNamespaceURI(prefix, namespaceURI)) {
-          ~"Yes, found prefix for namespace"
-          val retv = true
-          log.end("doIsValidPrefixForNamespaceURI", retv)
-          retv
-        } else {
-          ~"No, recurse on tail"
-          doIsValidPrefixForNamespaceURI(tail, prefix, namespaceURI)
+        case e:XmlCheckpointEvent => {
+          if(checkpointListener != null) {
+            // Close any pending start tag, flush and report the checkpoint with the output offset
+            if(stack.nonEmpty) {
+              writer.writeCharacters("")
+            }
+            writer.flush()
+            val outputOffset = writer match {
+              case counter : ByteCounter => counter.byteCount
+              case _ => -1L
+            }
+            checkpointListener.checkpointWritten(e.checkpoint.withOutputOffset(outputOffset))
+          }
+          (stack, Nil, 0L)
         }
-      }
-    }
-
-    @tailrec
-    private def doGetPrefixForNamespaceURI(stack : List[XmlElement], namespaceURI: XsdAnyURI) : XsdNCName = {
-      log.begin("doGetPrefixForNamespaceURI", Seq("stack" -> stack, "namespaceURI" -> namespaceURI))
-        ~"Stack empty?"
-        if(stack.isEmpty) {
-          ~"Yes, didn't find prefix for namespace"
-          val retv = null
-          log.end("doGetPrefixForNamespaceURI", retv)
-          retv
-        } else {
-          ~"No, extract head/tail from stack"
-          val head :: tail = stack
-          ~"Does head have prefix for namespaceURI?"
-          val result = head.getPrefixForNamespaceURI(namespaceURI)
-          if(result != null) {
-            ~"Yes, found prefix for namespace"
-            val retv = result
-            log.end("doGetPrefixForNamespaceURI", retv)
-            retv
-          } else {
-            ~"No, recurse on tail"
-            doGetPrefixForNamespaceURI(tail, namespaceURI)
+        case e:XmlEvent => {
+          val error = Issues.INSTANCE.recoverableError(s"Invalid XmlEvent: $e")
+          if(issueHandlingStrategy.canContinue(error)) {
+            val warn = Issues.INSTANCE.warning(s"Ignoring invalid XmlEvent: $e")
+            (stack, error :: warn :: Nil, 0L)
           }
+          (stack, error :: Nil, 0L)
         }
+      }
     }
   }
 }
\ No newline at end of file
@@ -21,22 +21,15 @@
 */
 package org.gtri.util.xmlbuilder.impl.events
 
-import org.gtri.util.scala.exelog.noop._
 import org.gtri.util.issue.api.DiagnosticLocator
 import org.gtri.util.xmlbuilder.api.{XmlContract, XmlEvent}
+import org.gtri.util.xmlbuilder.impl.XmlTrace
 
-object AddXmlCommentEvent {
-  implicit val thisclass = classOf[AddXmlCommentEvent]
-  implicit val log = Logger.getLog(thisclass)
-}
 case class AddXmlCommentEvent(comment : String, locator : DiagnosticLocator) extends XmlEvent {
-  import AddXmlCommentEvent._
   def pushTo(contract: XmlContract) {
-    log.block("pushTo", Seq("contract" -> contract)) {
-      +"Pushing AddXmlCommentEvent to XmlContract"
-      ~s"contract.addXmlComment($comment)"
-      contract.addXmlComment(comment)
+    if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+      XmlTrace.trace(classOf[AddXmlCommentEvent], "pushTo", s"contract.addXmlComment($comment)")
     }
+    contract.addXmlComment(comment)
   }
 }
-
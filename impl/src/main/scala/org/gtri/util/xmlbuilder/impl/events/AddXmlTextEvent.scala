@@ -23,19 +23,13 @@ package org.gtri.util.xmlbuilder.impl.events
 
 import org.gtri.util.issue.api.DiagnosticLocator
 import org.gtri.util.xmlbuilder.api.{XmlContract, XmlEvent}
-import org.gtri.util.scala.exelog.noop._
+import org.gtri.util.xmlbuilder.impl.XmlTrace
 
-object AddXmlTextEvent {
-  implicit val thisclass = classOf[AddXmlTextEvent]
-  implicit val log = Logger.getLog(thisclass)
-}
 case class AddXmlTextEvent(text : String, locator : DiagnosticLocator) extends XmlEvent {
-  import AddXmlTextEvent._
   def pushTo(contract: XmlContract) {
-    log.block("pushTo", Seq("contract" -> contract)) {
-      +"Pushing AddXmlTextEvent to XmlContract"
-      ~s"contract.addXmlText($text)"
-      contract.addXmlText(text)
+    if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+      XmlTrace.trace(classOf[AddXmlTextEvent], "pushTo", s"contract.addXmlText($text)")
     }
+    contract.addXmlText(text)
   }
 }
\ No newline at end of file
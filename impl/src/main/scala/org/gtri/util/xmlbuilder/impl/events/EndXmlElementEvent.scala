@@ -21,23 +21,17 @@
 */
 package org.gtri.util.xmlbuilder.impl.events
 
-import org.gtri.util.scala.exelog.noop._
 import org.gtri.util.xsddatatypes.XsdQName
 import org.gtri.util.issue.api.DiagnosticLocator
 import org.gtri.util.xmlbuilder.api.{XmlContract, XmlEvent}
+import org.gtri.util.xmlbuilder.impl.XmlTrace
 
-object EndXmlElementEvent {
-  implicit val thisclass = classOf[EndXmlElementEvent]
-  implicit val log = Logger.getLog(thisclass)
-}
 case class EndXmlElementEvent(qName : XsdQName, locator : DiagnosticLocator) extends XmlEvent {
-  import EndXmlElementEvent._
   def pushTo(contract: XmlContract) {
-    log.block("pushTo",Seq("contract" -> contract)) {
-      +"Pushing EndXmlElementEvent to XmlContract"
-      ~"contract.endXmlElement()"
-      contract.endXmlElement()
+    if(XmlTrace.ENABLED && XmlTrace.isSampled()) {
+      XmlTrace.trace(classOf[EndXmlElementEvent], "pushTo", s"contract.endXmlElement() qName=$qName")
     }
+    contract.endXmlElement()
   }
 }
 
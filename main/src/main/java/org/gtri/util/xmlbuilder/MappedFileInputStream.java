@@ -0,0 +1,215 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.gtri.util.xmlbuilder.api.ByteCounter;
+
+/**
+ * An InputStream that reads a file through a sliding memory mapped window. 
+ * Since a single mapping is limited to 2GB, the file is mapped one window at a 
+ * time which allows files of any size to be read without copying them to the
+ * heap.
+ * 
+ * A window is unmapped as soon as the next window is mapped or the stream is
+ * closed. Java has no public API to unmap a buffer, so this is done through
+ * the JVM's internal cleaner. On a JVM where that is not accessible the 
+ * mapping is released only when the buffer is garbage collected, and the
+ * file may stay open (and on some platforms locked) until then.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public final class MappedFileInputStream extends InputStream implements ByteCounter {
+  public static final int STD_WINDOW_SIZE = 64 * 1024 * 1024;
+  
+  private final FileChannel channel;
+  private final long size;
+  private final int windowSize;
+  private MappedByteBuffer window = null;
+  private long windowOffset = 0;
+  private long mark = 0;
+  
+  public MappedFileInputStream(File file) throws IOException {
+    this(file, STD_WINDOW_SIZE);
+  }
+  
+  public MappedFileInputStream(File file, int windowSize) throws IOException {
+    if(windowSize <= 0) {
+      throw new IllegalArgumentException("windowSize must be > 0");
+    }
+    this.channel = new FileInputStream(file).getChannel();
+    this.size = channel.size();
+    this.windowSize = windowSize;
+  }
+  
+  /**
+   * Get the size of the file
+   * @return the size of the file in bytes
+   */
+  public long size() {
+    return size;
+  }
+  
+  /**
+   * Get the current position in the file
+   * @return the current position in the file
+   */
+  public long position() {
+    return window == null ? windowOffset : windowOffset + window.position();
+  }
+  
+  @Override
+  public long byteCount() {
+    return position();
+  }
+  
+  /**
+   * Map the window that contains the position.
+   * @return TRUE if there are bytes remaining in the window
+   */
+  private boolean ensureWindow() throws IOException {
+    if(window != null && window.hasRemaining()) {
+      return true;
+    }
+    final long nextOffset = position();
+    if(nextOffset >= size) {
+      return false;
+    }
+    final long length = Math.min(windowSize, size - nextOffset);
+    releaseWindow();
+    windowOffset = nextOffset;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, nextOffset, length);
+    return true;
+  }
+  
+  private void releaseWindow() {
+    if(window != null) {
+      final MappedByteBuffer released = window;
+      window = null;
+      unmap(released);
+    }
+  }
+  
+  /**
+   * Unmap a buffer that is no longer referenced. If the JVM does not allow 
+   * this, the buffer is unmapped when it is garbage collected.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      // Java 9 and later
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      return;
+    } catch(Exception ex) {
+      // Fall through
+    }
+    try {
+      // Java 8 and earlier
+      final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      final Object cleaner = cleanerMethod.invoke(buffer);
+      if(cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch(Exception ex) {
+      // Not supported by this JVM
+    }
+  }
+  
+  @Override
+  public int read() throws IOException {
+    if(!ensureWindow()) {
+      return -1;
+    }
+    return window.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if(len == 0) {
+      return 0;
+    }
+    if(!ensureWindow()) {
+      return -1;
+    }
+    final int n = Math.min(len, window.remaining());
+    window.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if(n <= 0) {
+      return 0;
+    }
+    final long from = position();
+    seek(Math.min(size, from + n));
+    return position() - from;
+  }
+  
+  private void seek(long offset) {
+    if(window != null && offset >= windowOffset && offset <= windowOffset + window.limit()) {
+      window.position((int)(offset - windowOffset));
+    } else {
+      releaseWindow();
+      windowOffset = offset;
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int)Math.min(Integer.MAX_VALUE, size - position());
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+    mark = position();
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    seek(mark);
+  }
+
+  @Override
+  public void close() throws IOException {
+    releaseWindow();
+    channel.close();
+  }
+}
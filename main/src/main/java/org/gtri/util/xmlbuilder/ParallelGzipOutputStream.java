@@ -0,0 +1,241 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An OutputStream that gzip compresses blocks of its input concurrently. 
+ * Each block is compressed on the executor into a complete gzip member and 
+ * members are written to the underlying stream in order, so the output is a 
+ * multi-member gzip file that any gzip reader (including GZIPInputStream) 
+ * decompresses to the original bytes. Compression of a block never depends on
+ * another block, which costs slightly in compression ratio but lets 
+ * compression throughput scale with the number of cores.
+ * 
+ * At most parallelism blocks are buffered or being compressed at once. When 
+ * the stream must wait on a block that has not yet started it compresses the 
+ * block on the calling thread, so an executor that is busy (or is running the 
+ * caller) can never stall the stream.
+ * 
+ * Like GZIPOutputStream, flush writes only completed members. Call finish or 
+ * close to write the remainder. Not thread safe.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public final class ParallelGzipOutputStream extends OutputStream {
+  public static final int STD_BLOCK_SIZE = 1024 * 1024;
+  
+  private static final byte[] HEADER = { 
+    (byte)0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 
+  };
+  
+  private final OutputStream out;
+  private final Executor executor;
+  private final int blockSize;
+  private final int parallelism;
+  private final int level;
+  private final ArrayDeque<FutureTask<byte[]>> pending = new ArrayDeque<FutureTask<byte[]>>();
+  private byte[] block;
+  private int count = 0;
+  private boolean submitted = false;
+  private boolean finished = false;
+  
+  public ParallelGzipOutputStream(OutputStream out, Executor executor) {
+    this(out, executor, STD_BLOCK_SIZE, Runtime.getRuntime().availableProcessors(), Deflater.DEFAULT_COMPRESSION);
+  }
+  
+  /**
+   * @param out the stream to write gzip members to
+   * @param executor the executor to compress blocks on
+   * @param blockSize the number of uncompressed bytes in each member
+   * @param parallelism the maximum number of blocks compressed at once
+   * @param level the Deflater compression level
+   */
+  public ParallelGzipOutputStream(OutputStream out, Executor executor, int blockSize, int parallelism, int level) {
+    if(blockSize <= 0) {
+      throw new IllegalArgumentException("blockSize must be > 0");
+    }
+    if(parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be > 0");
+    }
+    this.out = out;
+    this.executor = executor;
+    this.blockSize = blockSize;
+    this.parallelism = parallelism;
+    this.level = level;
+    this.block = new byte[blockSize];
+  }
+  
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if(count == blockSize) {
+      submitBlock();
+    }
+    block[count++] = (byte)b;
+  }
+  
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if(off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    while(len > 0) {
+      if(count == blockSize) {
+        submitBlock();
+      }
+      int n = Math.min(len, blockSize - count);
+      System.arraycopy(b, off, block, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+  
+  /**
+   * Write any members that have finished compressing and flush the underlying
+   * stream. Bytes in the current block are not written.
+   * @throws IOException 
+   */
+  @Override
+  public void flush() throws IOException {
+    while(!pending.isEmpty() && pending.peekFirst().isDone()) {
+      writeMember(pending.removeFirst());
+    }
+    out.flush();
+  }
+  
+  /**
+   * Compress the remaining bytes and write all members without closing the
+   * underlying stream. Nothing may be written afterwards.
+   * @throws IOException 
+   */
+  public void finish() throws IOException {
+    if(finished) {
+      return;
+    }
+    // An empty stream is still written as one (empty) member
+    if(count > 0 || !submitted) {
+      submitBlock();
+    }
+    while(!pending.isEmpty()) {
+      writeMember(pending.removeFirst());
+    }
+    finished = true;
+  }
+  
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+  
+  private void ensureOpen() throws IOException {
+    if(finished) {
+      throw new IOException("Write beyond end of stream");
+    }
+  }
+  
+  private void submitBlock() throws IOException {
+    final byte[] data = block;
+    final int length = count;
+    FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return compress(data, length, level);
+      }
+    });
+    pending.addLast(task);
+    executor.execute(task);
+    submitted = true;
+    block = new byte[blockSize];
+    count = 0;
+    while(pending.size() > parallelism) {
+      writeMember(pending.removeFirst());
+    }
+  }
+  
+  private void writeMember(FutureTask<byte[]> task) throws IOException {
+    // Does nothing if the task has already started on the executor
+    task.run();
+    try {
+      out.write(task.get());
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch(ExecutionException ex) {
+      throw new IOException(ex.getCause());
+    }
+  }
+  
+  /**
+   * Compress bytes into a complete gzip member
+   * @param data
+   * @param length
+   * @param level
+   * @return the gzip member
+   */
+  static byte[] compress(byte[] data, int length, int level) {
+    ByteArrayOutputStream member = new ByteArrayOutputStream(length / 4 + 64);
+    member.write(HEADER, 0, HEADER.length);
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(data, 0, length);
+      deflater.finish();
+      byte[] buf = new byte[64 * 1024];
+      while(!deflater.finished()) {
+        int n = deflater.deflate(buf);
+        member.write(buf, 0, n);
+      }
+    } finally {
+      deflater.end();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, length);
+    writeIntLE(member, (int)crc.getValue());
+    writeIntLE(member, length);
+    return member.toByteArray();
+  }
+  
+  private static void writeIntLE(ByteArrayOutputStream out, int v) {
+    out.write(v);
+    out.write(v >>> 8);
+    out.write(v >>> 16);
+    out.write(v >>> 24);
+  }
+}
@@ -0,0 +1,586 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.gtri.util.xmlbuilder.api.ByteCounter;
+import org.gtri.util.xmlbuilder.impl.XmlCheckpoint;
+import org.gtri.util.xmlbuilder.impl.XmlCheckpointElement;
+
+/**
+ * An XMLStreamWriter that encodes directly to a buffer of UTF-8 bytes without
+ * indentation. The buffer is drained to an OutputStream or a 
+ * WritableByteChannel when full. 
+ * 
+ * Namespaces are repaired: writing an element or attribute whose prefix is 
+ * not bound to its namespace URI in the current scope declares the binding.
+ * 
+ * Closing the writer flushes it but does not close the underlying sink.
+ * 
+ * The writer counts the bytes it writes, and can resume writing a document 
+ * after an XmlCheckpoint (see resume).
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public final class Utf8XMLStreamWriter implements XMLStreamWriter, ByteCounter {
+  public static final int STD_BUFFER_SIZE = 16 * 1024;
+  
+  private final OutputStream out;
+  private final WritableByteChannel channel;
+  private final byte[] buf;
+  private int pos = 0;
+  // Bytes drained to the sink
+  private long drainedCount = 0;
+  
+  private boolean inStartTag = false;
+  
+  // Open element qualified names
+  private final List<String> elementStack = new ArrayList<String>();
+  // Namespace bindings in scope, bindingCounts marks the bindings of each open element
+  private final List<String> boundPrefixes = new ArrayList<String>();
+  private final List<String> boundNamespaceURIs = new ArrayList<String>();
+  private final List<Integer> bindingCounts = new ArrayList<Integer>();
+  private NamespaceContext namespaceContext = null;
+  
+  public Utf8XMLStreamWriter(OutputStream out) {
+    this(out, STD_BUFFER_SIZE);
+  }
+  
+  public Utf8XMLStreamWriter(OutputStream out, int bufferSize) {
+    this.out = out;
+    this.channel = null;
+    this.buf = new byte[bufferSize];
+  }
+  
+  public Utf8XMLStreamWriter(WritableByteChannel channel) {
+    this(channel, STD_BUFFER_SIZE);
+  }
+  
+  public Utf8XMLStreamWriter(WritableByteChannel channel, int bufferSize) {
+    this.out = null;
+    this.channel = channel;
+    this.buf = new byte[bufferSize];
+  }
+  
+  // Buffer management
+  
+  private void drain() throws XMLStreamException {
+    if(pos == 0) {
+      return;
+    }
+    try {
+      if(out != null) {
+        out.write(buf, 0, pos);
+      } else {
+        final ByteBuffer bb = ByteBuffer.wrap(buf, 0, pos);
+        while(bb.hasRemaining()) {
+          channel.write(bb);
+        }
+      }
+    } catch(IOException ex) {
+      throw new XMLStreamException(ex);
+    }
+    drainedCount += pos;
+    pos = 0;
+  }
+  
+  /**
+   * Get the number of bytes written, including bytes that are still buffered.
+   * A resumed writer includes the bytes written before the checkpoint.
+   * @return the number of bytes written
+   */
+  @Override
+  public long byteCount() {
+    return drainedCount + pos;
+  }
+  
+  /**
+   * Resume writing a document after a checkpoint. The sink must hold exactly
+   * the checkpoint's outputOffset bytes written for the events before the 
+   * checkpoint. The writer continues inside the checkpoint's open elements 
+   * without writing their start tags again. Must be called before anything 
+   * is written.
+   * @param checkpoint 
+   */
+  public void resume(XmlCheckpoint checkpoint) {
+    if(byteCount() > 0 || !elementStack.isEmpty()) {
+      throw new IllegalStateException("Writer has already written");
+    }
+    if(checkpoint.outputOffset() < 0) {
+      throw new IllegalArgumentException("Checkpoint has no output offset");
+    }
+    drainedCount = checkpoint.outputOffset();
+    for(int i=0;i<checkpoint.openElementCount();++i) {
+      final XmlCheckpointElement element = checkpoint.openElement(i);
+      elementStack.add(element.qName());
+      bindingCounts.add(element.declarationCount());
+      for(int j=0;j<element.declarationCount();++j) {
+        boundPrefixes.add(element.declaredPrefix(j));
+        boundNamespaceURIs.add(element.declaredNamespaceURI(j));
+      }
+    }
+  }
+  
+  private void writeByte(int b) throws XMLStreamException {
+    if(pos == buf.length) {
+      drain();
+    }
+    buf[pos++] = (byte)b;
+  }
+  
+  /**
+   * Write ASCII-only markup
+   */
+  private void writeAscii(String s) throws XMLStreamException {
+    final int len = s.length();
+    for(int i=0;i<len;++i) {
+      writeByte(s.charAt(i));
+    }
+  }
+  
+  private static final int ESCAPE_NONE = 0;
+  private static final int ESCAPE_TEXT = 1;
+  private static final int ESCAPE_ATTRIBUTE = 2;
+  
+  /**
+   * Encode the characters as UTF-8, escaping as required
+   */
+  private void writeEncoded(CharSequence s, int start, int end, int escape) throws XMLStreamException {
+    for(int i=start;i<end;++i) {
+      final char c = s.charAt(i);
+      if(c < 0x80) {
+        if(escape != ESCAPE_NONE) {
+          switch(c) {
+            case '&':
+              writeAscii("&amp;");
+              continue;
+            case '<':
+              writeAscii("&lt;");
+              continue;
+            case '>':
+              writeAscii("&gt;");
+              continue;
+            case '\r':
+              writeAscii("&#xD;");
+              continue;
+            case '"':
+              if(escape == ESCAPE_ATTRIBUTE) {
+                writeAscii("&quot;");
+                continue;
+              }
+              break;
+            case '\n':
+              if(escape == ESCAPE_ATTRIBUTE) {
+                writeAscii("&#xA;");
+                continue;
+              }
+              break;
+            case '\t':
+              if(escape == ESCAPE_ATTRIBUTE) {
+                writeAscii("&#x9;");
+                continue;
+              }
+              break;
+          }
+        }
+        writeByte(c);
+      } else if(c < 0x800) {
+        writeByte(0xC0 | (c >> 6));
+        writeByte(0x80 | (c & 0x3F));
+      } else if(Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+        final int cp = Character.toCodePoint(c, s.charAt(++i));
+        writeByte(0xF0 | (cp >> 18));
+        writeByte(0x80 | ((cp >> 12) & 0x3F));
+        writeByte(0x80 | ((cp >> 6) & 0x3F));
+        writeByte(0x80 | (cp & 0x3F));
+      } else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        throw new XMLStreamException("Unpaired surrogate U+" + Integer.toHexString(c).toUpperCase() + " at index " + i);
+      } else {
+        writeByte(0xE0 | (c >> 12));
+        writeByte(0x80 | ((c >> 6) & 0x3F));
+        writeByte(0x80 | (c & 0x3F));
+      }
+    }
+  }
+  
+  private void writeEncoded(String s, int escape) throws XMLStreamException {
+    writeEncoded(s, 0, s.length(), escape);
+  }
+  
+  private void closeStartTag() throws XMLStreamException {
+    if(inStartTag) {
+      writeByte('>');
+      inStartTag = false;
+    }
+  }
+  
+  // Namespace scope
+  
+  private String boundNamespaceURI(String prefix) {
+    for(int i=boundPrefixes.size()-1;i>=0;--i) {
+      if(boundPrefixes.get(i).equals(prefix)) {
+        return boundNamespaceURIs.get(i);
+      }
+    }
+    if(namespaceContext != null) {
+      final String uri = namespaceContext.getNamespaceURI(prefix);
+      if(uri != null && uri.length() > 0) {
+        return uri;
+      }
+    }
+    return XMLConstants.NULL_NS_URI;
+  }
+  
+  private String boundPrefix(String namespaceURI) {
+    for(int i=boundNamespaceURIs.size()-1;i>=0;--i) {
+      if(boundNamespaceURIs.get(i).equals(namespaceURI)) {
+        final String prefix = boundPrefixes.get(i);
+        // Only if the prefix is not hidden by a later binding
+        if(boundNamespaceURI(prefix).equals(namespaceURI)) {
+          return prefix;
+        }
+      }
+    }
+    if(namespaceContext != null) {
+      return namespaceContext.getPrefix(namespaceURI);
+    }
+    return null;
+  }
+  
+  /**
+   * Declare the binding on the current start tag unless it is already in scope
+   */
+  private void ensureBinding(String prefix, String namespaceURI) throws XMLStreamException {
+    if(XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+      return;
+    }
+    if(!boundNamespaceURI(prefix).equals(namespaceURI)) {
+      declare(prefix, namespaceURI);
+    }
+  }
+  
+  private void declare(String prefix, String namespaceURI) throws XMLStreamException {
+    if(!inStartTag) {
+      throw new XMLStreamException("Namespace declarations must directly follow a start element");
+    }
+    boundPrefixes.add(prefix);
+    boundNamespaceURIs.add(namespaceURI);
+    final int last = bindingCounts.size() - 1;
+    bindingCounts.set(last, bindingCounts.get(last) + 1);
+    if(prefix.length() == 0) {
+      writeAscii(" xmlns=\"");
+    } else {
+      writeAscii(" xmlns:");
+      writeEncoded(prefix, ESCAPE_NONE);
+      writeAscii("=\"");
+    }
+    writeEncoded(namespaceURI, ESCAPE_ATTRIBUTE);
+    writeByte('"');
+  }
+  
+  private static String nullToEmpty(String s) {
+    return s == null ? "" : s;
+  }
+  
+  // XMLStreamWriter
+  
+  @Override
+  public void writeStartElement(String localName) throws XMLStreamException {
+    writeStartElement("", localName, boundNamespaceURI(""));
+  }
+
+  @Override
+  public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+    String prefix = boundPrefix(nullToEmpty(namespaceURI));
+    writeStartElement(prefix == null ? "" : prefix, localName, namespaceURI);
+  }
+
+  @Override
+  public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+    closeStartTag();
+    prefix = nullToEmpty(prefix);
+    namespaceURI = nullToEmpty(namespaceURI);
+    final String qName = prefix.length() == 0 ? localName : prefix + ':' + localName;
+    writeByte('<');
+    writeEncoded(qName, ESCAPE_NONE);
+    elementStack.add(qName);
+    bindingCounts.add(0);
+    inStartTag = true;
+    ensureBinding(prefix, namespaceURI);
+  }
+
+  @Override
+  public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+    writeStartElement(namespaceURI, localName);
+    writeEndElement();
+  }
+
+  @Override
+  public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+    writeStartElement(prefix, localName, namespaceURI);
+    writeEndElement();
+  }
+
+  @Override
+  public void writeEmptyElement(String localName) throws XMLStreamException {
+    writeStartElement(localName);
+    writeEndElement();
+  }
+
+  @Override
+  public void writeEndElement() throws XMLStreamException {
+    if(elementStack.isEmpty()) {
+      throw new XMLStreamException("No open element to end");
+    }
+    final String qName = elementStack.remove(elementStack.size() - 1);
+    if(inStartTag) {
+      writeAscii("/>");
+      inStartTag = false;
+    } else {
+      writeAscii("</");
+      writeEncoded(qName, ESCAPE_NONE);
+      writeByte('>');
+    }
+    int bindings = bindingCounts.remove(bindingCounts.size() - 1);
+    while(bindings-- > 0) {
+      boundPrefixes.remove(boundPrefixes.size() - 1);
+      boundNamespaceURIs.remove(boundNamespaceURIs.size() - 1);
+    }
+  }
+
+  @Override
+  public void writeEndDocument() throws XMLStreamException {
+    while(!elementStack.isEmpty()) {
+      writeEndElement();
+    }
+    drain();
+  }
+
+  @Override
+  public void close() throws XMLStreamException {
+    flush();
+  }
+
+  @Override
+  public void flush() throws XMLStreamException {
+    drain();
+    if(out != null) {
+      try {
+        out.flush();
+      } catch (IOException ex) {
+        throw new XMLStreamException(ex);
+      }
+    }
+  }
+  
+  @Override
+  public void writeAttribute(String localName, String value) throws XMLStreamException {
+    writeAttribute("", "", localName, value);
+  }
+
+  @Override
+  public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+    namespaceURI = nullToEmpty(namespaceURI);
+    String prefix = namespaceURI.length() == 0 ? "" : boundPrefix(namespaceURI);
+    if(prefix == null) {
+      throw new XMLStreamException("No prefix bound for namespace URI " + namespaceURI);
+    }
+    writeAttribute(prefix, namespaceURI, localName, value);
+  }
+
+  @Override
+  public void writeAttribute(String prefix, String namespaceURI, String localName, String value) throws XMLStreamException {
+    if(!inStartTag) {
+      throw new XMLStreamException("Attributes must directly follow a start element");
+    }
+    prefix = nullToEmpty(prefix);
+    namespaceURI = nullToEmpty(namespaceURI);
+    if(prefix.length() > 0) {
+      ensureBinding(prefix, namespaceURI);
+    }
+    writeByte(' ');
+    if(prefix.length() > 0) {
+      writeEncoded(prefix, ESCAPE_NONE);
+      writeByte(':');
+    }
+    writeEncoded(localName, ESCAPE_NONE);
+    writeAscii("=\"");
+    writeEncoded(value, ESCAPE_ATTRIBUTE);
+    writeByte('"');
+  }
+
+  @Override
+  public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+    if(prefix == null || prefix.length() == 0 || XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+      writeDefaultNamespace(namespaceURI);
+    } else {
+      ensureBinding(prefix, nullToEmpty(namespaceURI));
+    }
+  }
+
+  @Override
+  public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+    ensureBinding("", nullToEmpty(namespaceURI));
+  }
+
+  @Override
+  public void writeComment(String data) throws XMLStreamException {
+    if(data.contains("--") || data.endsWith("-")) {
+      throw new XMLStreamException("Comment must not contain \"--\" or end with \"-\"");
+    }
+    closeStartTag();
+    writeAscii("<!--");
+    writeEncoded(data, ESCAPE_NONE);
+    writeAscii("-->");
+  }
+
+  @Override
+  public void writeProcessingInstruction(String target) throws XMLStreamException {
+    writeProcessingInstruction(target, null);
+  }
+
+  @Override
+  public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+    closeStartTag();
+    writeAscii("<?");
+    writeEncoded(target, ESCAPE_NONE);
+    if(data != null) {
+      writeByte(' ');
+      writeEncoded(data, ESCAPE_NONE);
+    }
+    writeAscii("?>");
+  }
+
+  @Override
+  public void writeCData(String data) throws XMLStreamException {
+    closeStartTag();
+    writeAscii("<![CDATA[");
+    writeEncoded(data, ESCAPE_NONE);
+    writeAscii("]]>");
+  }
+
+  @Override
+  public void writeDTD(String dtd) throws XMLStreamException {
+    writeEncoded(dtd, ESCAPE_NONE);
+  }
+
+  @Override
+  public void writeEntityRef(String name) throws XMLStreamException {
+    closeStartTag();
+    writeByte('&');
+    writeEncoded(name, ESCAPE_NONE);
+    writeByte(';');
+  }
+
+  @Override
+  public void writeStartDocument() throws XMLStreamException {
+    writeStartDocument("UTF-8", "1.0");
+  }
+
+  @Override
+  public void writeStartDocument(String version) throws XMLStreamException {
+    writeStartDocument("UTF-8", version);
+  }
+
+  @Override
+  public void writeStartDocument(String encoding, String version) throws XMLStreamException {
+    if(encoding != null && !"UTF-8".equalsIgnoreCase(encoding)) {
+      throw new XMLStreamException("Unsupported encoding " + encoding);
+    }
+    writeAscii("<?xml version=\"");
+    writeAscii(version == null ? "1.0" : version);
+    writeAscii("\" encoding=\"UTF-8\"?>");
+  }
+
+  @Override
+  public void writeCharacters(String text) throws XMLStreamException {
+    closeStartTag();
+    writeEncoded(text, ESCAPE_TEXT);
+  }
+
+  @Override
+  public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+    closeStartTag();
+    writeEncoded(java.nio.CharBuffer.wrap(text), start, start + len, ESCAPE_TEXT);
+  }
+
+  @Override
+  public String getPrefix(String uri) throws XMLStreamException {
+    return boundPrefix(nullToEmpty(uri));
+  }
+
+  @Override
+  public void setPrefix(String prefix, String uri) throws XMLStreamException {
+    // Bindings are declared on demand when they are used
+  }
+
+  @Override
+  public void setDefaultNamespace(String uri) throws XMLStreamException {
+    // Bindings are declared on demand when they are used
+  }
+
+  @Override
+  public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+    namespaceContext = context;
+  }
+
+  @Override
+  public NamespaceContext getNamespaceContext() {
+    return new NamespaceContext() {
+      @Override
+      public String getNamespaceURI(String prefix) {
+        return boundNamespaceURI(prefix);
+      }
+
+      @Override
+      public String getPrefix(String namespaceURI) {
+        return boundPrefix(namespaceURI);
+      }
+
+      @Override
+      public Iterator getPrefixes(String namespaceURI) {
+        final List<String> prefixes = new ArrayList<String>();
+        final String prefix = boundPrefix(namespaceURI);
+        if(prefix != null) {
+          prefixes.add(prefix);
+        }
+        return prefixes.iterator();
+      }
+    };
+  }
+
+  @Override
+  public Object getProperty(String name) throws IllegalArgumentException {
+    throw new IllegalArgumentException("Unsupported property " + name);
+  }
+}
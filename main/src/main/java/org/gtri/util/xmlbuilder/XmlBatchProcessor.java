@@ -0,0 +1,271 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import org.gtri.util.issue.Issues;
+import org.gtri.util.issue.api.Issue;
+import org.gtri.util.iteratee.IterateeFactory;
+import org.gtri.util.iteratee.api.Plan2;
+import org.gtri.util.iteratee.api.StatusCode;
+import org.gtri.util.xmlbuilder.api.XmlEvent;
+
+/**
+ * Runs a reader to writer plan for each of many documents, concurrently on 
+ * the executor of an XmlFactory. All plans share the factory (and so its 
+ * XMLInputFactory, Processor, name cache and IssueHandlingStrategy). At most
+ * parallelism documents are processed at once, which bounds the number of 
+ * open files and the memory in use. A document that fails does not stop the
+ * others; its issues are reported in its result.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public final class XmlBatchProcessor {
+  
+  /**
+   * A document to process: the input to read and the output to write
+   */
+  public static final class Document {
+    private final File input;
+    private final File output;
+    
+    public Document(File input, File output) {
+      this.input = input;
+      this.output = output;
+    }
+    
+    public File input() {
+      return input;
+    }
+    
+    public File output() {
+      return output;
+    }
+    
+    @Override
+    public String toString() {
+      return input + " -> " + output;
+    }
+  }
+  
+  /**
+   * The result of processing a document
+   */
+  public static final class DocumentResult {
+    private final Document document;
+    private final StatusCode statusCode;
+    private final List<Issue> issues;
+    private final long elapsedNanos;
+    
+    DocumentResult(Document document, StatusCode statusCode, List<Issue> issues, long elapsedNanos) {
+      this.document = document;
+      this.statusCode = statusCode;
+      this.issues = Collections.unmodifiableList(issues);
+      this.elapsedNanos = elapsedNanos;
+    }
+    
+    public Document document() {
+      return document;
+    }
+    
+    public StatusCode statusCode() {
+      return statusCode;
+    }
+    
+    /**
+     * @return all issues reported while processing the document
+     */
+    public List<Issue> issues() {
+      return issues;
+    }
+    
+    public long elapsedNanos() {
+      return elapsedNanos;
+    }
+    
+    @Override
+    public String toString() {
+      return document + " " + statusCode + " " + issues;
+    }
+  }
+  
+  /**
+   * Receives the result of each document as it completes
+   */
+  public interface Listener {
+    /**
+     * Called on the thread that called process, in order of completion
+     * @param result the result of the document
+     * @param processedCount the number of documents processed so far
+     * @param documentCount the number of documents in the batch
+     */
+    void documentProcessed(DocumentResult result, int processedCount, int documentCount);
+  }
+  
+  private final XmlFactory xmlFactory;
+  private final IterateeFactory iterateeFactory = new IterateeFactory();
+  private final XmlOutputFormat format;
+  private final int parallelism;
+  
+  /**
+   * @param _xmlFactory the factory for readers and writers, whose executor 
+   * runs the plans
+   * @param _format the format of the output
+   * @param _parallelism the maximum number of documents processed at once
+   */
+  public XmlBatchProcessor(XmlFactory _xmlFactory, XmlOutputFormat _format, int _parallelism) {
+    if(_parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    xmlFactory = _xmlFactory;
+    format = _format;
+    parallelism = _parallelism;
+  }
+  
+  public XmlBatchProcessor(XmlFactory _xmlFactory) {
+    this(_xmlFactory, XmlOutputFormat.PRETTY, Runtime.getRuntime().availableProcessors());
+  }
+  
+  /**
+   * Process the documents, waiting until all are done
+   * @param documents
+   * @param listener the listener or NULL
+   * @return the results in the order of the documents
+   * @throws InterruptedException 
+   */
+  public List<DocumentResult> process(final List<Document> documents, Listener listener) throws InterruptedException {
+    final int documentCount = documents.size();
+    final DocumentResult[] results = new DocumentResult[documentCount];
+    CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(xmlFactory.executor());
+    int submittedCount = 0;
+    int processedCount = 0;
+    while(processedCount < documentCount) {
+      while(submittedCount < documentCount && submittedCount - processedCount < parallelism) {
+        final int i = submittedCount++;
+        completionService.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            results[i] = processDocument(documents.get(i));
+            return i;
+          }
+        });
+      }
+      final int i;
+      try {
+        i = completionService.take().get();
+      } catch(ExecutionException ex) {
+        // processDocument only fails on an Error
+        throw new IllegalStateException(ex.getCause());
+      }
+      processedCount++;
+      if(listener != null) {
+        listener.documentProcessed(results[i], processedCount, documentCount);
+      }
+    }
+    return Arrays.asList(results);
+  }
+  
+  /**
+   * Process every file in the input directory accepted by the filter, 
+   * writing the output to a file of the same name in the output directory
+   * @param inputDirectory
+   * @param outputDirectory the output directory, which is created if needed
+   * and must not be the input directory
+   * @param filter the filter or NULL to process all files
+   * @param listener the listener or NULL
+   * @return the results, in order of input file name
+   * @throws IOException if a directory can not be read or created
+   * @throws InterruptedException 
+   */
+  public List<DocumentResult> processDirectory(File inputDirectory, File outputDirectory, FileFilter filter, Listener listener) throws IOException, InterruptedException {
+    if(inputDirectory.getCanonicalFile().equals(outputDirectory.getCanonicalFile())) {
+      throw new IllegalArgumentException("Output directory must not be the input directory: " + outputDirectory);
+    }
+    File[] files = inputDirectory.listFiles(filter);
+    if(files == null) {
+      throw new IOException("Failed to list directory: " + inputDirectory);
+    }
+    if(!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+      throw new IOException("Failed to create directory: " + outputDirectory);
+    }
+    Arrays.sort(files);
+    List<Document> documents = new ArrayList<Document>(files.length);
+    for(File file : files) {
+      if(file.isFile()) {
+        documents.add(new Document(file, new File(outputDirectory, file.getName())));
+      }
+    }
+    return process(documents, listener);
+  }
+  
+  public List<DocumentResult> processDirectory(File inputDirectory, File outputDirectory) throws IOException, InterruptedException {
+    return processDirectory(inputDirectory, outputDirectory, null, null);
+  }
+  
+  private DocumentResult processDocument(Document document) {
+    long startNanos = System.nanoTime();
+    List<Issue> issues = new ArrayList<Issue>();
+    StatusCode statusCode;
+    OutputStream out = null;
+    try {
+      out = new BufferedOutputStream(new FileOutputStream(document.output()));
+      Plan2.RunResult<XmlEvent,?> r = iterateeFactory.createPlan(
+        xmlFactory.createXmlReader(document.input()), 
+        xmlFactory.createXmlWriter(out, format)
+      ).run();
+      for(Issue issue : r.allIssues()) {
+        issues.add(issue);
+      }
+      statusCode = r.statusCode();
+      // A failure to close (e.g. to flush the last bytes) fails the document
+      OutputStream closing = out;
+      out = null;
+      closing.close();
+    } catch(Exception ex) {
+      issues.add(Issues.INSTANCE.fatalError(String.valueOf(ex.getMessage())));
+      statusCode = StatusCode.FATAL_ERROR;
+    } finally {
+      if(out != null) {
+        try {
+          out.close();
+        } catch(IOException ex) {
+          // The document has already failed
+        }
+      }
+    }
+    return new DocumentResult(document, statusCode, issues, System.nanoTime() - startNanos);
+  }
+}
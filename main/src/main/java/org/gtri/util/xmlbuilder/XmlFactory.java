@@ -22,25 +22,66 @@
 
 package org.gtri.util.xmlbuilder;
 
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.Files;
+import com.google.common.io.InputSupplier;
+import com.google.common.io.OutputSupplier;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.util.StreamReaderDelegate;
+import com.fasterxml.aalto.AsyncXMLInputFactory;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
+import org.codehaus.stax2.util.StreamWriterDelegate;
 import org.gtri.util.iteratee.api.Enumerator;
 import org.gtri.util.issue.api.IssueHandlingStrategy;
 import org.gtri.util.issue.IssueHandling;
 import org.gtri.util.iteratee.api.Iteratee;
+import org.gtri.util.xmlbuilder.api.ByteCounter;
+import org.gtri.util.xmlbuilder.api.XmlBatchContract;
+import org.gtri.util.xmlbuilder.api.XmlContract;
 import org.gtri.util.xmlbuilder.api.XmlEvent;
+import org.gtri.util.xmlbuilder.api.XmlLocatorMode;
+import org.gtri.util.xmlbuilder.api.XmlReaderListener;
+import org.gtri.util.xmlbuilder.api.XmlWriterListener;
+import org.gtri.util.xmlbuilder.impl.AsyncXmlReader;
+import org.gtri.util.xmlbuilder.impl.XmlBinaryReader;
+import org.gtri.util.xmlbuilder.impl.XmlBinaryWriter;
+import org.gtri.util.xmlbuilder.impl.XmlCheckpoint;
+import org.gtri.util.xmlbuilder.impl.XmlCheckpointListener;
+import org.gtri.util.xmlbuilder.impl.XmlChunkBudget;
+import org.gtri.util.xmlbuilder.impl.XmlContractBatchAdapter;
+import org.gtri.util.xmlbuilder.impl.XmlContractWriter;
+import org.gtri.util.xmlbuilder.impl.XmlCursor;
+import org.gtri.util.xmlbuilder.impl.XmlDocument;
+import org.gtri.util.xmlbuilder.impl.XmlDocumentBuilder;
+import org.gtri.util.xmlbuilder.impl.XmlEventParser;
+import org.gtri.util.xmlbuilder.impl.XmlNameCache;
+import org.gtri.util.xmlbuilder.impl.XmlProjection;
+import org.gtri.util.xmlbuilder.impl.ParallelXmlReader;
+import org.gtri.util.xmlbuilder.impl.PipelinedEnumerator;
 import org.gtri.util.xmlbuilder.impl.XmlReader;
+import org.gtri.util.xmlbuilder.impl.XmlRecordIndex;
 import org.gtri.util.xmlbuilder.impl.XmlWriter;
         
 /**
@@ -49,19 +90,289 @@ import org.gtri.util.xmlbuilder.impl.XmlWriter;
  */
 public final class XmlFactory implements org.gtri.util.xmlbuilder.api.XmlFactory {
   private final IssueHandlingStrategy issueHandlingStrategy;
+  private final XMLInputFactory xmlInputFactory;
+  private final Processor processor;
+  private final XmlNameCache nameCache;
+  private final XmlLocatorMode locatorMode;
+  private final ExecutorService executor;
+  private final XmlReaderListener readerListener;
+  private final XmlWriterListener writerListener;
+  private final XmlChunkBudget chunkBudget;
+  private final int maxTextLength;
+  private final XmlProjection projection;
+  private final long checkpointInterval;
   
+  /**
+   * Shared default instances, created on first use. Looking up an 
+   * XMLInputFactory and creating a Processor is expensive compared to the 
+   * cost of parsing or writing a small document.
+   */
+  private static final class Defaults {
+    static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    static final Processor PROCESSOR = new Processor(false);
+    static final AsyncXMLInputFactory ASYNC_XML_INPUT_FACTORY = new InputFactoryImpl();
+    // Worker threads are daemon threads and do not prevent JVM exit
+    static final ExecutorService EXECUTOR = new scala.concurrent.forkjoin.ForkJoinPool();
+  }
+  
+  /**
+   * The settings of a factory. The with methods copy the settings of this 
+   * factory and change one.
+   */
+  private static final class Options {
+    final IssueHandlingStrategy issueHandlingStrategy;
+    final XMLInputFactory xmlInputFactory;
+    final Processor processor;
+    XmlNameCache nameCache = new XmlNameCache(XmlNameCache.STD_MAX_SIZE(), false);
+    XmlLocatorMode locatorMode = XmlLocatorMode.FULL;
+    ExecutorService executor = null;
+    XmlReaderListener readerListener = null;
+    XmlWriterListener writerListener = null;
+    XmlChunkBudget chunkBudget = null;
+    int maxTextLength = XmlEventParser.NO_MAX_TEXT_LENGTH();
+    XmlProjection projection = null;
+    long checkpointInterval = 0;
+    
+    Options(IssueHandlingStrategy _issueHandlingStrategy, XMLInputFactory _xmlInputFactory, Processor _processor) {
+      issueHandlingStrategy = _issueHandlingStrategy;
+      xmlInputFactory = _xmlInputFactory;
+      processor = _processor;
+    }
+  }
+  
+  /**
+   * Create an XmlFactory that shares the XMLInputFactory and Processor across
+   * all readers and writers it creates. Both must be fully configured before
+   * being passed in and must not be reconfigured afterwards, since they may be
+   * used concurrently.
+   * @param _issueHandlingCode
+   * @param _xmlInputFactory
+   * @param _processor 
+   */
+  public XmlFactory(IssueHandlingStrategy _issueHandlingCode, XMLInputFactory _xmlInputFactory, Processor _processor) { 
+    this(new Options(_issueHandlingCode, _xmlInputFactory, _processor));
+  }
   public XmlFactory(IssueHandlingStrategy _issueHandlingCode) { 
-    issueHandlingStrategy = _issueHandlingCode;
+    this(_issueHandlingCode, Defaults.XML_INPUT_FACTORY, Defaults.PROCESSOR);
   }
   public XmlFactory() {
-    issueHandlingStrategy = IssueHandling.INSTANCE.createNormalStrategy();
+    this(IssueHandling.INSTANCE.createNormalStrategy());
+  }
+  private XmlFactory(Options options) {
+    issueHandlingStrategy = options.issueHandlingStrategy;
+    xmlInputFactory = options.xmlInputFactory;
+    processor = options.processor;
+    nameCache = options.nameCache;
+    locatorMode = options.locatorMode;
+    executor = options.executor;
+    readerListener = options.readerListener;
+    writerListener = options.writerListener;
+    chunkBudget = options.chunkBudget;
+    maxTextLength = options.maxTextLength;
+    projection = options.projection;
+    checkpointInterval = options.checkpointInterval;
+  }
+  
+  /**
+   * @return the options of this factory, to copy with a change
+   */
+  private Options options() {
+    final Options options = new Options(issueHandlingStrategy, xmlInputFactory, processor);
+    options.nameCache = nameCache;
+    options.locatorMode = locatorMode;
+    options.executor = executor;
+    options.readerListener = readerListener;
+    options.writerListener = writerListener;
+    options.chunkBudget = chunkBudget;
+    options.maxTextLength = maxTextLength;
+    options.projection = projection;
+    options.checkpointInterval = checkpointInterval;
+    return options;
+  }
+  
+  /**
+   * Create a copy of this factory whose readers capture locators using the 
+   * mode.
+   * @param _locatorMode
+   * @return a copy of this factory that uses the locator mode
+   */
+  public XmlFactory withLocatorMode(XmlLocatorMode _locatorMode) {
+    final Options options = options();
+    options.locatorMode = _locatorMode;
+    return new XmlFactory(options);
+  }
+  
+  /**
+   * Create a copy of this factory whose readers share the name cache. Use a
+   * cache created with recordStats to count hits and misses.
+   * @param _nameCache
+   * @return a copy of this factory that uses the name cache
+   */
+  public XmlFactory withNameCache(XmlNameCache _nameCache) {
+    if(_nameCache == null) {
+      throw new IllegalArgumentException("nameCache must not be null");
+    }
+    final Options options = options();
+    options.nameCache = _nameCache;
+    return new XmlFactory(options);
+  }
+  
+  /**
+   * Create a copy of this factory whose parallel readers parse on the 
+   * executor. The executor is not shut down by the factory.
+   * @param _executor
+   * @return a copy of this factory that uses the executor
+   */
+  public XmlFactory withExecutor(ExecutorService _executor) {
+    final Options options = options();
+    options.executor = _executor;
+    return new XmlFactory(options);
+  }
+  
+  /**
+   * Create a copy of this factory whose readers report to the listener. 
+   * Readers created without a listener do not take any measurements.
+   * @param _readerListener the listener or NULL for none
+   * @return a copy of this factory that uses the listener
+   */
+  public XmlFactory withReaderListener(XmlReaderListener _readerListener) {
+    final Options options = options();
+    options.readerListener = _readerListener;
+    return new XmlFactory(options);
+  }
+  
+  /**
+   * Create a copy of this factory whose writers report to the listener. 
+   * Writers created without a listener do not take any measurements.
+   * @param _writerListener the listener or NULL for none
+   * @return a copy of this factory that uses the listener
+   */
+  public XmlFactory withWriterListener(XmlWriterListener _writerListener) {
+    final Options options = options();
+    options.writerListener = _writerListener;
+    return new XmlFactory(options);
+  }
+  
+  /**
+   * Create a copy of this factory whose readers size each chunk adaptively to
+   * fit the budget. The chunk size passed to createXmlReader is used as the 
+   * event limit of the first chunk only.
+   * @param _chunkBudget the budget or NULL for fixed size chunks
+   * @return a copy of this factory that uses the budget
+   */
+  public XmlFactory withChunkBudget(XmlChunkBudget _chunkBudget) {
+    final Options options = options();
+    options.chunkBudget = _chunkBudget;
+    return new XmlFactory(options);
+  }
+  
+  /**
+   * Create a copy of this factory whose readers do not merge text longer than
+   * the maximum into the value of its element. Such text is read as a 
+   * sequence of text events of at most the maximum length instead, which 
+   * bounds the memory needed for very large text (e.g. base64 payloads).
+   * @param _maxTextLength the maximum length of an element value or text event
+   * (must be > 1)
+   * @return a copy of this factory that uses the maximum
+   */
+  public XmlFactory withMaxTextLength(int _maxTextLength) {
+    if(_maxTextLength <= 1) {
+      throw new IllegalArgumentException("maxTextLength must be > 1");
+    }
+    final Options options = options();
+    options.maxTextLength = _maxTextLength;
+    return new XmlFactory(options);
+  }
+  
+  /**
+   * Create a copy of this factory whose readers read only the elements 
+   * selected by the projection (and the ancestors of those elements). 
+   * Subtrees that can not contain a selected element are skipped while 
+   * parsing, so the cost of reading is mostly proportional to the size of
+   * the selected content. Parallel readers ignore the projection.
+   * @param _projection the projection or null to read all elements
+   * @return a copy of this factory that uses the projection
+   */
+  public XmlFactory withProjection(XmlProjection _projection) {
+    final Options options = options();
+    options.projection = _projection;
+    return new XmlFactory(options);
+  }
+  
+  /**
+   * Create a copy of this factory whose readers read only the elements 
+   * selected by the path patterns (see XmlProjection.parse for the syntax)
+   * @param patterns
+   * @return a copy of this factory that uses the projection
+   */
+  public XmlFactory withProjection(String... patterns) {
+    return withProjection(XmlProjection.parse(patterns));
+  }
+  
+  /**
+   * Create a copy of this factory whose readers add an XmlCheckpointEvent 
+   * about every checkpointInterval events (at the end of a chunk). A writer
+   * created with an XmlCheckpointListener reports each checkpoint once the 
+   * events before it have been written. Reading and writing can then resume
+   * from a saved checkpoint after a failure (see createXmlReader(File, 
+   * XmlCheckpoint) and createXmlWriter(File, XmlCheckpoint, 
+   * XmlCheckpointListener)). Readers with a projection do not checkpoint.
+   * @param _checkpointInterval the number of events between checkpoints or 0 for none
+   * @return a copy of this factory that uses the checkpoint interval
+   */
+  public XmlFactory withCheckpointInterval(long _checkpointInterval) {
+    if(_checkpointInterval < 0) {
+      throw new IllegalArgumentException("checkpointInterval must be >= 0");
+    }
+    final Options options = options();
+    options.checkpointInterval = _checkpointInterval;
+    return new XmlFactory(options);
+  }
+  
+  /**
+   * Create a copy of this factory whose readers and writers report to the 
+   * metrics.
+   * @param metrics
+   * @return a copy of this factory that uses the metrics
+   */
+  public XmlFactory withMetrics(XmlMetrics metrics) {
+    return withReaderListener(metrics).withWriterListener(metrics);
+  }
+  
+  /**
+   * Get the executor used by parallel readers. If none was set, a shared 
+   * executor is used.
+   * @return the executor
+   */
+  public ExecutorService executor() {
+    return executor == null ? Defaults.EXECUTOR : executor;
+  }
+  
+  public XmlLocatorMode locatorMode() {
+    return locatorMode;
+  }
+  
+  public XMLInputFactory xmlInputFactory() {
+    return xmlInputFactory;
+  }
+  
+  public Processor processor() {
+    return processor;
+  }
+  
+  /**
+   * Get the name cache shared by all readers created by this factory
+   * @return the name cache
+   */
+  public XmlNameCache nameCache() {
+    return nameCache;
   }
   
   public static final int STD_CHUNK_SIZE = 256;
 
   @Override
   public Enumerator<XmlEvent> createXmlReader(final XMLStreamReaderFactory factory, int chunkSize) {
-    return new XmlReader(factory, issueHandlingStrategy, chunkSize);
+    return new XmlReader(factory, issueHandlingStrategy, chunkSize, nameCache, locatorMode, readerListener, chunkBudget, maxTextLength, projection, checkpointInterval, null);
   }
   
   public Enumerator<XmlEvent> createXmlReader(final XMLStreamReaderFactory factory) {
@@ -96,10 +407,11 @@ public final class XmlFactory implements org.gtri.util.xmlbuilder.api.XmlFactory
         byte[] buf = new byte[1024];
         int n;
         try {
-          n = in.read(buf);
+          InputStream xmlIn = decompressIfGzipped(in);
+          n = xmlIn.read(buf);
           while (n > 0) {
             baos.write(buf, 0, n);
-            n = in.read(buf);
+            n = xmlIn.read(buf);
           }
         } catch (IOException ex) {
           Logger.getLogger(XmlFactory.class.getName()).log(Level.SEVERE, null, ex);
@@ -112,20 +424,410 @@ public final class XmlFactory implements org.gtri.util.xmlbuilder.api.XmlFactory
         @Override
         public XMLStreamReaderFactory.Result create() throws XMLStreamException {
           byte[] content = lazyBaos.get().toByteArray();
-          return new XMLStreamReaderFactory.Result(XMLInputFactory.newInstance().createXMLStreamReader(new ByteArrayInputStream(content)), content.length);
+          return new XMLStreamReaderFactory.Result(xmlInputFactory.createXMLStreamReader(new ByteArrayInputStream(content)), content.length);
         }
       };
   }
   
+  @Override
+  public XMLStreamReaderFactory createStreamingXMLStreamReaderFactory(final InputStream in) {
+    return new XMLStreamReaderFactory() {
+      private boolean created = false;
+      
+      @Override
+      public synchronized XMLStreamReaderFactory.Result create() throws XMLStreamException {
+        if(created) {
+          throw new XMLStreamException("InputStream has already been consumed");
+        }
+        created = true;
+        return createStreamingResult(in, 0, null);
+      }
+    };
+  }
+  
+  @Override
+  public XMLStreamReaderFactory createXMLStreamReaderFactory(final File file) {
+    return new XMLStreamReaderFactory() {
+      @Override
+      public XMLStreamReaderFactory.Result create() throws XMLStreamException {
+        final CountingInputStream in;
+        try {
+          in = new CountingInputStream(new FileInputStream(file));
+        } catch (IOException ex) {
+          throw new XMLStreamException(ex);
+        }
+        return createStreamingResult(in, file.length(), new ByteCounter() {
+          @Override
+          public long byteCount() {
+            return in.getCount();
+          }
+        });
+      }
+    };
+  }
+  
+  @Override
+  public XMLStreamReaderFactory createMappedXMLStreamReaderFactory(final File file) {
+    return createMappedXMLStreamReaderFactory(file, MappedFileInputStream.STD_WINDOW_SIZE);
+  }
+  
+  /**
+   * Create a factory for readers that read the file through a sliding memory
+   * mapped window
+   * @param file
+   * @param windowSize the number of bytes mapped at a time
+   * @return a factory for readers of the file
+   */
+  public XMLStreamReaderFactory createMappedXMLStreamReaderFactory(final File file, final int windowSize) {
+    return new XMLStreamReaderFactory() {
+      @Override
+      public XMLStreamReaderFactory.Result create() throws XMLStreamException {
+        final MappedFileInputStream in;
+        try {
+          in = new MappedFileInputStream(file, windowSize);
+        } catch (IOException ex) {
+          throw new XMLStreamException(ex);
+        }
+        return createStreamingResult(in, in.size(), in);
+      }
+    };
+  }
+  
+  @Override
+  public XMLStreamReaderFactory createXMLStreamReaderFactory(final InputSupplier<? extends InputStream> supplier) {
+    return new XMLStreamReaderFactory() {
+      @Override
+      public XMLStreamReaderFactory.Result create() throws XMLStreamException {
+        final InputStream in;
+        try {
+          in = supplier.getInput();
+        } catch (IOException ex) {
+          throw new XMLStreamException(ex);
+        }
+        return createStreamingResult(in, 0, null);
+      }
+    };
+  }
+  
+  /**
+   * Create a result that reads directly from the InputStream. Gzip compressed
+   * input is decompressed on the fly. The returned XMLStreamReader closes the 
+   * InputStream when it is closed. 
+   * @param in
+   * @param totalByteSize the size of the stream or 0 if unknown
+   * @param byteCounter counter of bytes consumed from the stream or NULL
+   * @return a result that streams from the InputStream
+   * @throws XMLStreamException 
+   */
+  private XMLStreamReaderFactory.Result createStreamingResult(final InputStream in, long totalByteSize, ByteCounter byteCounter) throws XMLStreamException {
+    final InputStream xmlIn;
+    final XMLStreamReader reader;
+    try {
+      xmlIn = decompressIfGzipped(in);
+    } catch(IOException ex) {
+      closeQuietly(in);
+      throw new XMLStreamException(ex);
+    }
+    try {
+      reader = xmlInputFactory.createXMLStreamReader(xmlIn);
+    } catch(XMLStreamException ex) {
+      closeQuietly(xmlIn);
+      throw ex;
+    }
+    return new XMLStreamReaderFactory.Result(new StreamReaderDelegate(reader) {
+      @Override
+      public void close() throws XMLStreamException {
+        try {
+          super.close();
+        } finally {
+          closeQuietly(xmlIn);
+        }
+      }
+    }, totalByteSize, byteCounter);
+  }
+  
+  /**
+   * Test for the gzip magic number without consuming it. An XML document can
+   * never start with these bytes, so detection is unambiguous.
+   * @param in a stream that supports mark
+   * @return TRUE if the stream is gzip compressed
+   * @throws IOException 
+   */
+  private static boolean isGzipped(InputStream in) throws IOException {
+    in.mark(2);
+    try {
+      return in.read() == 0x1f && in.read() == 0x8b;
+    } finally {
+      in.reset();
+    }
+  }
+  
+  private static boolean isGzipped(File file) {
+    try {
+      InputStream in = new BufferedInputStream(new FileInputStream(file), 2);
+      try {
+        return isGzipped(in);
+      } finally {
+        in.close();
+      }
+    } catch(IOException ex) {
+      return false;
+    }
+  }
+  
+  /**
+   * Wrap the stream with a decompressor if it is gzip compressed. Concatenated
+   * (multi-member) gzip streams are decompressed as one stream.
+   * @param in
+   * @return the decompressed stream or a stream with the same bytes as in
+   * @throws IOException 
+   */
+  private static InputStream decompressIfGzipped(InputStream in) throws IOException {
+    if(!in.markSupported()) {
+      in = new BufferedInputStream(in);
+    }
+    return isGzipped(in) ? new GZIPInputStream(in, 64 * 1024) : in;
+  }
+  
+  private static void closeQuietly(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException ex) {
+      Logger.getLogger(XmlFactory.class.getName()).log(Level.WARNING, null, ex);
+    }
+  }
+  
+  public Enumerator<XmlEvent> createXmlReader(final File file) {
+    return createXmlReader(file, STD_CHUNK_SIZE);
+  }
+  
+  public Enumerator<XmlEvent> createXmlReader(final File file, int chunkSize) {
+    return createXmlReader(createXMLStreamReaderFactory(file), chunkSize);
+  }
+  
+  public Enumerator<XmlEvent> createMappedXmlReader(final File file) {
+    return createMappedXmlReader(file, STD_CHUNK_SIZE);
+  }
+  
+  public Enumerator<XmlEvent> createMappedXmlReader(final File file, int chunkSize) {
+    return createXmlReader(createMappedXMLStreamReaderFactory(file), chunkSize);
+  }
+  
+  public Enumerator<XmlEvent> createMappedXmlReader(final File file, int chunkSize, int windowSize) {
+    return createXmlReader(createMappedXMLStreamReaderFactory(file, windowSize), chunkSize);
+  }
+  
+  /**
+   * Create a cursor that moves through the document without allocating per
+   * event. Use XmlCursor.snapshot to get the current event as an XmlEvent.
+   * The cursor must be closed when done.
+   * @param factory
+   * @return a cursor positioned before the first event
+   * @throws XMLStreamException 
+   */
+  public XmlCursor createXmlCursor(final XMLStreamReaderFactory factory) throws XMLStreamException {
+    return new XmlCursor(factory.create().reader(), nameCache, locatorMode);
+  }
+  
+  public XmlCursor createXmlCursor(final InputStream in) throws XMLStreamException {
+    return createXmlCursor(createStreamingXMLStreamReaderFactory(in));
+  }
+  
+  public XmlCursor createXmlCursor(final File file) throws XMLStreamException {
+    return createXmlCursor(createXMLStreamReaderFactory(file));
+  }
+  
+  /**
+   * Build an index of the elements (records) at a depth of a file in one pass.
+   * The file must be uncompressed and use an ASCII compatible encoding such as
+   * UTF-8. Save the index to a sidecar file (see XmlRecordIndex.sidecarFile) 
+   * to reuse it.
+   * @param file
+   * @param depth the depth of the records (the root element is depth 1)
+   * @return the index
+   * @throws IOException 
+   */
+  public XmlRecordIndex createXmlRecordIndex(final File file, int depth) throws IOException {
+    if(isGzipped(file)) {
+      throw new IOException("Cannot index a gzip compressed file");
+    }
+    return XmlRecordIndex.build(file, depth);
+  }
+  
+  /**
+   * Create an XMLStreamReaderFactory that reads one indexed record of a file 
+   * as a standalone document.
+   * @param file the indexed file
+   * @param index
+   * @param record
+   * @return 
+   */
+  public XMLStreamReaderFactory createXMLStreamReaderFactory(final File file, final XmlRecordIndex index, final int record) {
+    return new XMLStreamReaderFactory() {
+      @Override
+      public XMLStreamReaderFactory.Result create() throws XMLStreamException {
+        if(!index.isValidFor(file)) {
+          throw new XMLStreamException("Index does not match " + file);
+        }
+        final InputStream in;
+        try {
+          in = index.openRecord(file, record);
+        } catch (IOException ex) {
+          throw new XMLStreamException(ex);
+        }
+        return createStreamingResult(in, index.length(record), null);
+      }
+    };
+  }
+  
+  /**
+   * Create a reader for one indexed record of a file. The reader seeks to the
+   * record and reads only its bytes. Locators are relative to the record, the
+   * index holds the record's position in the file.
+   * @param file the indexed file
+   * @param index
+   * @param record
+   * @return a reader for the record
+   */
+  public Enumerator<XmlEvent> createXmlRecordReader(final File file, final XmlRecordIndex index, int record) {
+    return createXmlReader(createXMLStreamReaderFactory(file, index, record), STD_CHUNK_SIZE);
+  }
+  
+  /**
+   * Create an XMLStreamReaderFactory that reads a file from a checkpoint. The
+   * file is read from the checkpoint's byte offset after the checkpoint's 
+   * resume prefix, so the content before the checkpoint is not parsed again.
+   * @param file the file the checkpoint was read from
+   * @param checkpoint
+   * @return 
+   */
+  public XMLStreamReaderFactory createXMLStreamReaderFactory(final File file, final XmlCheckpoint checkpoint) {
+    return new XMLStreamReaderFactory() {
+      @Override
+      public XMLStreamReaderFactory.Result create() throws XMLStreamException {
+        if(isGzipped(file)) {
+          throw new XMLStreamException("Cannot resume a gzip compressed file");
+        }
+        final CountingInputStream in;
+        try {
+          FileInputStream fileIn = new FileInputStream(file);
+          try {
+            fileIn.getChannel().position(checkpoint.byteOffset());
+          } catch(IOException ex) {
+            closeQuietly(fileIn);
+            throw ex;
+          }
+          in = new CountingInputStream(fileIn);
+        } catch (IOException ex) {
+          throw new XMLStreamException(ex);
+        }
+        InputStream resumed = new SequenceInputStream(new ByteArrayInputStream(checkpoint.resumePrefix()), in);
+        return createStreamingResult(resumed, file.length(), new ByteCounter() {
+          @Override
+          public long byteCount() {
+            return checkpoint.byteOffset() + in.getCount();
+          }
+        });
+      }
+    };
+  }
+  
+  /**
+   * Create a reader that resumes reading a file from a checkpoint. The reader
+   * continues as if it had read the file from the start: the events before
+   * the checkpoint are not read again and new checkpoints continue the event 
+   * count. Locators are relative to the checkpoint.
+   * @param file the file the checkpoint was read from
+   * @param checkpoint
+   * @return a reader that resumes from the checkpoint
+   */
+  public Enumerator<XmlEvent> createXmlReader(final File file, final XmlCheckpoint checkpoint) {
+    return new XmlReader(createXMLStreamReaderFactory(file, checkpoint), issueHandlingStrategy, STD_CHUNK_SIZE, nameCache, locatorMode, readerListener, chunkBudget, maxTextLength, null, checkpointInterval, checkpoint);
+  }
+  
+  /**
+   * Create a non-blocking reader that is fed input as it arrives. See 
+   * AsyncXmlReader for how to drive it.
+   * @param chunkSize
+   * @return a non-blocking reader
+   */
+  public AsyncXmlReader createAsyncXmlReader(int chunkSize) {
+    return new AsyncXmlReader(Defaults.ASYNC_XML_INPUT_FACTORY, issueHandlingStrategy, chunkSize, nameCache, locatorMode, maxTextLength, projection);
+  }
+  
+  public AsyncXmlReader createAsyncXmlReader() {
+    return createAsyncXmlReader(STD_CHUNK_SIZE);
+  }
+  
+  /**
+   * Create a reader for a record-oriented document (a root element with many
+   * independent child elements) that parses segments of records concurrently
+   * on the executor. The document must be encoded in UTF-8 or ASCII.
+   * @param supplier
+   * @param totalByteSize the size of the input or 0 if unknown
+   * @param parallelism the number of segments to parse concurrently
+   * @param recordsPerSegment the maximum number of records in a segment
+   * @return a reader that parses the document in parallel
+   */
+  public Enumerator<XmlEvent> createParallelXmlReader(final InputSupplier<? extends InputStream> supplier, long totalByteSize, int parallelism, int recordsPerSegment) {
+    return new ParallelXmlReader(
+      supplier, 
+      totalByteSize, 
+      xmlInputFactory, 
+      executor(), 
+      issueHandlingStrategy, 
+      parallelism,
+      recordsPerSegment,
+      ParallelXmlReader.STD_MAX_SEGMENT_BYTES(),
+      nameCache,
+      locatorMode
+    );
+  }
+  
+  public Enumerator<XmlEvent> createParallelXmlReader(final InputSupplier<? extends InputStream> supplier, long totalByteSize, int parallelism) {
+    return createParallelXmlReader(supplier, totalByteSize, parallelism, ParallelXmlReader.STD_RECORDS_PER_SEGMENT());
+  }
+  
+  /**
+   * Create a reader that parses the file in parallel. A gzip compressed file
+   * cannot be split into segments and is read sequentially instead.
+   * @param file
+   * @return a reader for the file
+   */
+  public Enumerator<XmlEvent> createParallelXmlReader(final File file) {
+    if(isGzipped(file)) {
+      return createXmlReader(file);
+    }
+    return createParallelXmlReader(Files.newInputStreamSupplier(file), file.length(), Runtime.getRuntime().availableProcessors());
+  }
+  
+  /**
+   * Create a reader that steps another reader on a dedicated thread, so that
+   * reading overlaps with consuming the previous chunks 
+   * (e.g. writing them). At most capacity chunks are read ahead. If the 
+   * consumer stops before the end of the document (e.g. the plan fails), 
+   * call cancel on the returned reader to stop its thread and close the 
+   * input.
+   * @param reader the reader to step
+   * @param capacity the maximum number of chunks read ahead
+   * @return a pipelined reader
+   */
+  public PipelinedEnumerator<XmlEvent> createPipelinedXmlReader(final Enumerator<XmlEvent> reader, int capacity) {
+    return new PipelinedEnumerator<XmlEvent>(reader, capacity);
+  }
+  
+  public PipelinedEnumerator<XmlEvent> createPipelinedXmlReader(final Enumerator<XmlEvent> reader) {
+    return createPipelinedXmlReader(reader, PipelinedEnumerator.STD_CAPACITY());
+  }
+  
   @Override
   public XMLStreamWriterFactory createXMLStreamWriterFactory(final OutputStream out) {
     return new XMLStreamWriterFactory(){ 
 
       @Override
       public XMLStreamWriter create() throws XMLStreamException {
-        Processor p = new Processor(false);
         Serializer s = new Serializer(out);
-        s.setProcessor(p);
+        s.setProcessor(processor);
         s.setOutputProperty(Serializer.Property.ENCODING, "UTF-8");
         s.setOutputProperty(Serializer.Property.INDENT, "yes");
         s.setOutputProperty(Serializer.Property.SAXON_INDENT_SPACES, "2");
@@ -140,12 +842,289 @@ public final class XmlFactory implements org.gtri.util.xmlbuilder.api.XmlFactory
     };
   }
   
+  /**
+   * Create an XMLStreamWriterFactory that will write to the OutputStream using
+   * the output format.
+   * @param out
+   * @param format
+   * @return 
+   */
+  public XMLStreamWriterFactory createXMLStreamWriterFactory(final OutputStream out, XmlOutputFormat format) {
+    switch(format) {
+      case COMPACT:
+        return new XMLStreamWriterFactory() {
+          @Override
+          public XMLStreamWriter create() throws XMLStreamException {
+            return new Utf8XMLStreamWriter(out);
+          }
+        };
+      default:
+        return createXMLStreamWriterFactory(out);
+    }
+  }
+  
+  /**
+   * Create an XMLStreamWriterFactory that will write compact UTF-8 to the
+   * channel.
+   * @param channel
+   * @return 
+   */
+  public XMLStreamWriterFactory createXMLStreamWriterFactory(final WritableByteChannel channel) {
+    return new XMLStreamWriterFactory() {
+      @Override
+      public XMLStreamWriter create() throws XMLStreamException {
+        return new Utf8XMLStreamWriter(channel);
+      }
+    };
+  }
+  
+  /**
+   * Create an XMLStreamWriterFactory that writes gzip compressed output to the
+   * OutputStream, compressing blocks in parallel on this factory's executor.
+   * Closing the XMLStreamWriter writes the final gzip member but does not 
+   * close the OutputStream.
+   * @param out
+   * @param format
+   * @return 
+   */
+  public XMLStreamWriterFactory createGzipXMLStreamWriterFactory(final OutputStream out, final XmlOutputFormat format) {
+    return new XMLStreamWriterFactory() {
+      @Override
+      public XMLStreamWriter create() throws XMLStreamException {
+        final ParallelGzipOutputStream gzipOut = new ParallelGzipOutputStream(out, executor());
+        return new StreamWriterDelegate(createXMLStreamWriterFactory(gzipOut, format).create()) {
+          @Override
+          public void close() throws XMLStreamException {
+            super.close();
+            try {
+              gzipOut.finish();
+            } catch(IOException ex) {
+              throw new XMLStreamException(ex);
+            }
+          }
+        };
+      }
+    };
+  }
+  
   @Override
   public Iteratee<XmlEvent,?> createXmlWriter(final XMLStreamWriterFactory factory) {
-    return new XmlWriter(factory, issueHandlingStrategy);
+    return new XmlWriter(factory, issueHandlingStrategy, writerListener, null, null);
+  }
+  
+  /**
+   * Create a writer that reports each checkpoint it writes to the listener
+   * @param factory
+   * @param checkpointListener
+   * @return a writer
+   */
+  public Iteratee<XmlEvent,?> createXmlWriter(final XMLStreamWriterFactory factory, XmlCheckpointListener checkpointListener) {
+    return new XmlWriter(factory, issueHandlingStrategy, writerListener, checkpointListener, null);
+  }
+  
+  /**
+   * Create a writer that writes compact UTF-8 to the file and reports each 
+   * checkpoint it writes, with the length of the file at the checkpoint, to 
+   * the listener. The file is closed when the writer is done.
+   * @param file
+   * @param checkpointListener
+   * @return a writer
+   */
+  public Iteratee<XmlEvent,?> createXmlWriter(final File file, XmlCheckpointListener checkpointListener) {
+    return createXmlWriter(new XMLStreamWriterFactory() {
+      @Override
+      public XMLStreamWriter create() throws XMLStreamException {
+        try {
+          OutputStream out = new FileOutputStream(file);
+          return new FileXMLStreamWriter(new Utf8XMLStreamWriter(out), out);
+        } catch(IOException ex) {
+          throw new XMLStreamException(ex);
+        }
+      }
+    }, checkpointListener);
+  }
+  
+  /**
+   * Create a writer that resumes writing a file from a checkpoint reported 
+   * by a writer created with createXmlWriter(File, XmlCheckpointListener). 
+   * Output written after the checkpoint is truncated and the writer appends
+   * the events of a reader resumed from the same checkpoint.
+   * @param file
+   * @param checkpoint
+   * @param checkpointListener
+   * @return a writer that resumes from the checkpoint
+   */
+  public Iteratee<XmlEvent,?> createXmlWriter(final File file, final XmlCheckpoint checkpoint, XmlCheckpointListener checkpointListener) {
+    return new XmlWriter(new XMLStreamWriterFactory() {
+      @Override
+      public XMLStreamWriter create() throws XMLStreamException {
+        if(checkpoint.outputOffset() < 0) {
+          throw new XMLStreamException("Checkpoint has no output offset");
+        }
+        try {
+          RandomAccessFile raf = new RandomAccessFile(file, "rw");
+          try {
+            if(raf.length() < checkpoint.outputOffset()) {
+              throw new XMLStreamException("Output is shorter than the checkpoint");
+            }
+            raf.setLength(checkpoint.outputOffset());
+          } finally {
+            raf.close();
+          }
+          OutputStream out = new FileOutputStream(file, true);
+          Utf8XMLStreamWriter writer = new Utf8XMLStreamWriter(out);
+          writer.resume(checkpoint);
+          return new FileXMLStreamWriter(writer, out);
+        } catch(IOException ex) {
+          throw new XMLStreamException(ex);
+        }
+      }
+    }, issueHandlingStrategy, writerListener, checkpointListener, checkpoint);
+  }
+  
+  /**
+   * A compact writer that closes its file when it is closed
+   */
+  private static final class FileXMLStreamWriter extends StreamWriterDelegate implements ByteCounter {
+    private final Utf8XMLStreamWriter writer;
+    private final OutputStream out;
+    
+    FileXMLStreamWriter(Utf8XMLStreamWriter writer, OutputStream out) {
+      super(writer);
+      this.writer = writer;
+      this.out = out;
+    }
+
+    @Override
+    public long byteCount() {
+      return writer.byteCount();
+    }
+    
+    @Override
+    public void close() throws XMLStreamException {
+      try {
+        super.close();
+      } finally {
+        try {
+          out.close();
+        } catch(IOException ex) {
+          throw new XMLStreamException(ex);
+        }
+      }
+    }
   }
   
   public Iteratee<XmlEvent,?> createXmlWriter(final OutputStream out) {
     return createXmlWriter(createXMLStreamWriterFactory(out));
   }
+  
+  public Iteratee<XmlEvent,?> createXmlWriter(final OutputStream out, XmlOutputFormat format) {
+    return createXmlWriter(createXMLStreamWriterFactory(out, format));
+  }
+  
+  public Iteratee<XmlEvent,?> createXmlWriter(final WritableByteChannel channel) {
+    return createXmlWriter(createXMLStreamWriterFactory(channel));
+  }
+  
+  public Iteratee<XmlEvent,?> createGzipXmlWriter(final OutputStream out) {
+    return createGzipXmlWriter(out, XmlOutputFormat.PRETTY);
+  }
+  
+  public Iteratee<XmlEvent,?> createGzipXmlWriter(final OutputStream out, XmlOutputFormat format) {
+    return createXmlWriter(createGzipXMLStreamWriterFactory(out, format));
+  }
+  
+  /**
+   * Create a writer that adds each chunk of XmlEvents to the contract as a 
+   * single batch
+   * @param contract
+   * @return a contract writer
+   */
+  public Iteratee<XmlEvent,?> createXmlContractWriter(final XmlBatchContract contract) {
+    return new XmlContractWriter(contract);
+  }
+  
+  /**
+   * Create a writer that pushes each XmlEvent to the contract
+   * @param contract
+   * @return a contract writer
+   */
+  public Iteratee<XmlEvent,?> createXmlContractWriter(final XmlContract contract) {
+    return createXmlContractWriter(new XmlContractBatchAdapter(contract));
+  }
+  
+  /**
+   * Create an iteratee that builds a compact, read-only XmlDocument from the 
+   * XmlEvents. The document is the value of the iteratee's result.
+   * @return a document builder
+   */
+  public Iteratee<XmlEvent,XmlDocument> createXmlDocumentBuilder() {
+    return new XmlDocumentBuilder();
+  }
+  
+  /**
+   * Read all XmlEvents of the reader into an XmlDocument
+   * @param reader
+   * @return the document
+   * @throws XMLStreamException if the reader fails
+   */
+  public XmlDocument loadXmlDocument(final Enumerator<XmlEvent> reader) throws XMLStreamException {
+    return XmlDocument.load(reader);
+  }
+  
+  public XmlDocument loadXmlDocument(final File file) throws XMLStreamException {
+    return loadXmlDocument(createXmlReader(file));
+  }
+  
+  public XmlDocument loadXmlDocument(final InputStream in) throws XMLStreamException {
+    return loadXmlDocument(createXmlReader(createStreamingXMLStreamReaderFactory(in), STD_CHUNK_SIZE));
+  }
+  
+  /**
+   * Create a reader that replays XmlEvents from the binary format written by
+   * an XmlBinaryWriter.
+   * @param supplier supplier of the binary input
+   * @param chunkSize the size of the output buffers
+   * @return a binary XmlEvent reader
+   */
+  public Enumerator<XmlEvent> createXmlBinaryReader(final InputSupplier<? extends InputStream> supplier, int chunkSize) {
+    return new XmlBinaryReader(supplier, issueHandlingStrategy, chunkSize, nameCache);
+  }
+  
+  public Enumerator<XmlEvent> createXmlBinaryReader(final File file) {
+    return createXmlBinaryReader(Files.newInputStreamSupplier(file), STD_CHUNK_SIZE);
+  }
+  
+  public Enumerator<XmlEvent> createXmlBinaryReader(final InputStream in) {
+    return createXmlBinaryReader(new InputSupplier<InputStream>() {
+      @Override
+      public InputStream getInput() throws IOException {
+        return in;
+      }
+    }, STD_CHUNK_SIZE);
+  }
+  
+  /**
+   * Create a writer that records XmlEvents in a compact binary format with 
+   * per-document string tables for names and namespaces.
+   * @param supplier supplier of the binary output
+   * @param includeLocators TRUE to record the locator of each event
+   * @return a binary XmlEvent writer
+   */
+  public Iteratee<XmlEvent,?> createXmlBinaryWriter(final OutputSupplier<? extends OutputStream> supplier, boolean includeLocators) {
+    return new XmlBinaryWriter(supplier, issueHandlingStrategy, includeLocators);
+  }
+  
+  public Iteratee<XmlEvent,?> createXmlBinaryWriter(final File file) {
+    return createXmlBinaryWriter(Files.newOutputStreamSupplier(file), true);
+  }
+  
+  public Iteratee<XmlEvent,?> createXmlBinaryWriter(final OutputStream out) {
+    return createXmlBinaryWriter(new OutputSupplier<OutputStream>() {
+      @Override
+      public OutputStream getOutput() throws IOException {
+        return out;
+      }
+    }, true);
+  }
 }
@@ -0,0 +1,377 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.gtri.util.xmlbuilder.api.XmlEvent;
+import org.gtri.util.xmlbuilder.api.XmlReaderListener;
+import org.gtri.util.xmlbuilder.api.XmlWriterListener;
+import org.gtri.util.xmlbuilder.impl.events.AddXmlCommentEvent;
+import org.gtri.util.xmlbuilder.impl.events.AddXmlTextEvent;
+import org.gtri.util.xmlbuilder.impl.events.EndXmlDocumentEvent;
+import org.gtri.util.xmlbuilder.impl.events.EndXmlElementEvent;
+import org.gtri.util.xmlbuilder.impl.events.StartXmlDocumentEvent;
+import org.gtri.util.xmlbuilder.impl.events.StartXmlElementEvent;
+
+/**
+ * Aggregates measurements from any number of readers and writers. Metrics 
+ * are enabled by passing an instance to XmlFactory.withMetrics and can be 
+ * published to JMX with register. Readers and writers created without 
+ * metrics do not measure anything.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public final class XmlMetrics implements XmlReaderListener, XmlWriterListener, XmlMetricsMXBean {
+  private static final int START_DOCUMENT = 0;
+  private static final int END_DOCUMENT = 1;
+  private static final int START_ELEMENT = 2;
+  private static final int END_ELEMENT = 3;
+  private static final int TEXT = 4;
+  private static final int COMMENT = 5;
+  private static final int OTHER = 6;
+  
+  private volatile long startNanos = System.nanoTime();
+  
+  private final AtomicLong readerChunkCount = new AtomicLong();
+  private final AtomicLong readerEventCount = new AtomicLong();
+  private final AtomicLong readerByteCount = new AtomicLong();
+  private final AtomicLong readerFillNanos = new AtomicLong();
+  private final LatencyHistogram readerFillHistogram = new LatencyHistogram();
+  private final AtomicInteger readerMaxDepth = new AtomicInteger();
+  private final AtomicLongArray eventCounts = new AtomicLongArray(OTHER + 1);
+  
+  private final AtomicLong writerEventCount = new AtomicLong();
+  private final AtomicLong writerScopeNanos = new AtomicLong();
+  private final AtomicLong writerWriteNanos = new AtomicLong();
+  private final LatencyHistogram writerHistogram = new LatencyHistogram();
+  
+  private ObjectName objectName = null;
+  
+  /**
+   * Register with the platform MBean server as 
+   * org.gtri.util.xmlbuilder:type=XmlMetrics,name=[name]
+   * @param name
+   * @return the registered name
+   * @throws JMException 
+   */
+  public synchronized ObjectName register(String name) throws JMException {
+    unregister();
+    ObjectName n = new ObjectName("org.gtri.util.xmlbuilder:type=XmlMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+    objectName = n;
+    return n;
+  }
+  
+  /**
+   * Unregister from the platform MBean server, if registered
+   * @throws JMException 
+   */
+  public synchronized void unregister() throws JMException {
+    if(objectName != null) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if(server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      objectName = null;
+    }
+  }
+  
+  @Override
+  public void chunkRead(List<XmlEvent> events, long fillNanos, long byteCount, int maxDepth) {
+    readerChunkCount.incrementAndGet();
+    readerEventCount.addAndGet(events.size());
+    readerByteCount.addAndGet(byteCount);
+    readerFillNanos.addAndGet(fillNanos);
+    readerFillHistogram.record(fillNanos);
+    int current = readerMaxDepth.get();
+    while(maxDepth > current && !readerMaxDepth.compareAndSet(current, maxDepth)) {
+      current = readerMaxDepth.get();
+    }
+    // Count locally to avoid contended increments per event
+    int startDocument = 0, endDocument = 0, startElement = 0, endElement = 0, text = 0, comment = 0, other = 0;
+    for(int i=0;i<events.size();++i) {
+      XmlEvent event = events.get(i);
+      if(event instanceof StartXmlElementEvent) {
+        startElement++;
+      } else if(event instanceof EndXmlElementEvent) {
+        endElement++;
+      } else if(event instanceof AddXmlTextEvent) {
+        text++;
+      } else if(event instanceof AddXmlCommentEvent) {
+        comment++;
+      } else if(event instanceof StartXmlDocumentEvent) {
+        startDocument++;
+      } else if(event instanceof EndXmlDocumentEvent) {
+        endDocument++;
+      } else {
+        other++;
+      }
+    }
+    add(START_DOCUMENT, startDocument);
+    add(END_DOCUMENT, endDocument);
+    add(START_ELEMENT, startElement);
+    add(END_ELEMENT, endElement);
+    add(TEXT, text);
+    add(COMMENT, comment);
+    add(OTHER, other);
+  }
+  
+  private void add(int eventType, int count) {
+    if(count > 0) {
+      eventCounts.addAndGet(eventType, count);
+    }
+  }
+
+  @Override
+  public void eventWritten(XmlEvent event, long scopeNanos, long writeNanos) {
+    writerEventCount.incrementAndGet();
+    if(scopeNanos > 0) {
+      writerScopeNanos.addAndGet(scopeNanos);
+    }
+    writerWriteNanos.addAndGet(writeNanos);
+    writerHistogram.record(scopeNanos + writeNanos);
+  }
+  
+  private double perSecond(long count) {
+    long elapsedNanos = System.nanoTime() - startNanos;
+    return elapsedNanos <= 0 ? 0.0 : count * 1.0e9 / elapsedNanos;
+  }
+
+  @Override
+  public long getReaderChunkCount() {
+    return readerChunkCount.get();
+  }
+
+  @Override
+  public long getReaderEventCount() {
+    return readerEventCount.get();
+  }
+
+  @Override
+  public long getReaderByteCount() {
+    return readerByteCount.get();
+  }
+
+  @Override
+  public double getReaderEventsPerSecond() {
+    return perSecond(readerEventCount.get());
+  }
+
+  @Override
+  public double getReaderBytesPerSecond() {
+    return perSecond(readerByteCount.get());
+  }
+
+  @Override
+  public long getReaderFillNanos() {
+    return readerFillNanos.get();
+  }
+
+  @Override
+  public long getReaderFillNanosP50() {
+    return readerFillHistogram.percentile(0.50);
+  }
+
+  @Override
+  public long getReaderFillNanosP99() {
+    return readerFillHistogram.percentile(0.99);
+  }
+
+  @Override
+  public long getReaderFillNanosMax() {
+    return readerFillHistogram.max();
+  }
+
+  @Override
+  public long[] getReaderFillNanosHistogram() {
+    return readerFillHistogram.counts();
+  }
+
+  @Override
+  public int getReaderMaxDepth() {
+    return readerMaxDepth.get();
+  }
+
+  @Override
+  public long getStartDocumentCount() {
+    return eventCounts.get(START_DOCUMENT);
+  }
+
+  @Override
+  public long getEndDocumentCount() {
+    return eventCounts.get(END_DOCUMENT);
+  }
+
+  @Override
+  public long getStartElementCount() {
+    return eventCounts.get(START_ELEMENT);
+  }
+
+  @Override
+  public long getEndElementCount() {
+    return eventCounts.get(END_ELEMENT);
+  }
+
+  @Override
+  public long getTextCount() {
+    return eventCounts.get(TEXT);
+  }
+
+  @Override
+  public long getCommentCount() {
+    return eventCounts.get(COMMENT);
+  }
+
+  @Override
+  public long getOtherEventCount() {
+    return eventCounts.get(OTHER);
+  }
+
+  @Override
+  public long getWriterEventCount() {
+    return writerEventCount.get();
+  }
+
+  @Override
+  public double getWriterEventsPerSecond() {
+    return perSecond(writerEventCount.get());
+  }
+
+  @Override
+  public long getWriterScopeNanos() {
+    return writerScopeNanos.get();
+  }
+
+  @Override
+  public long getWriterWriteNanos() {
+    return writerWriteNanos.get();
+  }
+
+  @Override
+  public long getWriterNanosP50() {
+    return writerHistogram.percentile(0.50);
+  }
+
+  @Override
+  public long getWriterNanosP99() {
+    return writerHistogram.percentile(0.99);
+  }
+
+  @Override
+  public long getWriterNanosMax() {
+    return writerHistogram.max();
+  }
+
+  @Override
+  public long[] getWriterNanosHistogram() {
+    return writerHistogram.counts();
+  }
+
+  /**
+   * Reset all metrics. Measurements reported concurrently with a reset may be
+   * partially lost.
+   */
+  @Override
+  public void reset() {
+    readerChunkCount.set(0);
+    readerEventCount.set(0);
+    readerByteCount.set(0);
+    readerFillNanos.set(0);
+    readerFillHistogram.reset();
+    readerMaxDepth.set(0);
+    for(int i=0;i<eventCounts.length();++i) {
+      eventCounts.set(i, 0);
+    }
+    writerEventCount.set(0);
+    writerScopeNanos.set(0);
+    writerWriteNanos.set(0);
+    writerHistogram.reset();
+    startNanos = System.nanoTime();
+  }
+  
+  /**
+   * A histogram of latencies with power of two buckets. Bucket i counts 
+   * latencies in [2^(i-1), 2^i - 1] nanoseconds, bucket 0 counts 0.
+   */
+  static final class LatencyHistogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong max = new AtomicLong();
+    
+    void record(long nanos) {
+      if(nanos < 0) {
+        nanos = 0;
+      }
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+      long current = max.get();
+      while(nanos > current && !max.compareAndSet(current, nanos)) {
+        current = max.get();
+      }
+    }
+    
+    long[] counts() {
+      long[] counts = new long[buckets.length()];
+      for(int i=0;i<counts.length;++i) {
+        counts[i] = buckets.get(i);
+      }
+      return counts;
+    }
+    
+    long max() {
+      return max.get();
+    }
+    
+    long percentile(double p) {
+      long[] counts = counts();
+      long total = 0;
+      for(long c : counts) {
+        total += c;
+      }
+      if(total == 0) {
+        return 0;
+      }
+      long target = (long)Math.ceil(p * total);
+      long cumulative = 0;
+      for(int i=0;i<counts.length;++i) {
+        cumulative += counts[i];
+        if(cumulative >= target) {
+          return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+        }
+      }
+      return max.get();
+    }
+    
+    void reset() {
+      for(int i=0;i<buckets.length();++i) {
+        buckets.set(i, 0);
+      }
+      max.set(0);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder;
+
+/**
+ * JMX view of XmlMetrics. Rates are averages since the metrics were created
+ * or last reset. Latencies are in nanoseconds; percentiles are the upper 
+ * bound of a power of two histogram bucket.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public interface XmlMetricsMXBean {
+  long getReaderChunkCount();
+  long getReaderEventCount();
+  long getReaderByteCount();
+  double getReaderEventsPerSecond();
+  double getReaderBytesPerSecond();
+  long getReaderFillNanos();
+  long getReaderFillNanosP50();
+  long getReaderFillNanosP99();
+  long getReaderFillNanosMax();
+  long[] getReaderFillNanosHistogram();
+  int getReaderMaxDepth();
+  
+  long getStartDocumentCount();
+  long getEndDocumentCount();
+  long getStartElementCount();
+  long getEndElementCount();
+  long getTextCount();
+  long getCommentCount();
+  long getOtherEventCount();
+  
+  long getWriterEventCount();
+  double getWriterEventsPerSecond();
+  long getWriterScopeNanos();
+  long getWriterWriteNanos();
+  long getWriterNanosP50();
+  long getWriterNanosP99();
+  long getWriterNanosMax();
+  long[] getWriterNanosHistogram();
+  
+  void reset();
+}
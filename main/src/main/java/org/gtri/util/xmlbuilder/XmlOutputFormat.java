@@ -0,0 +1,43 @@
+/*
+    Copyright 2012 Georgia Tech Research Institute
+
+    Author: lance.gatlin@gtri.gatech.edu
+
+    This file is part of org.gtri.util.xmlbuilder library.
+
+    org.gtri.util.xmlbuilder library is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    org.gtri.util.xmlbuilder library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.gtri.util.xmlbuilder library. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.gtri.util.xmlbuilder;
+
+/**
+ * The output format of an XML writer.
+ * 
+ * @author lance.gatlin@gmail.com
+ */
+public enum XmlOutputFormat {
+  /**
+   * Serialize with Saxon using the following formatting options:
+   *   ENCODING = UTF-8
+   *   INDENT = yes
+   *   INDENT_SPACES = 2
+   *   LINE_LENGTH = 80
+   */
+  PRETTY,
+  /**
+   * Serialize directly to UTF-8 bytes without indentation. 
+   */
+  COMPACT
+}
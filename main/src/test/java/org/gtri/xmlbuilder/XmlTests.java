@@ -25,23 +25,65 @@ package org.gtri.xmlbuilder;
 import difflib.Delta;
 import difflib.DiffUtils;
 import difflib.Patch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.io.InputSupplier;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
 import javax.xml.stream.XMLStreamException;
 import org.gtri.util.issue.api.Issue;
 import org.gtri.util.iteratee.api.*;
 import org.gtri.util.iteratee.impl.test.TestPrintConsumer;
 import org.gtri.util.iteratee.IterateeFactory;
+import org.gtri.util.xmlbuilder.XmlBatchProcessor;
 import org.gtri.util.xmlbuilder.XmlFactory;
+import org.gtri.util.xmlbuilder.MappedFileInputStream;
+import org.gtri.util.xmlbuilder.XmlMetrics;
+import org.gtri.util.xmlbuilder.XmlOutputFormat;
+import org.gtri.util.xmlbuilder.ParallelGzipOutputStream;
+import org.gtri.util.xmlbuilder.api.XmlBatchContract;
+import org.gtri.util.xmlbuilder.api.XmlContract;
 import org.gtri.util.xmlbuilder.api.XmlEvent;
+import org.gtri.util.xmlbuilder.api.XmlEventBatch;
+import org.gtri.util.xmlbuilder.api.XmlLocatorMode;
+import org.gtri.util.xmlbuilder.impl.AsyncXmlReader;
+import org.gtri.util.xmlbuilder.impl.XmlCheckpoint;
+import org.gtri.util.xmlbuilder.impl.XmlCheckpointListener;
+import org.gtri.util.xmlbuilder.impl.XmlChunkBudget;
+import org.gtri.util.xmlbuilder.impl.XmlCursor;
+import org.gtri.util.xmlbuilder.impl.XmlDocument;
+import org.gtri.util.xmlbuilder.impl.XmlElement;
+import org.gtri.util.xmlbuilder.impl.XmlNameCache;
+import org.gtri.util.xmlbuilder.impl.XmlNamespaceScope;
+import org.gtri.util.xmlbuilder.impl.XmlReader;
+import org.gtri.util.xmlbuilder.impl.PipelinedEnumerator;
+import org.gtri.util.xmlbuilder.impl.XmlRecordIndex;
+import org.gtri.util.xmlbuilder.impl.events.AddXmlTextEvent;
+import org.gtri.util.xmlbuilder.impl.events.StartXmlElementEvent;
+import org.gtri.util.xsddatatypes.XsdAnyURI;
+import org.gtri.util.xsddatatypes.XsdNCName;
+import org.gtri.util.xsddatatypes.XsdQName;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -101,6 +143,766 @@ public class XmlTests {
     assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.out.xsd")));
   }
   
+  @Test
+  public void testWriteXmlFromFile() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST WRITE XML FROM FILE===");
+    Enumerator<XmlEvent> reader = xmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    Iteratee<XmlEvent,?> writer = xmlFactory.createXmlWriter(new FileOutputStream("target/test.file.out.xsd"));
+    Plan2<XmlEvent,?> plan = iterateeFactory.createPlan(reader, writer);
+    Plan2.RunResult<XmlEvent,?> r = plan.run();
+    assertTrue(r.statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.file.out.xsd")));
+  }
+  
+  @Test
+  public void testWriteCompactXml() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST WRITE COMPACT XML===");
+    Enumerator<XmlEvent> reader = xmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    Iteratee<XmlEvent,?> writer = xmlFactory.createXmlWriter(new FileOutputStream("target/test.compact.xsd"), XmlOutputFormat.COMPACT);
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    
+    System.out.println("===Reformat compact output===");
+    reader = xmlFactory.createXmlReader(new File("target/test.compact.xsd"));
+    writer = xmlFactory.createXmlWriter(new FileOutputStream("target/test.compact.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.compact.out.xsd")));
+  }
+  
+  @Test
+  public void testBinaryRoundTrip() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST BINARY ROUND TRIP===");
+    Enumerator<XmlEvent> reader = xmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    Iteratee<XmlEvent,?> writer = xmlFactory.createXmlBinaryWriter(new File("target/test.xsd.bin"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    
+    System.out.println("===Replay binary===");
+    reader = xmlFactory.createXmlBinaryReader(new File("target/test.xsd.bin"));
+    writer = xmlFactory.createXmlWriter(new FileOutputStream("target/test.bin.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.bin.out.xsd")));
+    
+    System.out.println("===Binary from a checkpointing reader===");
+    reader = xmlFactory.withCheckpointInterval(16).createXmlReader(new File("src/test/resources/test.xsd"), 8);
+    writer = xmlFactory.createXmlBinaryWriter(new File("target/test.checkpoint.xsd.bin"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("target/test.xsd.bin"), new FileInputStream("target/test.checkpoint.xsd.bin")));
+  }
+  
+  @Test
+  public void testWriteXmlFromMappedReader() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST WRITE XML FROM MAPPED READER===");
+    File file = new File("src/test/resources/test.xsd");
+    byte[] expected = Files.toByteArray(file);
+    
+    // A small window, so that reads, skips and resets cross window boundaries
+    MappedFileInputStream in = new MappedFileInputStream(file, 1000);
+    assertEquals(expected.length, in.size());
+    in.mark(0);
+    assertEquals(2500, in.skip(2500));
+    assertEquals(2500, in.byteCount());
+    in.reset();
+    byte[] actual = ByteStreams.toByteArray(in);
+    assertTrue(Arrays.equals(expected, actual));
+    assertEquals((long)expected.length, in.byteCount());
+    assertEquals(-1, in.read());
+    in.close();
+    
+    Enumerator<XmlEvent> reader = xmlFactory.createMappedXmlReader(file, 8, 1000);
+    Iteratee<XmlEvent,?> writer = xmlFactory.createXmlWriter(new FileOutputStream("target/test.mapped.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.mapped.out.xsd")));
+  }
+  
+  @Test
+  public void testWriteXmlFromParallelReader() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST WRITE XML FROM PARALLEL READER===");
+    Enumerator<XmlEvent> reader = xmlFactory.createParallelXmlReader(new File("src/test/resources/test.xsd"));
+    Iteratee<XmlEvent,?> writer = xmlFactory.createXmlWriter(new FileOutputStream("target/test.parallel.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.parallel.out.xsd")));
+    
+    // One record per segment, so that many segments are parsed concurrently and complete out of order
+    File file = new File("src/test/resources/test.xsd");
+    reader = xmlFactory.createParallelXmlReader(Files.newInputStreamSupplier(file), file.length(), 4, 1);
+    writer = xmlFactory.createXmlWriter(new FileOutputStream("target/test.parallel1.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.parallel1.out.xsd")));
+  }
+  
+  @Test
+  public void testWriteXmlFromPipelinedReader() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST WRITE XML FROM PIPELINED READER===");
+    Enumerator<XmlEvent> reader = xmlFactory.createPipelinedXmlReader(xmlFactory.createXmlReader(new File("src/test/resources/test.xsd"), 1), 2);
+    Iteratee<XmlEvent,?> writer = xmlFactory.createXmlWriter(new FileOutputStream("target/test.pipelined.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.pipelined.out.xsd")));
+  }
+  
+  @Test
+  public void testCancelPipelinedReader() throws XMLStreamException, FileNotFoundException, IOException, InterruptedException {
+    System.out.println("===TEST CANCEL PIPELINED READER===");
+    final boolean[] closed = { false };
+    InputSupplier<InputStream> supplier = new InputSupplier<InputStream>() {
+      @Override
+      public InputStream getInput() throws IOException {
+        return new FilterInputStream(new FileInputStream("src/test/resources/test.xsd")) {
+          @Override
+          public void close() throws IOException {
+            closed[0] = true;
+            super.close();
+          }
+        };
+      }
+    };
+    PipelinedEnumerator<XmlEvent> reader = xmlFactory.createPipelinedXmlReader(xmlFactory.createXmlReader(xmlFactory.createXMLStreamReaderFactory(supplier), 1), 2);
+    
+    System.out.println("===Consumer stops after the first chunk===");
+    Enumerator.State<XmlEvent> state = reader.initialState();
+    state = state.step().next();
+    assertFalse(state.statusCode().isDone());
+    reader.cancel();
+    
+    System.out.println("===Producer exits and closes the input===");
+    long deadline = System.currentTimeMillis() + 10000;
+    while(isPipelineRunning() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertFalse(isPipelineRunning());
+    assertTrue(closed[0]);
+  }
+  
+  private static boolean isPipelineRunning() {
+    for(Thread thread : Thread.getAllStackTraces().keySet()) {
+      if(thread.isAlive() && thread.getName().equals("PipelinedEnumerator")) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  @Test
+  public void testBatchProcessor() throws XMLStreamException, FileNotFoundException, IOException, InterruptedException {
+    System.out.println("===TEST BATCH PROCESSOR===");
+    File inputDirectory = new File("target/batch.in");
+    inputDirectory.mkdirs();
+    for(int i=0;i<8;++i) {
+      Files.copy(new File("src/test/resources/test.xsd"), new File(inputDirectory, "test" + i + ".xsd"));
+    }
+    Files.write("<unclosed>".getBytes("UTF-8"), new File(inputDirectory, "unclosed.xml"));
+    
+    final List<Integer> processedCounts = new ArrayList<Integer>();
+    XmlBatchProcessor processor = new XmlBatchProcessor(xmlFactory, XmlOutputFormat.PRETTY, 2);
+    List<XmlBatchProcessor.DocumentResult> results = processor.processDirectory(inputDirectory, new File("target/batch.out"), null, new XmlBatchProcessor.Listener() {
+      @Override
+      public void documentProcessed(XmlBatchProcessor.DocumentResult result, int processedCount, int documentCount) {
+        System.out.println(processedCount + "/" + documentCount + " " + result);
+        processedCounts.add(processedCount);
+      }
+    });
+    assertEquals(9, results.size());
+    assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9), processedCounts);
+    
+    System.out.println("===Check results===");
+    for(XmlBatchProcessor.DocumentResult result : results) {
+      if(result.document().input().getName().equals("unclosed.xml")) {
+        assertFalse(result.statusCode().isSuccess());
+        assertFalse(result.issues().isEmpty());
+      } else {
+        assertTrue(result.statusCode().isSuccess());
+        assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream(result.document().output())));
+      }
+    }
+  }
+  
+  @Test
+  public void testGzip() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST GZIP===");
+    // Small blocks to compress the document as many gzip members
+    ParallelGzipOutputStream gzipOut = new ParallelGzipOutputStream(new FileOutputStream("target/test.xsd.gz"), xmlFactory.executor(), 256, 2, Deflater.DEFAULT_COMPRESSION);
+    Files.copy(new File("src/test/resources/test.xsd"), gzipOut);
+    gzipOut.close();
+    assertArrayEquals(Files.toByteArray(new File("src/test/resources/test.xsd")), ByteStreams.toByteArray(new GZIPInputStream(new FileInputStream("target/test.xsd.gz"))));
+    
+    System.out.println("===Read gzip input===");
+    Enumerator<XmlEvent> reader = xmlFactory.createXmlReader(new File("target/test.xsd.gz"));
+    Iteratee<XmlEvent,?> writer = xmlFactory.createXmlWriter(new FileOutputStream("target/test.gz.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.gz.out.xsd")));
+    
+    System.out.println("===Write gzip output===");
+    FileOutputStream out = new FileOutputStream("target/test.out.xsd.gz");
+    reader = xmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    writer = xmlFactory.createGzipXmlWriter(out);
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    out.close();
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new GZIPInputStream(new FileInputStream("target/test.out.xsd.gz"))));
+  }
+  
+  @Test
+  public void testRecordIndex() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST RECORD INDEX===");
+    File file = new File("src/test/resources/test.xsd");
+    XmlRecordIndex index = xmlFactory.createXmlRecordIndex(file, 2);
+    System.out.println(index);
+    assertTrue(index.size() > 0);
+    index.save(new File("target/test.xsd.idx"));
+    XmlRecordIndex loaded = XmlRecordIndex.load(new File("target/test.xsd.idx"));
+    assertEquals(index.size(), loaded.size());
+    
+    System.out.println("===Read records===");
+    byte[] content = Files.toByteArray(file);
+    for(int i=0;i<loaded.size();++i) {
+      assertEquals(index.offset(i), loaded.offset(i));
+      assertEquals(index.length(i), loaded.length(i));
+      assertEquals(index.line(i), loaded.line(i));
+      assertEquals(index.namespaces(i), loaded.namespaces(i));
+      assertEquals('<', content[(int)loaded.offset(i)]);
+      assertEquals('>', content[(int)(loaded.offset(i) + loaded.length(i) - 1)]);
+      Enumerator<XmlEvent> reader = xmlFactory.createXmlRecordReader(file, loaded, i);
+      Iteratee<XmlEvent,?> writer = xmlFactory.createXmlWriter(new ByteArrayOutputStream(), XmlOutputFormat.COMPACT);
+      assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    }
+  }
+  
+  @Test
+  public void testCheckpointResume() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST CHECKPOINT RESUME===");
+    XmlFactory checkpointingXmlFactory = xmlFactory.withCheckpointInterval(16);
+    final List<XmlCheckpoint> checkpoints = new ArrayList<XmlCheckpoint>();
+    XmlCheckpointListener listener = new XmlCheckpointListener() {
+      @Override
+      public void checkpointWritten(XmlCheckpoint checkpoint) {
+        checkpoints.add(checkpoint);
+      }
+    };
+    File input = new File("src/test/resources/test.xsd");
+    Enumerator<XmlEvent> reader = checkpointingXmlFactory.createXmlReader(input, 8);
+    Iteratee<XmlEvent,?> writer = checkpointingXmlFactory.createXmlWriter(new File("target/test.checkpoint.xsd"), listener);
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    System.out.println("checkpoints=" + checkpoints);
+    assertTrue(checkpoints.size() > 2);
+    
+    System.out.println("===Resume after a failure===");
+    XmlCheckpoint checkpoint = checkpoints.get(checkpoints.size() / 2);
+    byte[] output = Files.toByteArray(new File("target/test.checkpoint.xsd"));
+    FileOutputStream failedOutput = new FileOutputStream("target/test.resumed.xsd");
+    failedOutput.write(output, 0, (int)checkpoint.outputOffset());
+    failedOutput.write("<partial".getBytes("UTF-8"));
+    failedOutput.close();
+    reader = checkpointingXmlFactory.createXmlReader(input, checkpoint);
+    writer = checkpointingXmlFactory.createXmlWriter(new File("target/test.resumed.xsd"), checkpoint, listener);
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    
+    System.out.println("===Reformat resumed output===");
+    reader = xmlFactory.createXmlReader(new File("target/test.resumed.xsd"));
+    writer = xmlFactory.createXmlWriter(new FileOutputStream("target/test.resumed.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.resumed.out.xsd")));
+  }
+  
+  @Test
+  public void testAdaptiveChunking() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST ADAPTIVE CHUNKING===");
+    XmlChunkBudget budget = new XmlChunkBudget(1024, XmlChunkBudget.STD_MAX_FILL_NANOS(), 64);
+    XmlFactory adaptiveXmlFactory = xmlFactory.withChunkBudget(budget);
+    Enumerator<XmlEvent> reader = adaptiveXmlFactory.createXmlReader(new File("src/test/resources/test.xsd"), 1);
+    Iteratee<XmlEvent,?> writer = adaptiveXmlFactory.createXmlWriter(new FileOutputStream("target/test.adaptive.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.adaptive.out.xsd")));
+    
+    System.out.println("===Check chunk sizes===");
+    Enumerator.State<XmlEvent> state = adaptiveXmlFactory.createXmlReader(new File("src/test/resources/test.xsd"), 1).initialState();
+    Set<Integer> eventLimits = new HashSet<Integer>();
+    while(!state.statusCode().isDone()) {
+      int eventLimit = ((XmlReader.Cont)state).eventLimit();
+      eventLimits.add(eventLimit);
+      assertTrue(eventLimit <= budget.maxEvents());
+      Enumerator.State.Result<XmlEvent> result = state.step();
+      int eventCount = 0;
+      for(XmlEvent event : result.output()) {
+        eventCount++;
+      }
+      assertTrue(eventCount <= budget.maxEvents());
+      state = result.next();
+    }
+    assertTrue(state.statusCode().isSuccess());
+    assertTrue(eventLimits.size() > 1);
+  }
+  
+  @Test
+  public void testMaxTextLength() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST MAX TEXT LENGTH===");
+    XmlFactory segmentingXmlFactory = xmlFactory.withMaxTextLength(8);
+    Enumerator<XmlEvent> reader = segmentingXmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    Iteratee<XmlEvent,?> writer = segmentingXmlFactory.createXmlWriter(new FileOutputStream("target/test.segmented.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(streamsAreEqual(new FileInputStream("src/test/resources/test.xsd"), new FileInputStream("target/test.segmented.out.xsd")));
+    
+    System.out.println("===Check text segment lengths===");
+    Enumerator.State<XmlEvent> state = segmentingXmlFactory.createXmlReader(new File("src/test/resources/test.xsd")).initialState();
+    while(!state.statusCode().isDone()) {
+      Enumerator.State.Result<XmlEvent> result = state.step();
+      for(XmlEvent event : result.output()) {
+        if(event instanceof AddXmlTextEvent) {
+          assertTrue(((AddXmlTextEvent)event).text().length() <= 8);
+        }
+      }
+      state = result.next();
+    }
+    assertTrue(state.statusCode().isSuccess());
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidMaxTextLength() {
+    System.out.println("===TEST INVALID MAX TEXT LENGTH===");
+    xmlFactory.withMaxTextLength(1);
+  }
+  
+  @Test
+  public void testLocatorModes() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST LOCATOR MODES===");
+    byte[] bytes = Files.toByteArray(new File("src/test/resources/test.xsd"));
+    XmlLocatorMode[] modes = { XmlLocatorMode.FULL, XmlLocatorMode.LINE_COLUMN, XmlLocatorMode.NONE };
+    List<List<XmlEvent>> eventsByMode = new ArrayList<List<XmlEvent>>();
+    List<byte[]> outputByMode = new ArrayList<byte[]>();
+    for(XmlLocatorMode mode : modes) {
+      XmlFactory locatorXmlFactory = xmlFactory.withLocatorMode(mode);
+      List<XmlEvent> events = new ArrayList<XmlEvent>();
+      Enumerator.State<XmlEvent> state = locatorXmlFactory.createXmlReader(new ByteArrayInputStream(bytes)).initialState();
+      while(!state.statusCode().isDone()) {
+        state = addEvents(state.step(), events);
+      }
+      assertTrue(state.statusCode().isSuccess());
+      eventsByMode.add(events);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertTrue(iterateeFactory.createPlan(locatorXmlFactory.createXmlReader(new ByteArrayInputStream(bytes)), locatorXmlFactory.createXmlWriter(out)).run().statusCode().isSuccess());
+      outputByMode.add(out.toByteArray());
+    }
+    
+    System.out.println("===Events are the same except for their locators===");
+    List<XmlEvent> fullEvents = eventsByMode.get(0);
+    List<XmlEvent> lineColumnEvents = eventsByMode.get(1);
+    List<XmlEvent> noLocatorEvents = eventsByMode.get(2);
+    assertEquals(fullEvents.size(), lineColumnEvents.size());
+    assertEquals(fullEvents.size(), noLocatorEvents.size());
+    for(int i=0;i<fullEvents.size();++i) {
+      assertEquals(fullEvents.get(i).getClass(), lineColumnEvents.get(i).getClass());
+      assertEquals(fullEvents.get(i).getClass(), noLocatorEvents.get(i).getClass());
+    }
+    assertTrue(Arrays.equals(outputByMode.get(0), outputByMode.get(1)));
+    assertTrue(Arrays.equals(outputByMode.get(0), outputByMode.get(2)));
+    
+    System.out.println("===LINE_COLUMN locators have the line and column of FULL locators===");
+    for(int i=0;i<fullEvents.size();++i) {
+      if(fullEvents.get(i).locator() instanceof org.gtri.util.xmlbuilder.api.XmlFileLocator) {
+        org.gtri.util.xmlbuilder.api.XmlFileLocator full = (org.gtri.util.xmlbuilder.api.XmlFileLocator)fullEvents.get(i).locator();
+        org.gtri.util.xmlbuilder.api.XmlFileLocator lineColumn = (org.gtri.util.xmlbuilder.api.XmlFileLocator)lineColumnEvents.get(i).locator();
+        assertEquals(full.lineNumber(), lineColumn.lineNumber());
+        assertEquals(full.columnNumber(), lineColumn.columnNumber());
+        assertEquals(full.charOffset(), lineColumn.charOffset());
+        assertNull(lineColumn.publicId());
+        assertNull(lineColumn.systemId());
+      }
+    }
+    
+    System.out.println("===NONE locators are all the same unknown location===");
+    for(XmlEvent event : noLocatorEvents) {
+      assertSame(noLocatorEvents.get(0).locator(), event.locator());
+    }
+  }
+  
+  @Test
+  public void testAsyncReader() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST ASYNC READER===");
+    XmlFactory noLocatorXmlFactory = xmlFactory.withLocatorMode(XmlLocatorMode.NONE);
+    byte[] bytes = Files.toByteArray(new File("src/test/resources/test.xsd"));
+    
+    System.out.println("===Feed input in 64 byte segments===");
+    AsyncXmlReader reader = noLocatorXmlFactory.createAsyncXmlReader();
+    List<XmlEvent> asyncEvents = new ArrayList<XmlEvent>();
+    Enumerator.State<XmlEvent> state = reader.initialState();
+    int offset = 0;
+    while(!state.statusCode().isDone()) {
+      if(state instanceof AsyncXmlReader.NeedsInput) {
+        AsyncXmlReader.NeedsInput needsInput = (AsyncXmlReader.NeedsInput)state;
+        if(offset < bytes.length) {
+          int length = Math.min(64, bytes.length - offset);
+          state = needsInput.feed(ByteBuffer.wrap(bytes, offset, length));
+          offset += length;
+        } else {
+          state = needsInput.endOfInput();
+        }
+      } else {
+        state = addEvents(state.step(), asyncEvents);
+      }
+    }
+    assertTrue(state.statusCode().isSuccess());
+    
+    System.out.println("===Compare to blocking reader===");
+    List<XmlEvent> events = new ArrayList<XmlEvent>();
+    state = noLocatorXmlFactory.createXmlReader(new ByteArrayInputStream(bytes)).initialState();
+    while(!state.statusCode().isDone()) {
+      state = addEvents(state.step(), events);
+    }
+    assertEquals(events, asyncEvents);
+  }
+  
+  @Test
+  public void testProjection() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST PROJECTION===");
+    XmlFactory projectingXmlFactory = xmlFactory.withProjection("//{http://www.w3.org/2001/XMLSchema}documentation");
+    List<XmlEvent> events = new ArrayList<XmlEvent>();
+    Enumerator.State<XmlEvent> state = projectingXmlFactory.createXmlReader(new File("src/test/resources/test.xsd")).initialState();
+    while(!state.statusCode().isDone()) {
+      state = addEvents(state.step(), events);
+    }
+    assertTrue(state.statusCode().isSuccess());
+    
+    System.out.println("===Only the selected element and its ancestors are read===");
+    List<String> names = new ArrayList<String>();
+    for(XmlEvent event : events) {
+      if(event instanceof StartXmlElementEvent) {
+        names.add(((StartXmlElementEvent)event).element().qName().getLocalName().toString());
+      }
+    }
+    assertEquals(Arrays.asList("schema", "annotation", "documentation"), names);
+    assertEquals(8, events.size());
+    assertEquals("asdf", ((StartXmlElementEvent)events.get(3)).element().value().get());
+  }
+  
+  @Test
+  public void testElementOrdering() throws XMLStreamException, IOException {
+    System.out.println("===TEST ELEMENT ORDERING===");
+    byte[] xml = "<r xmlns:z=\"urn:z\" xmlns:a=\"urn:a\" z:b=\"1\" c=\"2\" a:d=\"3\"/>".getBytes("UTF-8");
+    List<XmlEvent> events = new ArrayList<XmlEvent>();
+    Enumerator.State<XmlEvent> state = xmlFactory.createXmlReader(new ByteArrayInputStream(xml)).initialState();
+    while(!state.statusCode().isDone()) {
+      state = addEvents(state.step(), events);
+    }
+    assertTrue(state.statusCode().isSuccess());
+    XmlElement element = null;
+    for(XmlEvent event : events) {
+      if(event instanceof StartXmlElementEvent) {
+        element = ((StartXmlElementEvent)event).element();
+      }
+    }
+    
+    System.out.println("===Attributes and prefixes are in document order===");
+    assertEquals(3, element.attributeCount());
+    assertEquals("b", element.attributeName(0).getLocalName().toString());
+    assertEquals("c", element.attributeName(1).getLocalName().toString());
+    assertEquals("d", element.attributeName(2).getLocalName().toString());
+    assertEquals(2, element.prefixCount());
+    assertEquals("z", element.prefix(0).toString());
+    assertEquals("a", element.prefix(1).toString());
+    
+    System.out.println("===Elements created from maps are sorted by name===");
+    XmlElement fromMaps = XmlElement.apply(element.qName(), element.value(), element.attributesMap(), element.prefixToNamespaceURIMap());
+    List<String> attributeNames = new ArrayList<String>();
+    for(int i=0;i<element.attributeCount();++i) {
+      attributeNames.add(element.attributeName(i).toString());
+    }
+    Collections.sort(attributeNames);
+    assertEquals(3, fromMaps.attributeCount());
+    for(int i=0;i<fromMaps.attributeCount();++i) {
+      assertEquals(attributeNames.get(i), fromMaps.attributeName(i).toString());
+    }
+    assertEquals("a", fromMaps.prefix(0).toString());
+    assertEquals("z", fromMaps.prefix(1).toString());
+    
+    System.out.println("===Repeated attributes and prefixes, the last value wins===");
+    XsdQName b = element.attributeName(0);
+    XsdNCName z = element.prefix(0);
+    XmlElement repeated = new XmlElement(element.qName(), element.value(), new XsdQName[] { b, b }, new String[] { "1", "2" }, new XsdNCName[] { z, z }, new XsdAnyURI[] { element.namespaceURI(0), element.namespaceURI(1) }, element.metadata());
+    assertEquals(1, repeated.attributesImmutableMap().size());
+    assertEquals("2", repeated.attributesImmutableMap().get(b));
+    assertEquals(1, repeated.prefixToNamespaceURIImmutableMap().size());
+    assertEquals(element.namespaceURI(1), repeated.prefixToNamespaceURIImmutableMap().get(z));
+  }
+  
+  @Test
+  public void testNamespaceScope() throws XMLStreamException, IOException {
+    System.out.println("===TEST NAMESPACE SCOPE===");
+    byte[] xml = "<r xmlns:a=\"urn:u\" xmlns:b=\"urn:u\"><s xmlns:b=\"urn:v\"/></r>".getBytes("UTF-8");
+    List<XmlEvent> events = new ArrayList<XmlEvent>();
+    Enumerator.State<XmlEvent> state = xmlFactory.createXmlReader(new ByteArrayInputStream(xml)).initialState();
+    while(!state.statusCode().isDone()) {
+      state = addEvents(state.step(), events);
+    }
+    assertTrue(state.statusCode().isSuccess());
+    XmlNamespaceScope scope = XmlNamespaceScope.EMPTY();
+    for(XmlEvent event : events) {
+      if(event instanceof StartXmlElementEvent) {
+        scope = scope.push(((StartXmlElementEvent)event).element());
+      }
+    }
+    
+    System.out.println("===Rebinding a prefix falls back to another prefix of its namespace===");
+    XmlNameCache nameCache = xmlFactory.nameCache();
+    XsdAnyURI u = nameCache.anyURI("urn:u");
+    XsdAnyURI v = nameCache.anyURI("urn:v");
+    assertEquals("a", scope.getPrefixForNamespaceURI(u).toString());
+    assertEquals("b", scope.getPrefixForNamespaceURI(v).toString());
+    assertFalse(scope.isValidPrefixForNamespaceURI(nameCache.ncName("b"), u));
+    assertTrue(scope.isValidPrefixForNamespaceURI(nameCache.ncName("a"), u));
+  }
+  
+  @Test
+  public void testBatchContract() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST BATCH CONTRACT===");
+    final List<String> batchItems = new ArrayList<String>();
+    XmlBatchContract batchContract = new XmlBatchContract() {
+      @Override
+      public void addXmlEvents(XmlEventBatch batch) {
+        for(int i=0;i<batch.size();++i) {
+          switch(batch.eventType(i)) {
+            case XmlEventBatch.START_ELEMENT:
+              batchItems.add(batch.qName(i) + " " + batch.text(i) + " " + batch.attributeCount(i) + " " + batch.prefixCount(i));
+              break;
+            case XmlEventBatch.END_ELEMENT:
+              batchItems.add("/" + batch.qName(i));
+              break;
+            case XmlEventBatch.TEXT:
+              batchItems.add(batch.text(i));
+              break;
+            case XmlEventBatch.COMMENT:
+              batchItems.add("!" + batch.text(i));
+              break;
+          }
+        }
+      }
+    };
+    Enumerator<XmlEvent> reader = xmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, xmlFactory.createXmlContractWriter(batchContract)).run().statusCode().isSuccess());
+    
+    System.out.println("===Compare to XmlContract===");
+    final List<String> items = new ArrayList<String>();
+    final List<XsdQName> openElements = new ArrayList<XsdQName>();
+    XmlContract contract = new XmlContract() {
+      @Override
+      public void addXmlElement(XsdQName _qName, String _value, ImmutableMap<XsdQName, String> _attributes, ImmutableMap<XsdNCName, XsdAnyURI> _prefixToNamespaceURIMap) {
+        items.add(_qName + " " + _value + " " + _attributes.size() + " " + _prefixToNamespaceURIMap.size());
+        openElements.add(_qName);
+      }
+      @Override
+      public void addXmlComment(String _value) {
+        items.add("!" + _value);
+      }
+      @Override
+      public void addXmlText(String _value) {
+        items.add(_value);
+      }
+      @Override
+      public void endXmlElement() {
+        items.add("/" + openElements.remove(openElements.size() - 1));
+      }
+    };
+    reader = xmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, xmlFactory.createXmlContractWriter(contract)).run().statusCode().isSuccess());
+    assertFalse(items.isEmpty());
+    assertEquals(items, batchItems);
+  }
+  
+  @Test
+  public void testCursor() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST CURSOR===");
+    final List<String> items = new ArrayList<String>();
+    final List<XsdQName> openElements = new ArrayList<XsdQName>();
+    XmlContract contract = new XmlContract() {
+      @Override
+      public void addXmlElement(XsdQName _qName, String _value, ImmutableMap<XsdQName, String> _attributes, ImmutableMap<XsdNCName, XsdAnyURI> _prefixToNamespaceURIMap) {
+        items.add(_qName + " " + _attributes + " " + _prefixToNamespaceURIMap);
+        openElements.add(_qName);
+        if(_value != null) {
+          addXmlText(_value);
+        }
+      }
+      @Override
+      public void addXmlComment(String _value) {
+        items.add("!" + _value);
+      }
+      @Override
+      public void addXmlText(String _value) {
+        int last = items.size() - 1;
+        if(last >= 0 && items.get(last).startsWith("\"")) {
+          items.set(last, items.get(last) + _value);
+        } else {
+          items.add("\"" + _value);
+        }
+      }
+      @Override
+      public void endXmlElement() {
+        items.add("/" + openElements.remove(openElements.size() - 1));
+      }
+    };
+    Enumerator<XmlEvent> reader = xmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, xmlFactory.createXmlContractWriter(contract)).run().statusCode().isSuccess());
+    List<String> readerItems = new ArrayList<String>(items);
+    items.clear();
+    
+    System.out.println("===Push cursor snapshots===");
+    XmlCursor cursor = xmlFactory.createXmlCursor(new File("src/test/resources/test.xsd"));
+    assertEquals(XmlCursor.NONE(), cursor.eventType());
+    int maxDepth = 0;
+    while(cursor.next()) {
+      maxDepth = Math.max(maxDepth, cursor.depth());
+      cursor.snapshot().pushTo(contract);
+    }
+    cursor.close();
+    assertEquals(XmlCursor.END_DOCUMENT(), cursor.eventType());
+    assertEquals(0, cursor.depth());
+    assertTrue(maxDepth > 1);
+    assertFalse(items.isEmpty());
+    assertEquals(readerItems, items);
+    
+    System.out.println("===Skip the children of the root element===");
+    cursor = xmlFactory.createXmlCursor(new File("src/test/resources/test.xsd"));
+    int childCount = 0;
+    while(cursor.next()) {
+      if(cursor.isStartElement() && cursor.depth() == 2) {
+        childCount++;
+        cursor.skipElement();
+        assertTrue(cursor.isEndElement());
+        assertEquals(2, cursor.depth());
+      }
+      assertTrue(cursor.depth() <= 2);
+    }
+    cursor.close();
+    assertTrue(childCount > 0);
+  }
+  
+  @Test
+  public void testXmlDocument() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST XML DOCUMENT===");
+    final List<String> items = new ArrayList<String>();
+    final List<XsdQName> openElements = new ArrayList<XsdQName>();
+    XmlContract contract = new XmlContract() {
+      @Override
+      public void addXmlElement(XsdQName _qName, String _value, ImmutableMap<XsdQName, String> _attributes, ImmutableMap<XsdNCName, XsdAnyURI> _prefixToNamespaceURIMap) {
+        items.add(_qName + " " + _value + " " + _attributes + " " + _prefixToNamespaceURIMap);
+        openElements.add(_qName);
+      }
+      @Override
+      public void addXmlComment(String _value) {
+        items.add("!" + _value);
+      }
+      @Override
+      public void addXmlText(String _value) {
+        items.add(_value);
+      }
+      @Override
+      public void endXmlElement() {
+        items.add("/" + openElements.remove(openElements.size() - 1));
+      }
+    };
+    Enumerator<XmlEvent> reader = xmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, xmlFactory.createXmlContractWriter(contract)).run().statusCode().isSuccess());
+    List<String> readerItems = new ArrayList<String>(items);
+    items.clear();
+    
+    System.out.println("===Replay document===");
+    XmlDocument document = xmlFactory.loadXmlDocument(new File("src/test/resources/test.xsd"));
+    System.out.println("nodeCount=" + document.nodeCount() + " byteSize=" + document.byteSize());
+    document.replay(contract);
+    assertEquals(readerItems, items);
+    
+    System.out.println("===Traverse document===");
+    int root = document.rootElement();
+    assertTrue(document.isElement(root));
+    assertEquals(XmlDocument.DOCUMENT_NODE(), document.parent(root));
+    XsdQName childName = document.qName(document.firstChildElement(root));
+    int[] children = document.childElements(root, childName);
+    assertTrue(children.length > 0);
+    for(int child : children) {
+      assertEquals(root, document.parent(child));
+      assertEquals(childName, document.qName(child));
+    }
+    int[] descendants = document.descendantElements(root, childName);
+    assertEquals(Collections.frequency(readerItems, "/" + childName), descendants.length);
+    assertEquals(descendants.length, document.countDescendantElements(root, childName));
+    assertEquals(XmlDocument.NONE(), document.firstChildElement(root, document.qName(root)));
+    
+    System.out.println("===Replay an element===");
+    items.clear();
+    document.replay(children[0], contract);
+    assertEquals(document.toXmlElement(children[0]).qName() + " ", items.get(0).substring(0, items.get(0).indexOf(' ') + 1));
+    assertEquals("/" + childName, items.get(items.size() - 1));
+    
+    System.out.println("===Build with an iteratee===");
+    reader = xmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, xmlFactory.createXmlDocumentBuilder()).run().statusCode().isSuccess());
+  }
+  
+  /**
+   * Add the output of a step to a list of events, merging adjacent text 
+   * events (which may be split differently by different readers)
+   * @return the next state
+   */
+  Enumerator.State<XmlEvent> addEvents(Enumerator.State.Result<XmlEvent> result, List<XmlEvent> events) {
+    for(XmlEvent event : result.output()) {
+      int last = events.size() - 1;
+      if(event instanceof AddXmlTextEvent && last >= 0 && events.get(last) instanceof AddXmlTextEvent) {
+        AddXmlTextEvent text = (AddXmlTextEvent)events.get(last);
+        events.set(last, new AddXmlTextEvent(text.text() + ((AddXmlTextEvent)event).text(), text.locator()));
+      } else {
+        events.add(event);
+      }
+    }
+    return result.next();
+  }
+  
+  @Test
+  public void testMetrics() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST METRICS===");
+    XmlMetrics metrics = new XmlMetrics();
+    XmlFactory measuredXmlFactory = xmlFactory.withMetrics(metrics);
+    Enumerator<XmlEvent> reader = measuredXmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    Iteratee<XmlEvent,?> writer = measuredXmlFactory.createXmlWriter(new FileOutputStream("target/test.metrics.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertEquals(new File("src/test/resources/test.xsd").length(), metrics.getReaderByteCount());
+    assertEquals(metrics.getReaderEventCount(), metrics.getWriterEventCount());
+    assertEquals(metrics.getStartElementCount(), metrics.getEndElementCount());
+    assertEquals(1, metrics.getEndDocumentCount());
+    assertTrue(metrics.getReaderMaxDepth() > 1);
+  }
+  
+  @Test
+  public void testNameCache() throws XMLStreamException, FileNotFoundException, IOException {
+    System.out.println("===TEST NAME CACHE===");
+    XmlNameCache nameCache = new XmlNameCache(2, true);
+    XsdNCName a = nameCache.ncName("a");
+    assertSame(a, nameCache.ncName("a"));
+    assertEquals(1, nameCache.hitCount());
+    assertEquals(1, nameCache.missCount());
+    
+    // A qName lookup counts once, not once per part
+    XsdQName qName = nameCache.qName("p", "urn:test", "b");
+    assertSame(qName, nameCache.qName("p", "urn:test", "b"));
+    assertEquals(2, nameCache.hitCount());
+    assertEquals(2, nameCache.missCount());
+    
+    // Names past the bound are created but not cached
+    nameCache.ncName("c");
+    nameCache.ncName("d");
+    assertNotSame(nameCache.ncName("d"), nameCache.ncName("d"));
+    assertSame(a, nameCache.ncName("a"));
+    
+    XmlNameCache uncountedNameCache = new XmlNameCache(2, false);
+    uncountedNameCache.ncName("a");
+    uncountedNameCache.ncName("a");
+    assertEquals(0, uncountedNameCache.hitCount());
+    assertEquals(0, uncountedNameCache.missCount());
+    
+    System.out.println("===Check factory name cache===");
+    XmlFactory countedXmlFactory = xmlFactory.withNameCache(new XmlNameCache(XmlNameCache.STD_MAX_SIZE(), true));
+    Enumerator<XmlEvent> reader = countedXmlFactory.createXmlReader(new File("src/test/resources/test.xsd"));
+    Iteratee<XmlEvent,?> writer = countedXmlFactory.createXmlWriter(new FileOutputStream("target/test.namecache.out.xsd"));
+    assertTrue(iterateeFactory.createPlan(reader, writer).run().statusCode().isSuccess());
+    assertTrue(countedXmlFactory.nameCache().missCount() > 0);
+    assertTrue(countedXmlFactory.nameCache().hitCount() > 0);
+    assertEquals(0, xmlFactory.nameCache().hitCount());
+  }
+  
   @Test
   public void testPrintXml() throws XMLStreamException, FileNotFoundException {
     System.out.println("===TEST PRINT XML===");